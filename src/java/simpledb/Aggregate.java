@@ -1,11 +1,13 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * single column.  Over a {@link Gather}, the gathered partitions are
+ * aggregated in parallel and their partial results merged.
  */
 public class Aggregate extends Operator {
 
@@ -43,29 +45,15 @@ public class Aggregate extends Operator {
         this.gbField = gfield;
         this.aOp = aop;
         
-        // Make the aggregator
-        if (child.getTupleDesc().getFieldType(afield) == Type.INT_TYPE) {
-            if (gfield == -1) {
-                this.aggr = new IntegerAggregator(gfield, null, afield, aop);
-            } else {
-                this.aggr = new IntegerAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
-            }
-        } else if (child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE) {
-            if (gfield == -1) {
-                this.aggr = new StringAggregator(gfield, null, afield, aop);
-            } else {
-                this.aggr = new StringAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
-            }
-        }
-        
-        // Fill in the aggregator
+        // Make the aggregator and fill it in, one partition per thread if
+        // the child is a parallel plan
+        this.aggr = this.makeAggregator();
         try {
-            child.open();
-            while (child.hasNext()) {
-                Tuple curTup = child.next();
-                this.aggr.mergeTupleIntoGroup(curTup);
+            if (child instanceof Gather) {
+                this.aggregatePartitions(((Gather) child).getChildren());
+            } else {
+                this.aggregateInto(this.aggr, child);
             }
-            child.close();
         } catch (DbException | TransactionAbortedException e) {
             // TODO Auto-generated catch block
             System.out.println("Failed while trying to open the child in Aggregate");
@@ -76,6 +64,64 @@ public class Aggregate extends Operator {
 
     }
 
+    private Aggregator makeAggregator() {
+        TupleDesc td = this.child.getTupleDesc();
+        Type gbType = this.gbField == -1 ? null : td.getFieldType(this.gbField);
+        if (td.getFieldType(this.aField) == Type.STRING_TYPE) {
+            return new StringAggregator(this.gbField, gbType, this.aField, this.aOp);
+        }
+        return new IntegerAggregator(this.gbField, gbType, this.aField, this.aOp);
+    }
+
+    private void aggregateInto(Aggregator aggr, OpIterator input)
+            throws DbException, TransactionAbortedException {
+        input.open();
+        while (input.hasNext()) {
+            aggr.mergeTupleIntoGroup(input.next());
+        }
+        input.close();
+    }
+
+    /**
+     * Parallel path: each of the Gather's inputs is aggregated by its own
+     * worker into a private aggregator, and the partial results are then
+     * merged into this.aggr.
+     */
+    private void aggregatePartitions(OpIterator[] inputs)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Future<Aggregator>> partials = new ArrayList<Future<Aggregator>>();
+        for (final OpIterator input : inputs) {
+            partials.add(Exchange.workerPool.submit(new Callable<Aggregator>() {
+                public Aggregator call() throws Exception {
+                    Aggregator partial = makeAggregator();
+                    aggregateInto(partial, input);
+                    return partial;
+                }
+            }));
+        }
+        Exception failure = null;
+        for (Future<Aggregator> f : partials) {
+            try {
+                this.aggr.mergePartial(f.get());
+            } catch (InterruptedException e) {
+                failure = e;
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) failure;
+        }
+        if (failure instanceof DbException) {
+            throw (DbException) failure;
+        }
+        if (failure != null) {
+            throw new DbException("aggregate worker failed: " + failure);
+        }
+    }
+
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      *         field index in the <b>INPUT</b> tuples. If not, return
@@ -76,6 +76,16 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the partial results of another aggregator into this one, as if
+     * this one had also seen all the tuples the other one has.  Lets
+     * several threads each aggregate part of the input and then combine
+     * their results.
+     *
+     * @param other an aggregator built with the same arguments as this one
+     */
+    public void mergePartial(Aggregator other);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
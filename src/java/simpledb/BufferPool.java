@@ -4,8 +4,21 @@ import java.io.*;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -29,14 +42,83 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
+    private static boolean stealNoForce = false;
+
+    /** Scans of more than this fraction of the pool use cold insertion. */
+    static final double LARGE_SCAN_FRACTION = 0.25;
+
     private int maxPages = DEFAULT_PAGES;
     private Map<PageId, Page> pageMap;
     
     // TimeStamps in Java: https://www.mkyong.com/java/how-to-get-current-timestamps-in-java/
-    private HashMap<PageId, Timestamp> accTimer;
+    private Map<PageId, Timestamp> accTimer;
 
     private LockManager lockManager;
 
+    /** Milliseconds between rounds of the background page writer. */
+    static final long WRITER_INTERVAL = 100;
+    /** Number of oldest-recLSN pages the background writer flushes per
+        round, to keep the checkpoint redo point moving. */
+    static final int WRITER_BATCH = 8;
+    /** Fraction of the pool the background writer keeps clean or free. */
+    static final double CLEAN_TARGET = 0.25;
+    /** Most adjacent pages the background writer writes with one call. */
+    static final int MAX_WRITE_RUN = 16;
+
+    // dirty page table: LSN of the first update since each page was
+    // last written (its recLSN).  Read by LogFile.logCheckpoint without
+    // the BufferPool monitor, so it must be a concurrent map.
+    private final ConcurrentHashMap<PageId, Long> recLsns = new ConcurrentHashMap<PageId, Long>();
+
+    private Thread writer = null;
+
+    /** Most pages a scan may have read ahead of itself. */
+    static final int MAX_READ_AHEAD = 32;
+
+    // reads issued by read-ahead.  One thread, so a scan's reads reach
+    // the disk in page order.
+    private static final ExecutorService ioExecutor =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BufferPool-io");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    // pages read ahead that no getPage has asked for yet.  They are not
+    // part of the pool until requested.
+    private final ConcurrentHashMap<PageId, Future<Page>> readAhead =
+        new ConcurrentHashMap<PageId, Future<Page>>();
+    // access times handed to pages read by large scans //protected by this
+    private long coldClock = 0;
+
+    private long readAheadIssued = 0; //protected by this
+    private long readAheadHits = 0; //protected by this
+
+    // rows each running transaction has inserted and deleted, for the
+    // table statistics to count once it commits
+    private final ConcurrentHashMap<TransactionId, ArrayList<StatsChange>> statsChanges =
+        new ConcurrentHashMap<TransactionId, ArrayList<StatsChange>>();
+
+    private static final class StatsChange {
+        final int tableId;
+        final Tuple tuple;
+        final boolean inserted;
+
+        StatsChange(int tableId, Tuple tuple, boolean inserted) {
+            this.tableId = tableId;
+            this.tuple = tuple;
+            this.inserted = inserted;
+        }
+    }
+
+    // background writer metrics //protected by this
+    private final long createdMillis = System.currentTimeMillis();
+    private long backgroundPagesWritten = 0;
+    private long backgroundWrites = 0;
+    private long waitedEvictions = 0;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -45,11 +127,38 @@ public class BufferPool {
     public BufferPool(int numPages) {
         // some code goes here
         this.maxPages = numPages;
-        this.pageMap = new HashMap<PageId, Page>();
-        this.accTimer = new HashMap<PageId, Timestamp>();
+        // concurrent maps: the background writer and getPage callers
+        // read them while other threads add pages
+        this.pageMap = new ConcurrentHashMap<PageId, Page>();
+        this.accTimer = new ConcurrentHashMap<PageId, Timestamp>();
         this.lockManager = new LockManager();
     }
     
+    /**
+     * @return true if a scan of the specified number of pages should use
+     *   cold insertion (see getPage(tid, pid, perm, coldInsert)) rather
+     *   than push this pool's working set out
+     */
+    public boolean isLargeScan(int pages) {
+        return pages > this.maxPages * LARGE_SCAN_FRACTION;
+    }
+
+    /** @return the most pages this pool caches */
+    public int getMaxPages() {
+        return this.maxPages;
+    }
+
+    /** @return how many pages of the table are in the pool */
+    public int cachedPages(int tableId) {
+        int n = 0;
+        for (PageId pid : this.pageMap.keySet()) {
+            if (pid.getTableId() == tableId) {
+                n++;
+            }
+        }
+        return n;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -64,6 +173,22 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Select the buffer management policy.  The default, NO-STEAL/FORCE,
+     * never writes uncommitted data and writes every page a transaction
+     * dirtied when it commits.  STEAL/NO-FORCE lets eviction write dirty
+     * pages once the log covers them, so transactions may dirty more
+     * pages than the pool holds, and makes commit force only the log.
+     * Aborts and crashes are then undone from the log by LogFile.
+     */
+    public static void setStealNoForce(boolean enabled) {
+        BufferPool.stealNoForce = enabled;
+    }
+
+    public static boolean isStealNoForce() {
+        return stealNoForce;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -80,30 +205,115 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Retrieve the specified page, as getPage(tid, pid, perm) does, on
+     * behalf of a scan that may be much larger than the pool.  If
+     * coldInsert is set, a page that has to be read is placed at the
+     * cold end of the replacement order, and a cached page is not
+     * promoted, so the scan recycles its own frames instead of evicting
+     * the pages other queries keep using.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param coldInsert true if the caller is a large scan
+     * @see #isLargeScan
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean coldInsert)
         throws TransactionAbortedException, DbException {
         // some code goes here
         //System.out.println("getPage");
-        if (this.pageMap.containsKey(pid)) {
-            // Try to acquire lock
-            //System.out.println(perm.toString());
-            this.lockManager.addLock(tid, pid, perm);
+        // Acquire the lock first: it may block, which must not happen
+        // while holding the BufferPool monitor
+        //System.out.println(perm.toString());
+        this.lockManager.addLock(tid, pid, perm);
+
+        // likewise, wait for a read-ahead of this page outside the monitor
+        Future<Page> pending = this.readAhead.get(pid);
+        Page staged = null;
+        if (pending != null && !this.pageMap.containsKey(pid)) {
+            staged = awaitReadAhead(pending);
+        }
+
+        synchronized (this) {
+            Page resultPage = this.pageMap.get(pid);
+            // a staged copy is only valid if discardPage has not dropped it
+            boolean stagedValid = pending != null && this.readAhead.remove(pid, pending);
+            if (resultPage == null) {
+                if (this.pageMap.size() >= this.maxPages) {
+                    this.evictPage(tid);
+                }
+                if (staged != null && stagedValid) {
+                    resultPage = staged;
+                    this.readAheadHits++;
+                } else {
+                    resultPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                }
+                this.pageMap.put(pid, resultPage);
+                // pages of large scans are older than any real access,
+                // and evicted in the order they were read
+                if (coldInsert) {
+                    this.accTimer.put(pid, new Timestamp(++this.coldClock));
+                    return resultPage;
+                }
+            } else if (coldInsert) {
+                return resultPage;
+            }
+
+            // Put a timestamp
             this.accTimer.put(pid, new Timestamp(System.currentTimeMillis()));
-            return this.pageMap.get(pid);
+
+            return resultPage;
         }
-        
-        if (this.pageMap.size() >= this.maxPages) {
-            this.evictPage();
+    }
+
+    private static Page awaitReadAhead(Future<Page> pending) {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // fall back to reading the page synchronously
         }
-        
-        this.lockManager.addLock(tid, pid, perm);
-        Page resultPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        
-        this.pageMap.put(pid, resultPage);
-        
-        // Put a timestamp
-        this.accTimer.put(pid, new Timestamp(System.currentTimeMillis()));
-        
-        return resultPage;
+        return null;
+    }
+
+    /**
+     * Start reading a page in the background, so that a later getPage
+     * for it does not wait for the disk.  Used by sequential scans to
+     * read ahead of themselves.  Does nothing if the page is cached or
+     * already being read, or if a quarter of the pool's capacity is
+     * already staged; read-ahead never takes locks or evicts pages.
+     *
+     * @param pid the page that is expected to be requested soon
+     */
+    public void prefetch(final PageId pid) {
+        if (this.pageMap.containsKey(pid) || this.readAhead.containsKey(pid))
+            return;
+        if (this.readAhead.size() >= Math.max(1, this.maxPages / 4))
+            return;
+        final DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        FutureTask<Page> read = new FutureTask<Page>(new Callable<Page>() {
+            public Page call() {
+                return file.readPage(pid);
+            }
+        });
+        if (this.readAhead.putIfAbsent(pid, read) == null) {
+            synchronized (this) {
+                this.readAheadIssued++;
+            }
+            ioExecutor.execute(read);
+        }
+    }
+
+    /** @return the number of pages read ahead, and how many of them were
+        later requested through getPage */
+    public synchronized long[] getReadAheadStats() {
+        return new long[] { this.readAheadIssued, this.readAheadHits };
     }
 
     /**
@@ -120,7 +330,8 @@ public class BufferPool {
     }
 
     /**
-     * Release all locks associated with a given transaction.
+     * Commit the given transaction and release all locks associated
+     * with it.  Same as transactionComplete(tid, true).
      *
      * @param tid the ID of the transaction requesting the unlock
      */
@@ -146,34 +357,100 @@ public class BufferPool {
      * BufferPool keeps regarding
      * the transaction, including releasing any locks that the transaction held.
      *
-     *
+     * On commit the COMMIT record is logged, and forced, before the
+     * locks are released: otherwise another transaction could read the
+     * changes and commit, and survive a crash that this commit did not.
+     * Once it has committed, the rows it inserted and deleted are counted
+     * in the table statistics; an abort drops them.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
-    public synchronized void transactionComplete(TransactionId tid, boolean commit)
+    public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        ArrayList<StatsChange> changes = this.statsChanges.remove(tid);
         if (commit) {
             //System.out.println("Commit transaction");
-            this.flushPages(tid);
+            // under NO-FORCE the commit record alone makes the
+            // transaction durable; the background writer and eviction
+            // write the pages later
+            if (!stealNoForce) {
+                this.flushPages(tid);
+            }
+            // waits for a group force, so not under the BufferPool
+            // monitor, which would hold up every other transaction
+            Database.getLogFile().logCommit(tid);
         }
         else {
             //System.out.println("Abort transaction");
-            ArrayList<PageId> discards = new ArrayList<PageId>();
-            for (PageId pid : this.pageMap.keySet()) {
-                //System.out.println("Page "+pid+" modified by "+this.pageMap.get(pid).isDirty());
-                if(this.pageMap.get(pid).isDirty() == tid) {
-                    //System.out.println("Discard abort");
-                    discards.add(pid);
+            discardAborted(tid);
+        }
+        this.lockManager.releaseLocks(tid);
+        if (commit && changes != null) {
+            applyStatsChanges(changes);
+        }
+    }
+
+    // count committed rows in their tables' statistics.  Statistics
+    // loadStatistics left on disk are not read in for this: they are
+    // only estimates, and the next re-analyze counts the rows anyway.
+    private static void applyStatsChanges(ArrayList<StatsChange> changes) {
+        HashMap<Integer, TableStats> tables = new HashMap<Integer, TableStats>();
+        for (StatsChange c : changes) {
+            if (!tables.containsKey(c.tableId)) {
+                TableStats stats;
+                try {
+                    stats = TableStats.peekTableStats(Database.getCatalog().getTableName(c.tableId));
+                } catch (NoSuchElementException e) {
+                    // the table has been dropped
+                    stats = null;
                 }
+                tables.put(c.tableId, stats);
+            }
+            TableStats stats = tables.get(c.tableId);
+            if (stats == null) {
+                continue;
             }
-            for (PageId pid : discards) {
-                discardPage(pid);
+            if (c.inserted) {
+                stats.addTuple(c.tuple);
+            } else {
+                stats.removeTuple(c.tuple);
             }
         }
-        this.lockManager.releaseLocks(tid);
+    }
+
+    // remember a row tid inserted or deleted, for transactionComplete
+    private void recordStatsChange(TransactionId tid, int tableId, Tuple t, boolean inserted) {
+        ArrayList<StatsChange> changes = this.statsChanges.get(tid);
+        if (changes == null) {
+            // only tid's own thread adds to its list
+            changes = new ArrayList<StatsChange>();
+            this.statsChanges.put(tid, changes);
+        }
+        changes.add(new StatsChange(tableId, t, inserted));
+    }
+
+    // the buffer pool's part of an abort: undo stolen pages and drop
+    // the transaction's dirty pages from the pool
+    private synchronized void discardAborted(TransactionId tid) throws IOException {
+        if (stealNoForce) {
+            // stolen pages are on disk: undo them from the log.  A
+            // no-op if Transaction already rolled back via logAbort
+            Database.getLogFile().rollback(tid);
+        }
+        ArrayList<PageId> discards = new ArrayList<PageId>();
+        for (PageId pid : this.pageMap.keySet()) {
+            //System.out.println("Page "+pid+" modified by "+this.pageMap.get(pid).isDirty());
+            if(this.pageMap.get(pid).isDirty() == tid) {
+                //System.out.println("Discard abort");
+                discards.add(pid);
+            }
+        }
+        for (PageId pid : discards) {
+            discardPage(pid);
+        }
     }
 
     /**
@@ -198,16 +475,24 @@ public class BufferPool {
         HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> modPages = table.insertTuple(tid, t);
         
-        for (Page curPage : modPages) {
-            if (this.pageMap.size() >= this.maxPages) {
-                this.evictPage();
-              }
-            //System.out.println("Marking insert dirty "+curPage.getId()+" modified by "+tid);
-            curPage.markDirty(true, tid);
-            this.pageMap.put(curPage.getId(), curPage);
-            this.accTimer.put(curPage.getId(), new Timestamp(System.currentTimeMillis()));
+        synchronized (this) {
+            // log every change before making room, so that eviction
+            // never steals one of these pages with an unlogged change
+            for (Page curPage : modPages) {
+                //System.out.println("Marking insert dirty "+curPage.getId()+" modified by "+tid);
+                curPage.markDirty(true, tid);
+                this.logPageUpdate(tid, curPage);
+            }
+            for (Page curPage : modPages) {
+                if (!this.pageMap.containsKey(curPage.getId()) && this.pageMap.size() >= this.maxPages) {
+                    this.evictPage(tid);
+                }
+                this.pageMap.put(curPage.getId(), curPage);
+                this.accTimer.put(curPage.getId(), new Timestamp(System.currentTimeMillis()));
+            }
         }
-        
+
+        recordStatsChange(tid, tableId, t, true);
     }
 
     /**
@@ -231,17 +516,267 @@ public class BufferPool {
         DbFile table = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> modPages = table.deleteTuple(tid, t);
         
-        for (Page curPage : modPages) {
-            if (this.pageMap.size() >= this.maxPages) {
-              this.evictPage();
+        synchronized (this) {
+            // log every change before making room, so that eviction
+            // never steals one of these pages with an unlogged change
+            for (Page curPage : modPages) {
+                //System.out.println("Marking delete dirty "+curPage.getId()+" modified by "+tid);
+                curPage.markDirty(true, tid);
+                this.logPageUpdate(tid, curPage);
+            }
+            for (Page curPage : modPages) {
+                if (!this.pageMap.containsKey(curPage.getId()) && this.pageMap.size() >= this.maxPages) {
+                    this.evictPage(tid);
+                }
+                this.pageMap.put(curPage.getId(), curPage);
+                this.accTimer.put(curPage.getId(), new Timestamp(System.currentTimeMillis()));
+            }
+        }
+
+        recordStatsChange(tid, tableId, t, false);
+    }
+
+    /**
+     * Append log records for a page just modified by tid and stamp
+     * the page with the last record's LSN, so that flushPage knows how
+     * much of the log has to be durable before the page can be written.
+     * Heap pages log one small record per inserted or deleted tuple;
+     * an UPDATE record with full before and after images is the
+     * fallback.  The page's before image then advances to the logged
+     * state, so the next update to the page logs only its own change.
+     */
+    private void logPageUpdate(TransactionId tid, Page page) throws IOException {
+        LogFile log = Database.getLogFile();
+        List<HeapPage.SlotChange> changes = null;
+        if (page instanceof HeapPage)
+            changes = ((HeapPage) page).takeSlotChanges();
+        long lsn;
+        // register the recLSN under the log's monitor, so a checkpoint
+        // never sees the record without the dirty page table entry
+        synchronized (log) {
+            if (changes == null) {
+                lsn = log.logWrite(tid, page.getBeforeImage(), page);
+                recLsns.putIfAbsent(page.getId(), lsn);
+            } else {
+                lsn = -1;
+                for (HeapPage.SlotChange c : changes) {
+                    lsn = log.logSlotChange(tid, page.getId(), c.insert, c.slot, c.tuple);
+                    recLsns.putIfAbsent(page.getId(), lsn);
+                }
+            }
+        }
+        page.setLSN(lsn);
+        page.setBeforeImage();
+        startWriter();
+    }
+
+    /**
+     * Return the cached copy of a page, or null if it is not in the
+     * pool.  Takes no locks; used by recovery, which must see the
+     * latest version of pages it undoes.
+     */
+    synchronized Page peekPage(PageId pid) {
+        return this.pageMap.get(pid);
+    }
+
+    /**
+     * Return a snapshot of the dirty page table: for every page with
+     * updates that have not been written to disk, the LSN of the first
+     * such update.  Does not take the BufferPool monitor, so it may be
+     * called while holding the LogFile monitor.
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<PageId, Long>(recLsns);
+    }
+
+    // start the background writer the first time a page is dirtied
+    private synchronized void startWriter() {
+        if (writer != null)
+            return;
+        writer = new Thread("BufferPool-writer") {
+            public void run() { writeBehind(); }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Body of the background writer: every WRITER_INTERVAL ms, write
+     * out cold dirty pages so that eviction finds clean frames and
+     * checkpoints find a short dirty page table.  Exits once this pool
+     * is no longer the Database's buffer pool.
+     */
+    private void writeBehind() {
+        while (Database.getBufferPool() == this) {
+            try {
+                Thread.sleep(WRITER_INTERVAL);
+                if (Database.getBufferPool() != this)
+                    break;
+                writeDirtyPages();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            //System.out.println("Marking delete dirty "+curPage.getId()+" modified by "+tid);
-            curPage.markDirty(true, tid);
-            this.pageMap.put(curPage.getId(), curPage);
-            this.accTimer.put(curPage.getId(), new Timestamp(System.currentTimeMillis()));
+        }
+        synchronized (this) {
+            writer = null;
         }
     }
 
+    /**
+     * One round of the background writer.  Picks the least recently
+     * used dirty pages needed to bring the clean and free frames up to
+     * CLEAN_TARGET of the pool, plus the WRITER_BATCH pages with the
+     * oldest recLSN so the redo point keeps advancing.  The pages are
+     * written in page-number order, adjacent pages of a HeapFile with
+     * a single write.  Pages some transaction holds the write lock on
+     * are left alone: the holder may be changing the page in
+     * HeapFile.insertTuple or deleteTuple, before BufferPool logs the
+     * change, and under NO-FORCE that need not be the transaction
+     * recorded as having dirtied it.  A transaction can only get hold
+     * of a page through getPage, which takes the lock before entering
+     * the BufferPool monitor, so a page that is not write-locked while
+     * the monitor is held cannot change until it is released.
+     * <p>
+     * The BufferPool monitor is held while choosing pages and while
+     * writing each run, but not across the whole round.
+     */
+    void writeDirtyPages() throws IOException {
+        TreeSet<PageId> batch = new TreeSet<PageId>(PAGE_ORDER);
+        synchronized (this) {
+            ArrayList<PageId> candidates = new ArrayList<PageId>();
+            int clean = this.maxPages - this.pageMap.size();
+            for (Map.Entry<PageId, Page> e : this.pageMap.entrySet()) {
+                TransactionId dirtier = e.getValue().isDirty();
+                if (dirtier == null)
+                    clean++;
+                else if (!this.lockManager.isLockedExclusively(e.getKey()))
+                    candidates.add(e.getKey());
+            }
+
+            int needed = (int) Math.ceil(CLEAN_TARGET * this.maxPages) - clean;
+            Collections.sort(candidates, new Comparator<PageId>() {
+                public int compare(PageId a, PageId b) {
+                    return accTimer.get(a).compareTo(accTimer.get(b));
+                }
+            });
+            for (int i = 0; i < candidates.size() && i < needed; i++) {
+                batch.add(candidates.get(i));
+            }
+
+            Collections.sort(candidates, new Comparator<PageId>() {
+                public int compare(PageId a, PageId b) {
+                    return Long.compare(recLsn(a), recLsn(b));
+                }
+            });
+            for (int i = 0; i < candidates.size() && i < WRITER_BATCH; i++) {
+                batch.add(candidates.get(i));
+            }
+        }
+
+        ArrayList<PageId> run = new ArrayList<PageId>();
+        for (PageId pid : batch) {
+            if (!run.isEmpty()) {
+                PageId last = run.get(run.size() - 1);
+                if (last.getTableId() != pid.getTableId()
+                    || last.getPageNumber() + 1 != pid.getPageNumber()
+                    || run.size() == MAX_WRITE_RUN) {
+                    writeRun(run);
+                    run.clear();
+                }
+            }
+            run.add(pid);
+        }
+        if (!run.isEmpty())
+            writeRun(run);
+    }
+
+    // order pages by table, then page number
+    private static final Comparator<PageId> PAGE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return Integer.compare(a.getTableId(), b.getTableId());
+            return Integer.compare(a.getPageNumber(), b.getPageNumber());
+        }
+    };
+
+    /**
+     * Write a run of adjacent pages of one table chosen by the
+     * background writer.  Pages that were written, evicted or write
+     * locked since they were chosen are skipped, splitting the run.
+     */
+    private synchronized void writeRun(List<PageId> run) throws IOException {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (PageId pid : run) {
+            Page page = this.pageMap.get(pid);
+            TransactionId dirtier = page == null ? null : page.isDirty();
+            if (dirtier == null || this.lockManager.isLockedExclusively(pid)) {
+                writeContiguous(pages);
+                pages.clear();
+            } else {
+                pages.add(page);
+            }
+        }
+        writeContiguous(pages);
+    }
+
+    private void writeContiguous(List<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        long lsn = 0;
+        for (Page page : pages) {
+            lsn = Math.max(lsn, page.getLSN());
+        }
+        // write-ahead rule for the whole run at once
+        Database.getLogFile().forceUpTo(lsn);
+
+        DbFile file = Database.getCatalog().getDatabaseFile(pages.get(0).getId().getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).writePages(pages);
+        } else {
+            for (Page page : pages) {
+                file.writePage(page);
+            }
+        }
+        for (Page page : pages) {
+            page.markDirty(false, null);
+            this.recLsns.remove(page.getId());
+        }
+        this.backgroundPagesWritten += pages.size();
+        this.backgroundWrites++;
+    }
+
+    /** @return the number of pages written by the background writer */
+    public synchronized long getBackgroundPagesWritten() {
+        return this.backgroundPagesWritten;
+    }
+
+    /** @return the number of write calls the background writer made;
+        lower than the number of pages when adjacent pages are coalesced */
+    public synchronized long getBackgroundWrites() {
+        return this.backgroundWrites;
+    }
+
+    /** @return pages written per second by the background writer since
+        this pool was created */
+    public synchronized double getBackgroundWriteRate() {
+        long elapsed = System.currentTimeMillis() - this.createdMillis;
+        return elapsed <= 0 ? 0 : this.backgroundPagesWritten * 1000.0 / elapsed;
+    }
+
+    /** @return the number of evictions that found no clean page, and so
+        had to write a dirty page on the caller's thread (or failed under
+        NO-STEAL) */
+    public synchronized long getWaitedEvictions() {
+        return this.waitedEvictions;
+    }
+
+    private long recLsn(PageId pid) {
+        Long lsn = recLsns.get(pid);
+        return lsn == null ? Long.MAX_VALUE : lsn;
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -269,6 +804,12 @@ public class BufferPool {
         // not necessary for lab1
         this.pageMap.remove(pid);
         this.accTimer.remove(pid);
+        this.recLsns.remove(pid);
+        // a copy read ahead may predate whatever made the caller discard
+        Future<Page> staged = this.readAhead.remove(pid);
+        if (staged != null) {
+            staged.cancel(false);
+        }
     }
 
     /**
@@ -281,8 +822,11 @@ public class BufferPool {
         // Flush if dirty
         HeapPage page = (HeapPage) this.pageMap.get(pid);
         if (page != null && page.isDirty() != null) {
+            // write-ahead rule: the log must cover the page before it hits disk
+            Database.getLogFile().forceUpTo(page.getLSN());
             Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
             page.markDirty(false, new TransactionId());
+            this.recLsns.remove(pid);
         }
         
     }
@@ -306,28 +850,53 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * A dirty page another transaction holds the write lock on is never
+     * stolen: that transaction may have changed it without logging the
+     * change yet, as the page writer also allows for.  The requesting
+     * transaction's own pages are safe, since it logs its changes
+     * before it can get here again.
+     * @param tid the transaction that needs the frame
+     * @throws DbException if every page is dirty and the pool is in
+     *         NO-STEAL mode, or no dirty page may be stolen
      */
-    private synchronized void evictPage() throws DbException {
+    private synchronized void evictPage(TransactionId tid) throws DbException {
         // some code goes here
         // not necessary for lab1
-        // Evict the page that was accessed the longest time ago
-        Timestamp earliest = new Timestamp(System.currentTimeMillis());
-        PageId earliestPid = null;
+        // Evict the page that was accessed the longest time ago,
+        // preferring clean pages
+        PageId cleanPid = null;
+        PageId dirtyPid = null;
         for (PageId curPid : this.accTimer.keySet()) {
-            if (pageMap.get(curPid).isDirty() == null && this.accTimer.get(curPid).before(earliest)) {
-//              System.out.println("Found earlier page");
-                earliest = this.accTimer.get(curPid);
-                earliestPid = curPid;
-            }   
+            Timestamp accessed = this.accTimer.get(curPid);
+            if (pageMap.get(curPid).isDirty() == null) {
+                if (cleanPid == null || accessed.before(this.accTimer.get(cleanPid))) {
+                    cleanPid = curPid;
+                }
+            } else if (dirtyPid == null || accessed.before(this.accTimer.get(dirtyPid))) {
+                TransactionId writer = this.lockManager.exclusiveHolder(curPid);
+                if (writer == null || writer.equals(tid)) {
+                    dirtyPid = curPid;
+                }
+            }
         }
-        
-        // Flush the earliest non-dirty page
+
+        PageId victim = cleanPid;
+        if (victim == null) {
+            this.waitedEvictions++;
+            // Every page is dirty; only STEAL may write one out
+            if (!stealNoForce || dirtyPid == null) {
+                throw new DbException("All pages in the buffer pool are dirty");
+            }
+            victim = dirtyPid;
+        }
+
+        // flushPage forces the log up to the page's LSN first
         try {
-            this.flushPage(earliestPid);
-            this.discardPage(earliestPid);
+            this.flushPage(victim);
+            this.discardPage(victim);
 //            System.out.println("Discarded the page! Only " + this.pageMap.size() + " left");
         } catch (IOException e) {
-            System.out.println("Something went wrong when evicting");
+            throw new DbException("Could not write page " + victim + " while evicting: " + e.getMessage());
         }
     }
 
@@ -0,0 +1,495 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Statistics on two columns of a table taken together, for estimating
+ * predicates on both when the columns are correlated (a city and its zip
+ * code, say) and multiplying their selectivities would be far off.
+ *
+ * Kept are the number of distinct combinations of the two values, the
+ * most common combinations with their frequencies, and a two-dimensional
+ * histogram of the other rows: each column's values are split into ranges
+ * of about equal numbers of rows, and every pair of ranges (a cell)
+ * counts its rows.  Correlated rows then crowd into a few cells instead
+ * of spreading over all of them.
+ */
+public class ColumnPairStats {
+
+    /** Ranges each column is split into. */
+    static final int RANGES = 16;
+
+    /** The most common value combinations kept. */
+    static final int MAX_MCVS = 100;
+
+    // a combination is common if it is this many times more frequent
+    // than average
+    private static final double MCV_FACTOR = 1.25;
+
+    private final int field1;
+    private final int field2;
+    private HyperLogLog sketch;
+    private final HashMap<List<Field>, Double> mcvs = new HashMap<List<Field>, Double>();
+    private Axis axis1;
+    private Axis axis2;
+    private double[][] cells;
+    private double total;
+
+    /**
+     * Build statistics from a uniform sample of the table's rows.
+     *
+     * @param field1
+     *            the first column
+     * @param field2
+     *            the second column
+     * @param sample1
+     *            the sampled values of the first column
+     * @param sample2
+     *            the second column's values from the same rows
+     * @param n
+     *            how many entries of the samples to use
+     * @param tableRows
+     *            the rows the sample was drawn from
+     * @param sketch
+     *            a sketch that has seen every combination of the two
+     *            columns' values the table holds
+     * @param ndv1
+     *            the first column's estimated distinct count, or 0
+     * @param ndv2
+     *            the second column's estimated distinct count, or 0
+     */
+    public ColumnPairStats(int field1, int field2, Field[] sample1, Field[] sample2, int n,
+            double tableRows, HyperLogLog sketch, double ndv1, double ndv2) {
+        this.field1 = field1;
+        this.field2 = field2;
+        this.sketch = sketch;
+        double weight = n == 0 ? 0.0 : tableRows / n;
+        this.total = n == 0 ? 0.0 : tableRows;
+
+        HashMap<List<Field>, Integer> counts = new HashMap<List<Field>, Integer>();
+        for (int i = 0; i < n; i++) {
+            List<Field> key = Arrays.asList(sample1[i], sample2[i]);
+            Integer c = counts.get(key);
+            counts.put(key, c == null ? 1 : c + 1);
+        }
+        ArrayList<Map.Entry<List<Field>, Integer>> byCount =
+                new ArrayList<Map.Entry<List<Field>, Integer>>(counts.entrySet());
+        Collections.sort(byCount, new Comparator<Map.Entry<List<Field>, Integer>>() {
+            public int compare(Map.Entry<List<Field>, Integer> a, Map.Entry<List<Field>, Integer> b) {
+                return b.getValue() - a.getValue();
+            }
+        });
+        boolean allCommon = counts.size() <= MAX_MCVS;
+        double threshold = MCV_FACTOR * n / Math.max(1, counts.size());
+        for (int k = 0; k < byCount.size() && k < MAX_MCVS; k++) {
+            int c = byCount.get(k).getValue();
+            if (!allCommon && (c <= threshold || c < 2)) {
+                break;
+            }
+            this.mcvs.put(byCount.get(k).getKey(), c * weight);
+        }
+
+        // the ranges and cells cover the rows that aren't common
+        ArrayList<Field> rest1 = new ArrayList<Field>();
+        ArrayList<Field> rest2 = new ArrayList<Field>();
+        for (int i = 0; i < n; i++) {
+            if (!this.mcvs.containsKey(Arrays.asList(sample1[i], sample2[i]))) {
+                rest1.add(sample1[i]);
+                rest2.add(sample2[i]);
+            }
+        }
+        this.axis1 = new Axis(rest1.toArray(new Field[0]), RANGES, ndv1);
+        this.axis2 = new Axis(rest2.toArray(new Field[0]), RANGES, ndv2);
+        this.cells = new double[this.axis1.size()][this.axis2.size()];
+        for (int i = 0; i < rest1.size(); i++) {
+            this.cells[this.axis1.rangeOf(rest1.get(i))][this.axis2.rangeOf(rest2.get(i))] += weight;
+        }
+    }
+
+    private ColumnPairStats(int field1, int field2) {
+        this.field1 = field1;
+        this.field2 = field2;
+    }
+
+    /** @return the first column */
+    public int field1() {
+        return this.field1;
+    }
+
+    /** @return the second column */
+    public int field2() {
+        return this.field2;
+    }
+
+    /** @return the estimated number of distinct combinations of the columns' values */
+    public double estimateDistinct() {
+        return Math.max(1.0, Math.min(this.sketch.estimate(), this.total));
+    }
+
+    /**
+     * @return the fraction of rows with exactly these values, if they are
+     *         one of the common combinations; otherwise -1
+     */
+    public double commonFraction(Field v1, Field v2) {
+        Double c = this.mcvs.get(Arrays.asList(v1, v2));
+        if (c == null || this.total == 0) {
+            return -1.0;
+        }
+        return c / this.total;
+    }
+
+    /**
+     * Estimate the selectivity of <tt>field1 op1 c1 AND field2 op2 c2</tt>
+     * from the common combinations and the cells, assuming independence
+     * only within a cell.
+     */
+    public double estimateSelectivity(Predicate.Op op1, Field c1, Predicate.Op op2, Field c2) {
+        if (this.total == 0) {
+            return 0.0;
+        }
+        double rows = 0.0;
+        for (Map.Entry<List<Field>, Double> e : this.mcvs.entrySet()) {
+            if (e.getKey().get(0).compare(op1, c1) && e.getKey().get(1).compare(op2, c2)) {
+                rows += e.getValue();
+            }
+        }
+        double[] f2 = new double[this.axis2.size()];
+        for (int j = 0; j < f2.length; j++) {
+            f2[j] = this.axis2.fraction(j, op2, c2);
+        }
+        for (int i = 0; i < this.cells.length; i++) {
+            double f1 = this.axis1.fraction(i, op1, c1);
+            if (f1 == 0.0) {
+                continue;
+            }
+            for (int j = 0; j < f2.length; j++) {
+                rows += this.cells[i][j] * f1 * f2[j];
+            }
+        }
+        return Math.max(0.0, Math.min(1.0, rows / this.total));
+    }
+
+    /** Count a row added to the table. */
+    public void addValues(Field v1, Field v2) {
+        this.sketch.add(v1, v2);
+        this.total++;
+        List<Field> key = Arrays.asList(v1, v2);
+        Double c = this.mcvs.get(key);
+        if (c != null) {
+            this.mcvs.put(key, c + 1);
+        } else {
+            int r1 = this.place(this.axis1, v1, true);
+            int r2 = this.place(this.axis2, v2, false);
+            this.cells[r1][r2]++;
+        }
+    }
+
+    // the range of axis for v, adding a range (and its cells) for it if
+    // it is outside all of them
+    private int place(Axis axis, Field v, boolean first) {
+        int r = axis.rangeOf(v);
+        if (r >= 0) {
+            return r;
+        }
+        int before = axis.size();
+        r = axis.extend(v);
+        if (axis.size() == before) {
+            return r;
+        }
+        int at = r;
+        if (first) {
+            double[][] grown = new double[this.cells.length + 1][];
+            for (int i = 0, k = 0; i < grown.length; i++) {
+                grown[i] = i == at ? new double[this.axis2.size()] : this.cells[k++];
+            }
+            this.cells = grown;
+        } else {
+            for (int i = 0; i < this.cells.length; i++) {
+                double[] grown = new double[this.cells[i].length + 1];
+                for (int j = 0, k = 0; j < grown.length; j++) {
+                    grown[j] = j == at ? 0.0 : this.cells[i][k++];
+                }
+                this.cells[i] = grown;
+            }
+        }
+        return r;
+    }
+
+    /** Take out a row deleted from the table. */
+    public void removeValues(Field v1, Field v2) {
+        this.total = Math.max(0.0, this.total - 1);
+        List<Field> key = Arrays.asList(v1, v2);
+        Double c = this.mcvs.get(key);
+        if (c != null) {
+            this.mcvs.put(key, Math.max(0.0, c - 1));
+            return;
+        }
+        int i = this.axis1.rangeOf(v1), j = this.axis2.rangeOf(v2);
+        if (i >= 0 && j >= 0) {
+            this.cells[i][j] = Math.max(0.0, this.cells[i][j] - 1);
+        }
+    }
+
+    /** Write the statistics out, for {@link #read} to load them again. */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.field1);
+        out.writeInt(this.field2);
+        this.sketch.write(out);
+        out.writeInt(this.mcvs.size());
+        for (Map.Entry<List<Field>, Double> e : this.mcvs.entrySet()) {
+            e.getKey().get(0).serialize(out);
+            e.getKey().get(1).serialize(out);
+            out.writeDouble(e.getValue());
+        }
+        this.axis1.write(out);
+        this.axis2.write(out);
+        for (double[] row : this.cells) {
+            for (double c : row) {
+                out.writeDouble(c);
+            }
+        }
+        out.writeDouble(this.total);
+    }
+
+    /**
+     * Read back statistics written by {@link #write}.
+     *
+     * @param td the table's tuple descriptor, for the columns' types
+     */
+    public static ColumnPairStats read(DataInputStream in, TupleDesc td) throws IOException {
+        ColumnPairStats s = new ColumnPairStats(in.readInt(), in.readInt());
+        Type t1 = td.getFieldType(s.field1), t2 = td.getFieldType(s.field2);
+        s.sketch = HyperLogLog.read(in);
+        try {
+            int common = in.readInt();
+            for (int k = 0; k < common; k++) {
+                Field v1 = t1.parse(in);
+                Field v2 = t2.parse(in);
+                s.mcvs.put(Arrays.asList(v1, v2), in.readDouble());
+            }
+            s.axis1 = Axis.read(in, t1);
+            s.axis2 = Axis.read(in, t2);
+        } catch (ParseException e) {
+            throw new IOException("bad column pair value: " + e.getMessage());
+        }
+        s.cells = new double[s.axis1.size()][s.axis2.size()];
+        for (double[] row : s.cells) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = in.readDouble();
+            }
+        }
+        s.total = in.readDouble();
+        return s;
+    }
+
+    /**
+     * One column's values split into ranges of about equal numbers of
+     * rows, as EquiDepthHistogram splits them into buckets.
+     */
+    static class Axis {
+        // range r is the values lo[r] to hi[r], distinct[r] of them
+        private Field[] lo;
+        private Field[] hi;
+        private double[] distinct;
+
+        private Axis() {
+        }
+
+        Axis(Field[] values, int ranges, double ndv) {
+            Arrays.sort(values, EquiDepthHistogram.ORDER);
+            int sampleDistinct = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (i == 0 || !values[i].equals(values[i - 1])) {
+                    sampleDistinct++;
+                }
+            }
+            double scale = ndv > sampleDistinct && sampleDistinct > 0 ? ndv / sampleDistinct : 1.0;
+            ArrayList<Field> los = new ArrayList<Field>();
+            ArrayList<Field> his = new ArrayList<Field>();
+            ArrayList<Double> distincts = new ArrayList<Double>();
+            double depth = (double) values.length / ranges;
+            int inRange = 0;
+            for (int i = 0; i < values.length; i++) {
+                boolean newValue = i == 0 || !values[i].equals(values[i - 1]);
+                // close the range before a new value once it is deep enough
+                if (newValue && inRange > 0 && i >= depth * (los.size())) {
+                    his.add(values[i - 1]);
+                    distincts.add(inRange * scale);
+                    inRange = 0;
+                }
+                if (newValue) {
+                    if (inRange == 0) {
+                        los.add(values[i]);
+                    }
+                    inRange++;
+                }
+            }
+            if (inRange > 0) {
+                his.add(values[values.length - 1]);
+                distincts.add(inRange * scale);
+            }
+            if (los.isEmpty()) {
+                // nothing but common combinations; one empty range to add
+                // later rows to
+                this.lo = new Field[] { null };
+                this.hi = new Field[] { null };
+                this.distinct = new double[] { 0.0 };
+                return;
+            }
+            this.lo = los.toArray(new Field[0]);
+            this.hi = his.toArray(new Field[0]);
+            this.distinct = new double[distincts.size()];
+            for (int r = 0; r < this.distinct.length; r++) {
+                this.distinct[r] = distincts.get(r);
+            }
+        }
+
+        int size() {
+            return this.lo.length;
+        }
+
+        // the last range starting at or before v, or -1 if v is outside
+        // all of them
+        int rangeOf(Field v) {
+            if (this.lo[0] == null) {
+                return -1;
+            }
+            int low = 0, high = this.lo.length - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (this.lo[mid].compare(Predicate.Op.LESS_THAN_OR_EQ, v)) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found >= 0 && this.hi[this.hi.length - 1].compare(Predicate.Op.GREATER_THAN_OR_EQ, v)) {
+                return found;
+            }
+            return -1;
+        }
+
+        // a range for a value outside all of them: a new one of its own
+        // before or after the others, so it doesn't smear the rows of a
+        // far off value over everything in between.  Past twice the usual
+        // number of ranges (a column that keeps growing, say) the end range
+        // is widened instead, until the statistics are next rebuilt.
+        int extend(Field v) {
+            int last = this.lo.length - 1;
+            if (this.lo[0] == null) {
+                this.lo[0] = v;
+                this.hi[0] = v;
+                this.distinct[0] = 1.0;
+                return 0;
+            }
+            boolean below = v.compare(Predicate.Op.LESS_THAN, this.lo[0]);
+            if (this.lo.length >= 2 * RANGES) {
+                if (below) {
+                    this.lo[0] = v;
+                } else {
+                    this.hi[last] = v;
+                }
+                int r = below ? 0 : last;
+                this.distinct[r]++;
+                return r;
+            }
+            int at = below ? 0 : this.lo.length;
+            this.lo = insert(this.lo, at, v);
+            this.hi = insert(this.hi, at, v);
+            double[] d = new double[this.distinct.length + 1];
+            for (int r = 0, k = 0; r < d.length; r++) {
+                d[r] = r == at ? 1.0 : this.distinct[k++];
+            }
+            this.distinct = d;
+            return at;
+        }
+
+        private static Field[] insert(Field[] a, int at, Field v) {
+            Field[] b = new Field[a.length + 1];
+            for (int r = 0, k = 0; r < b.length; r++) {
+                b[r] = r == at ? v : a[k++];
+            }
+            return b;
+        }
+
+        // the fraction of range r's rows for which (value op c) holds,
+        // taking them to be spread evenly over its distinct values
+        double fraction(int r, Predicate.Op op, Field c) {
+            if (this.lo[r] == null) {
+                return 0.0;
+            }
+            boolean inside = this.lo[r].compare(Predicate.Op.LESS_THAN_OR_EQ, c)
+                    && this.hi[r].compare(Predicate.Op.GREATER_THAN_OR_EQ, c);
+            double eq = inside ? 1.0 / Math.max(1.0, this.distinct[r]) : 0.0;
+            double lt;
+            if (this.lo[r].compare(Predicate.Op.GREATER_THAN_OR_EQ, c)) {
+                lt = 0.0;
+            } else if (this.hi[r].compare(Predicate.Op.LESS_THAN, c)) {
+                lt = 1.0;
+            } else {
+                lt = EquiDepthHistogram.position(this.lo[r], this.hi[r], c);
+            }
+            double f;
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                f = eq;
+                break;
+            case NOT_EQUALS:
+                f = 1.0 - eq;
+                break;
+            case LESS_THAN:
+                f = lt;
+                break;
+            case LESS_THAN_OR_EQ:
+                f = lt + eq;
+                break;
+            case GREATER_THAN:
+                f = 1.0 - lt - eq;
+                break;
+            case GREATER_THAN_OR_EQ:
+                f = 1.0 - lt;
+                break;
+            default:
+                f = 1.0;
+            }
+            return Math.max(0.0, Math.min(1.0, f));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            boolean empty = this.lo[0] == null;
+            out.writeInt(empty ? 0 : this.lo.length);
+            if (empty) {
+                return;
+            }
+            for (int r = 0; r < this.lo.length; r++) {
+                this.lo[r].serialize(out);
+                this.hi[r].serialize(out);
+                out.writeDouble(this.distinct[r]);
+            }
+        }
+
+        static Axis read(DataInputStream in, Type type) throws IOException, ParseException {
+            Axis a = new Axis();
+            int ranges = in.readInt();
+            if (ranges == 0) {
+                a.lo = new Field[] { null };
+                a.hi = new Field[] { null };
+                a.distinct = new double[] { 0.0 };
+                return a;
+            }
+            a.lo = new Field[ranges];
+            a.hi = new Field[ranges];
+            a.distinct = new double[ranges];
+            for (int r = 0; r < ranges; r++) {
+                a.lo[r] = type.parse(in);
+                a.hi[r] = type.parse(in);
+                a.distinct[r] = in.readDouble();
+            }
+            return a;
+        }
+    }
+}
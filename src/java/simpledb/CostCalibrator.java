@@ -0,0 +1,201 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Measures the constants of the {@link CostModel} on the local machine
+ * with micro-benchmarks, and writes them to a file for the parser to load:
+ * <pre>
+ *   java -jar dist/simpledb.jar calibrate [outputFile] [pages]
+ * </pre>
+ * Each constant is the time of one operation divided by the time of
+ * applying a join predicate to a pair of tuples, the model's unit.  The
+ * hash join's work memory is set to half of the heap left free once the
+ * benchmarks are done, leaving the rest to the buffer pool and the other
+ * operators of a query.
+ *
+ * Page reads are timed on a scratch table of the given number of pages
+ * (4096 by default, 16MB), read in random order.  The operating system
+ * caches files it has just written, so unless the table is bigger than
+ * its memory this measures a read from that cache rather than the disk.
+ */
+public class CostCalibrator {
+
+    /** Pages in the scratch table read by default. */
+    static final int DEFAULT_PAGES = 4096;
+
+    // tuples of the in-memory benchmarks
+    private static final int TUPLES = 1000;
+
+    // benchmarks are repeated this often, and the fastest run kept, so
+    // the JIT compiler and garbage collector distort them less
+    private static final int ROUNDS = 5;
+
+    // where the benchmarks leave their results, so the work isn't optimized away
+    static volatile long sink;
+
+    public static void main(String[] args) throws IOException, DbException,
+            TransactionAbortedException {
+        File out = new File(args.length > 0 ? args[0] : CostModel.FILE_NAME);
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAGES;
+        calibrate(pages);
+        CostModel.save(out);
+        System.out.println("page read:  " + CostModel.getPageReadCost());
+        System.out.println("page hit:   " + CostModel.getPageHitCost());
+        System.out.println("hash tuple: " + CostModel.getHashTupleCost());
+        System.out.println("work memory: " + CostModel.getWorkMemory() + " bytes");
+        System.out.println("Wrote " + out);
+    }
+
+    /**
+     * Time each kind of operation and set the CostModel's constants from
+     * the results, and its work memory from the free heap.
+     *
+     * @param pages
+     *            the pages of the scratch table to time reads with
+     */
+    public static void calibrate(int pages) throws IOException, DbException,
+            TransactionAbortedException {
+        double predicate = predicateNanos();
+        double read = pageReadNanos(pages);
+        double hit = pageHitNanos();
+        double hash = hashNanos();
+        CostModel.setPageReadCost(read / predicate);
+        CostModel.setPageHitCost(hit / predicate);
+        CostModel.setHashTupleCost(hash / predicate);
+        CostModel.setWorkMemory(workMemoryBytes());
+    }
+
+    // half of the heap the JVM could still give out
+    static long workMemoryBytes() {
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return Math.max(1, free / 2);
+    }
+
+    private static Tuple[] tuples(int n) {
+        TupleDesc td = Utility.getTupleDesc(2);
+        Random r = new Random(0);
+        Tuple[] ts = new Tuple[n];
+        for (int i = 0; i < n; i++) {
+            ts[i] = new Tuple(td);
+            ts[i].setField(0, new IntField(r.nextInt(n)));
+            ts[i].setField(1, new IntField(i));
+        }
+        return ts;
+    }
+
+    // nanoseconds to apply a join predicate to a pair of tuples
+    static double predicateNanos() {
+        Tuple[] ts = tuples(TUPLES);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        double best = Double.MAX_VALUE;
+        long matches = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (Tuple a : ts) {
+                for (Tuple b : ts) {
+                    if (p.filter(a, b)) {
+                        matches++;
+                    }
+                }
+            }
+            best = Math.min(best, (double) (System.nanoTime() - start) / ((long) TUPLES * TUPLES));
+        }
+        sink += matches;
+        return best;
+    }
+
+    // nanoseconds to add a tuple to a hash table or probe it with one
+    static double hashNanos() {
+        Tuple[] ts = tuples(TUPLES * 100);
+        double best = Double.MAX_VALUE;
+        long matches = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            HashMap<Field, ArrayList<Tuple>> table = new HashMap<Field, ArrayList<Tuple>>();
+            for (Tuple t : ts) {
+                ArrayList<Tuple> l = table.get(t.getField(0));
+                if (l == null) {
+                    l = new ArrayList<Tuple>();
+                    table.put(t.getField(0), l);
+                }
+                l.add(t);
+            }
+            for (Tuple t : ts) {
+                ArrayList<Tuple> l = table.get(t.getField(0));
+                matches += l == null ? 0 : l.size();
+            }
+            best = Math.min(best, (double) (System.nanoTime() - start) / (2 * ts.length));
+        }
+        sink += matches;
+        return best;
+    }
+
+    // a table of empty pages, to time reads of
+    private static HeapFile scratchTable(int pages) throws IOException {
+        File f = File.createTempFile("calibrate", ".dat");
+        f.deleteOnExit();
+        byte[] empty = HeapPage.createEmptyPageData();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        try {
+            for (int i = 0; i < pages; i++) {
+                out.write(empty);
+            }
+        } finally {
+            out.close();
+        }
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+        return hf;
+    }
+
+    // nanoseconds to read a page from its file, in random order
+    static double pageReadNanos(int pages) throws IOException {
+        HeapFile hf = scratchTable(pages);
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < pages; i++) {
+            order.add(i);
+        }
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            Collections.shuffle(order, new Random(round));
+            long start = System.nanoTime();
+            for (int i : order) {
+                hf.readPage(new HeapPageId(hf.getId(), i));
+            }
+            best = Math.min(best, (double) (System.nanoTime() - start) / pages);
+        }
+        return best;
+    }
+
+    // nanoseconds to get a page that is already in the buffer pool
+    static double pageHitNanos() throws IOException, DbException, TransactionAbortedException {
+        int pages = Math.max(1, Database.getBufferPool().getMaxPages() / 2);
+        HeapFile hf = scratchTable(pages);
+        TransactionId tid = new TransactionId();
+        double best = Double.MAX_VALUE;
+        try {
+            for (int round = 0; round < ROUNDS + 1; round++) {
+                long start = System.nanoTime();
+                int gets = 0;
+                for (int k = 0; k < 100; k++) {
+                    for (int i = 0; i < pages; i++) {
+                        Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i),
+                                Permissions.READ_ONLY);
+                        gets++;
+                    }
+                }
+                // the first round reads the pages in
+                if (round > 0) {
+                    best = Math.min(best, (double) (System.nanoTime() - start) / gets);
+                }
+            }
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return best;
+    }
+}
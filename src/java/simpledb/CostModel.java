@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * The constants the optimizer's cost estimates are built from, and the
+ * cost formulas for scans and for each way {@link JoinOptimizer} can run a
+ * join.  Costs are in units of one predicate applied to one tuple; the
+ * defaults are rough guesses, which {@link CostCalibrator} replaces with
+ * measurements of the local machine.
+ */
+public class CostModel {
+
+    /** The file {@link CostCalibrator} writes, which the parser loads from the catalog's directory. */
+    public static final String FILE_NAME = "costmodel.properties";
+
+    // reading a page from disk
+    private static volatile double pageRead = TableStats.IOCOSTPERPAGE;
+    // getting a page that is already in the buffer pool
+    private static volatile double pageHit = 2.0;
+    // adding a tuple to a hash table or probing it with one
+    private static volatile double hashTuple = 3.0;
+    // the bytes a hash join may hold before it would have to spill
+    private static volatile long workMemory = defaultWorkMemory();
+
+    /**
+     * Bytes a tuple held in memory takes beyond the size of its fields on
+     * disk: the Tuple, its field objects and its entry in a hash table.
+     */
+    static final int TUPLE_OVERHEAD = 64;
+
+    /** @return the cost of reading a page from disk */
+    public static double getPageReadCost() {
+        return pageRead;
+    }
+
+    public static void setPageReadCost(double cost) {
+        pageRead = cost;
+    }
+
+    /** @return the cost of getting a page already in the buffer pool */
+    public static double getPageHitCost() {
+        return pageHit;
+    }
+
+    public static void setPageHitCost(double cost) {
+        pageHit = cost;
+    }
+
+    /** @return the cost of adding one tuple to a hash table, or probing it with one */
+    public static double getHashTupleCost() {
+        return hashTuple;
+    }
+
+    public static void setHashTupleCost(double cost) {
+        hashTuple = cost;
+    }
+
+    /**
+     * @return the bytes of input a hash join can hold in memory, as
+     *         counted by {@link #hashJoinBytes}
+     */
+    public static long getWorkMemory() {
+        return workMemory;
+    }
+
+    public static void setWorkMemory(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("work memory must be positive");
+        }
+        workMemory = bytes;
+    }
+
+    /** @return a quarter of the most memory the JVM will use */
+    static long defaultWorkMemory() {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * @return the bytes a hash join holds for an input of the given
+     *         number of tuples, each width bytes on disk
+     */
+    public static long hashJoinBytes(long tuples, int width) {
+        return tuples * (width + TUPLE_OVERHEAD);
+    }
+
+    /**
+     * The cost of scanning a table.
+     *
+     * @param pages
+     *            the table's pages
+     * @param cached
+     *            how many of them are in the buffer pool
+     * @param ioCostPerPage
+     *            the cost of reading one of the others from disk
+     */
+    public static double scanCost(int pages, int cached, double ioCostPerPage) {
+        cached = Math.max(0, Math.min(cached, pages));
+        return (pages - cached) * ioCostPerPage + cached * pageHit;
+    }
+
+    /**
+     * The cost of a nested loops join ({@link Join}): one pass over the
+     * outer input, and a pass over the inner for each outer tuple,
+     * comparing every pair.  The inner is only read from disk once if it is
+     * a table that fits in the buffer pool; otherwise each pass costs as
+     * much as the first (a scan bigger than the pool evicts its own pages
+     * before it comes back to them).
+     *
+     * @param innerPages
+     *            the pages of the inner input, if it is a stored table;
+     *            -1 if it is the result of another join
+     */
+    public static double nestedLoopsCost(int card1, int card2, double cost1, double cost2,
+            int innerPages) {
+        double rescan = cost2;
+        if (innerPages >= 0 && innerPages <= Database.getBufferPool().getMaxPages()) {
+            rescan = Math.min(cost2, innerPages * pageHit);
+        }
+        return cost1 + cost2 + Math.max(0, card1 - 1) * rescan + (double) card1 * card2;
+    }
+
+    /**
+     * The cost of a hash join ({@link HashEquiJoin}): each input is read
+     * once and every tuple hashed, by threads workers in parallel.  The
+     * join holds both inputs in memory; if they take more than
+     * {@link #getWorkMemory} (see {@link #hashJoinBytes}), their pages are
+     * charged as if written out in partitions and read back once, as a
+     * Grace hash join would.
+     *
+     * @param width1
+     *            bytes per tuple of the outer input
+     * @param width2
+     *            bytes per tuple of the inner input
+     */
+    public static double hashJoinCost(int card1, int card2, double cost1, double cost2,
+            int width1, int width2, int threads) {
+        double cost = cost1 + cost2 + ((double) card1 + card2) * hashTuple / Math.max(1, threads);
+        if (hashJoinBytes(card1, width1) + hashJoinBytes(card2, width2) > workMemory) {
+            double bytes = (double) card1 * width1 + (double) card2 * width2;
+            cost += 2 * Math.ceil(bytes / BufferPool.getPageSize()) * pageRead;
+        }
+        return cost;
+    }
+
+    /** Write the calibrated constants and the work memory to a file, for {@link #load}. */
+    public static void save(File f) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("pageRead", Double.toString(pageRead));
+        props.setProperty("pageHit", Double.toString(pageHit));
+        props.setProperty("hashTuple", Double.toString(hashTuple));
+        props.setProperty("workMemory", Long.toString(workMemory));
+        OutputStream out = new FileOutputStream(f);
+        try {
+            props.store(out, "SimpleDB cost model, in units of one predicate applied to one tuple");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read constants written by {@link #save}; any missing from the file
+     * keep their current values.
+     */
+    public static void load(File f) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(f);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            pageRead = Double.parseDouble(props.getProperty("pageRead", Double.toString(pageRead)));
+            pageHit = Double.parseDouble(props.getProperty("pageHit", Double.toString(pageHit)));
+            hashTuple = Double.parseDouble(props.getProperty("hashTuple", Double.toString(hashTuple)));
+            long memory = Long.parseLong(props.getProperty("workMemory", Long.toString(workMemory)));
+            if (memory <= 0) {
+                throw new NumberFormatException("workMemory must be positive");
+            }
+            workMemory = memory;
+        } catch (NumberFormatException e) {
+            throw new IOException("bad cost model file " + f + ": " + e.getMessage());
+        }
+    }
+
+    /** Put the constants back to their defaults. */
+    public static void reset() {
+        pageRead = TableStats.IOCOSTPERPAGE;
+        pageHit = 2.0;
+        hashTuple = 3.0;
+        workMemory = defaultWorkMemory();
+    }
+}
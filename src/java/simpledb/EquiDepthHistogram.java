@@ -0,0 +1,442 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * A histogram over a single field, of either type, built from a sample of
+ * its values.  The most common values are kept in a list with their exact
+ * frequencies in the sample; the other values are split into buckets that
+ * each hold about the same number of rows, so a skewed column gets narrow
+ * buckets where its values are dense instead of most of its rows landing
+ * in one fixed-width bucket.
+ *
+ * The counts are kept in rows, so inserted and deleted rows can be added
+ * and taken out as they happen; their values fall into the existing
+ * buckets, which stretch to take in values beyond either end.
+ */
+public class EquiDepthHistogram {
+
+    /** The most common values kept for a field. */
+    static final int MAX_MCVS = 100;
+
+    // a value is common if it is this many times more frequent than average
+    private static final double MCV_FACTOR = 1.25;
+
+    // the rows with each common value
+    private final HashMap<Field, Double> mcvs = new HashMap<Field, Double>();
+    private Field[] mcvValues;
+
+    // bucket b holds the values lo[b] to hi[b] (both present in the
+    // sample), which are rows[b] of the rows and distinct[b] different
+    // values
+    private Field[] lo;
+    private Field[] hi;
+    private double[] rows;
+    private double[] distinct;
+    private double total;
+
+    /**
+     * Build a histogram from a uniform sample of a field's values.
+     *
+     * @param sample
+     *            the sampled values; sorted in place
+     * @param n
+     *            how many of sample's entries to use
+     * @param buckets
+     *            the number of buckets for the values that are not common
+     * @param ndv
+     *            the estimated number of distinct values in the whole
+     *            column, or 0 to go by the sample alone; a sample misses
+     *            rare values, so the buckets are credited with their share
+     *            of the ones it missed
+     */
+    public EquiDepthHistogram(Field[] sample, int n, int buckets, double ndv) {
+        this(sample, n, buckets, ndv, n);
+    }
+
+    /**
+     * Build a histogram from a uniform sample of a field's values, for a
+     * table of the given number of rows.
+     *
+     * @param tableRows
+     *            the rows the sample was drawn from; each sampled value
+     *            stands for tableRows / n of them
+     * @see #EquiDepthHistogram(Field[], int, int, double)
+     */
+    public EquiDepthHistogram(Field[] sample, int n, int buckets, double ndv, double tableRows) {
+        Arrays.sort(sample, 0, n, ORDER);
+
+        // collapse the sorted sample into runs of equal values
+        ArrayList<Field> values = new ArrayList<Field>();
+        ArrayList<Integer> counts = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && sample[i].equals(sample[i - 1])) {
+                counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+            } else {
+                values.add(sample[i]);
+                counts.add(1);
+            }
+        }
+        this.build(values, counts, n, buckets, ndv, tableRows);
+    }
+
+    /**
+     * Build a histogram from the number of rows with each value of a
+     * field, counted over the whole column.
+     *
+     * @param counts
+     *            the rows with each value
+     * @param buckets
+     *            the number of buckets for the values that are not common
+     */
+    public EquiDepthHistogram(Map<Field, Integer> counts, int buckets) {
+        ArrayList<Field> values = new ArrayList<Field>(counts.keySet());
+        Collections.sort(values, ORDER);
+        ArrayList<Integer> rowCounts = new ArrayList<Integer>();
+        int n = 0;
+        for (Field v : values) {
+            rowCounts.add(counts.get(v));
+            n += counts.get(v);
+        }
+        this.build(values, rowCounts, n, buckets, 0, n);
+    }
+
+    // build from the distinct values of n sampled rows, in order, and how
+    // many of the rows have each
+    private void build(ArrayList<Field> values, ArrayList<Integer> counts, int n, int buckets,
+            double ndv, double tableRows) {
+        double weight = n == 0 ? 0.0 : tableRows / n;
+        this.total = n == 0 ? 0.0 : tableRows;
+
+        // the most common values; all of them if there are few enough
+        Integer[] order = new Integer[values.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final ArrayList<Integer> c = counts;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return c.get(b) - c.get(a);
+            }
+        });
+        boolean allCommon = values.size() <= MAX_MCVS;
+        double threshold = MCV_FACTOR * n / Math.max(1, values.size());
+        boolean[] common = new boolean[values.size()];
+        int commonRows = 0;
+        for (int k = 0; k < order.length && k < MAX_MCVS; k++) {
+            int i = order[k];
+            if (!allCommon && (counts.get(i) <= threshold || counts.get(i) < 2)) {
+                break;
+            }
+            common[i] = true;
+            commonRows += counts.get(i);
+            this.mcvs.put(values.get(i), counts.get(i) * weight);
+        }
+        this.mcvValues = this.mcvs.keySet().toArray(new Field[0]);
+
+        // equi-depth buckets over the rest, split only between values
+        int rest = n - commonRows;
+        int restDistinct = values.size() - this.mcvs.size();
+        double scale = 1.0;
+        if (ndv > values.size() && restDistinct > 0) {
+            scale = (ndv - this.mcvs.size()) / restDistinct;
+        }
+        ArrayList<Field> los = new ArrayList<Field>();
+        ArrayList<Field> his = new ArrayList<Field>();
+        ArrayList<Double> bucketRows = new ArrayList<Double>();
+        ArrayList<Double> distincts = new ArrayList<Double>();
+        double depth = (double) rest / Math.max(1, buckets);
+        int last = values.size() - 1;
+        while (last >= 0 && common[last]) {
+            last--;
+        }
+        int seen = 0;
+        int inBucket = 0;
+        int valuesInBucket = 0;
+        for (int i = 0; i <= last; i++) {
+            if (common[i]) {
+                continue;
+            }
+            if (valuesInBucket == 0) {
+                los.add(values.get(i));
+            }
+            seen += counts.get(i);
+            inBucket += counts.get(i);
+            valuesInBucket++;
+            if (seen >= depth * (bucketRows.size() + 1) || i == last) {
+                his.add(values.get(i));
+                bucketRows.add(inBucket * weight);
+                distincts.add(valuesInBucket * scale);
+                inBucket = 0;
+                valuesInBucket = 0;
+            }
+        }
+        this.lo = los.toArray(new Field[0]);
+        this.hi = his.toArray(new Field[0]);
+        this.rows = new double[bucketRows.size()];
+        this.distinct = new double[distincts.size()];
+        for (int b = 0; b < this.rows.length; b++) {
+            this.rows[b] = bucketRows.get(b);
+            this.distinct[b] = distincts.get(b);
+        }
+    }
+
+    private EquiDepthHistogram() {
+    }
+
+    /** Write the histogram out, for {@link #read} to load it again. */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.mcvValues.length);
+        for (Field m : this.mcvValues) {
+            m.serialize(out);
+            out.writeDouble(this.mcvs.get(m));
+        }
+        out.writeInt(this.rows.length);
+        for (int b = 0; b < this.rows.length; b++) {
+            this.lo[b].serialize(out);
+            this.hi[b].serialize(out);
+            out.writeDouble(this.rows[b]);
+            out.writeDouble(this.distinct[b]);
+        }
+        out.writeDouble(this.total);
+    }
+
+    /**
+     * Read back a histogram written by {@link #write}.
+     *
+     * @param type the type of the field the histogram is over
+     */
+    public static EquiDepthHistogram read(DataInputStream in, Type type) throws IOException {
+        EquiDepthHistogram h = new EquiDepthHistogram();
+        try {
+            int common = in.readInt();
+            for (int i = 0; i < common; i++) {
+                Field m = type.parse(in);
+                h.mcvs.put(m, in.readDouble());
+            }
+            h.mcvValues = h.mcvs.keySet().toArray(new Field[0]);
+            int buckets = in.readInt();
+            h.lo = new Field[buckets];
+            h.hi = new Field[buckets];
+            h.rows = new double[buckets];
+            h.distinct = new double[buckets];
+            for (int b = 0; b < buckets; b++) {
+                h.lo[b] = type.parse(in);
+                h.hi[b] = type.parse(in);
+                h.rows[b] = in.readDouble();
+                h.distinct[b] = in.readDouble();
+            }
+        } catch (ParseException e) {
+            throw new IOException("bad histogram value: " + e.getMessage());
+        }
+        h.total = in.readDouble();
+        return h;
+    }
+
+    /** @return the number of most common values kept */
+    public int numCommonValues() {
+        return this.mcvs.size();
+    }
+
+    /** @return the number of buckets the other values were split into */
+    public int numBuckets() {
+        return this.rows.length;
+    }
+
+    /** Count a row with value v added to the column. */
+    public void addValue(Field v) {
+        this.total++;
+        Double common = this.mcvs.get(v);
+        if (common != null) {
+            this.mcvs.put(v, common + 1);
+            return;
+        }
+        int b = this.bucketOf(v);
+        if (b < 0) {
+            b = this.stretchTo(v);
+        }
+        this.rows[b]++;
+    }
+
+    /** Take out a row with value v deleted from the column. */
+    public void removeValue(Field v) {
+        this.total = Math.max(0.0, this.total - 1);
+        Double common = this.mcvs.get(v);
+        if (common != null) {
+            this.mcvs.put(v, Math.max(0.0, common - 1));
+            return;
+        }
+        int b = this.bucketOf(v);
+        if (b >= 0) {
+            this.rows[b] = Math.max(0.0, this.rows[b] - 1);
+        }
+    }
+
+    // widen the first or last bucket, or make the first one, to take in
+    // a new value outside them; returns its bucket
+    private int stretchTo(Field v) {
+        int last = this.rows.length - 1;
+        if (last < 0) {
+            this.lo = new Field[] { v };
+            this.hi = new Field[] { v };
+            this.rows = new double[] { 0.0 };
+            this.distinct = new double[] { 1.0 };
+            return 0;
+        }
+        if (v.compare(Predicate.Op.LESS_THAN, this.lo[0])) {
+            this.lo[0] = v;
+            this.distinct[0]++;
+            return 0;
+        }
+        this.hi[last] = v;
+        this.distinct[last]++;
+        return last;
+    }
+
+    /**
+     * Estimate the selectivity of a predicate over the field.  LIKE is
+     * estimated as EQUALS, as IntHistogram does.
+     *
+     * @param op
+     *            The operation being applied
+     * @param v
+     *            The value to apply op to
+     * @return the estimated fraction of rows that satisfy the predicate
+     */
+    public double estimateSelectivity(Predicate.Op op, Field v) {
+        double eq = this.estimateEq(v);
+        double lt = this.estimateLt(v);
+        double s;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            s = eq;
+            break;
+        case NOT_EQUALS:
+            s = 1.0 - eq;
+            break;
+        case LESS_THAN:
+            s = lt;
+            break;
+        case LESS_THAN_OR_EQ:
+            s = lt + eq;
+            break;
+        case GREATER_THAN:
+            s = 1.0 - lt - eq;
+            break;
+        case GREATER_THAN_OR_EQ:
+            s = 1.0 - lt;
+            break;
+        default:
+            s = 1.0;
+        }
+        return Math.max(0.0, Math.min(1.0, s));
+    }
+
+    // the fraction of rows equal to v
+    private double estimateEq(Field v) {
+        if (this.total == 0) {
+            return 0.0;
+        }
+        Double common = this.mcvs.get(v);
+        if (common != null) {
+            return common / this.total;
+        }
+        int b = this.bucketOf(v);
+        if (b < 0) {
+            return 0.0;
+        }
+        return this.rows[b] / Math.max(1.0, this.distinct[b]) / this.total;
+    }
+
+    // the fraction of rows less than v, assuming the rows of a bucket are
+    // spread evenly between its bounds
+    private double estimateLt(Field v) {
+        if (this.total == 0) {
+            return 0.0;
+        }
+        double s = 0.0;
+        for (Field m : this.mcvValues) {
+            if (m.compare(Predicate.Op.LESS_THAN, v)) {
+                s += this.mcvs.get(m);
+            }
+        }
+        for (int b = 0; b < this.rows.length; b++) {
+            if (this.hi[b].compare(Predicate.Op.LESS_THAN, v)) {
+                s += this.rows[b];
+            } else if (this.lo[b].compare(Predicate.Op.LESS_THAN, v)) {
+                s += this.rows[b] * position(this.lo[b], this.hi[b], v);
+            } else {
+                break;
+            }
+        }
+        return s / this.total;
+    }
+
+    // the last bucket starting at or before v, or -1 if v is outside all
+    // of them; a value between two buckets is one the sample missed, and
+    // is taken to be as rare as those in the bucket before it
+    private int bucketOf(Field v) {
+        int low = 0, high = this.rows.length - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (this.lo[mid].compare(Predicate.Op.LESS_THAN_OR_EQ, v)) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found >= 0 && this.hi[this.hi.length - 1].compare(Predicate.Op.GREATER_THAN_OR_EQ, v)) {
+            return found;
+        }
+        return -1;
+    }
+
+    /**
+     * How far v, which is after lo and no further than hi, is into the
+     * range from lo to hi: the fraction of the range's values below it.
+     */
+    static double position(Field lo, Field hi, Field v) {
+        if (v instanceof IntField) {
+            long l = ((IntField) lo).getValue();
+            long h = ((IntField) hi).getValue();
+            long x = ((IntField) v).getValue();
+            return (double) (x - l) / (h - l + 1);
+        }
+        String l = ((StringField) lo).getValue();
+        String h = ((StringField) hi).getValue();
+        String x = ((StringField) v).getValue();
+        // only the characters after the prefix the range shares matter
+        int p = 0;
+        while (p < l.length() && p < h.length() && l.charAt(p) == h.charAt(p)) {
+            p++;
+        }
+        double dl = chars(l, p), dh = chars(h, p), dx = chars(x, p);
+        if (dh <= dl) {
+            return 0.5;
+        }
+        return Math.max(0.0, Math.min(1.0, (dx - dl) / (dh - dl)));
+    }
+
+    // the three characters of s from p on, as a number that sorts like them
+    private static double chars(String s, int p) {
+        double d = 0;
+        for (int i = p; i < p + 3; i++) {
+            d = d * 65536 + (i < s.length() ? s.charAt(i) : 0);
+        }
+        return d;
+    }
+
+    /** Sorts fields by value. */
+    static final Comparator<Field> ORDER = new Comparator<Field>() {
+        public int compare(Field a, Field b) {
+            if (a.compare(Predicate.Op.LESS_THAN, b)) {
+                return -1;
+            }
+            return a.equals(b) ? 0 : 1;
+        }
+    };
+}
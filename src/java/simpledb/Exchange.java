@@ -0,0 +1,282 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Exchange is the base of the operators that move tuples between threads
+ * for intra-query parallelism.  One exchange has a set of input plans,
+ * each run to completion by its own producer thread, and a consumer that
+ * reads what they produce from a bounded queue; {@link Gather} is the one
+ * kind there is.  Parallel joins and aggregations don't need to move
+ * tuples between partitions: {@link HashEquiJoin} partitions its inputs
+ * itself, and {@link Aggregate} aggregates a Gather's inputs separately.
+ *
+ * Producers all run as part of the query's transaction, so page locks are
+ * taken just as if the inputs ran in the calling thread.  A producer
+ * waits while the queue is full, and the consumer while it is empty,
+ * until the other side signals it.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Tuples the consumer's queue holds before producers wait. */
+    static final int RING_SIZE = 1024;
+
+    // marks the end of one producer's output on each queue
+    static final Tuple DONE = new Tuple(new TupleDesc(new Type[] { Type.INT_TYPE }));
+
+    // shared by all exchanges; threads are daemons so they never keep the
+    // JVM alive
+    static final ExecutorService workerPool = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Exchange-producer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private String name;
+
+    protected Exchange(String name) {
+        this.name = name;
+    }
+
+    /** @return the name the query plan visualizer shows for this operator */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * A bounded queue of tuples that any number of threads can add to and
+     * take from without locking.  Each slot carries a sequence number
+     * saying whether it is ready to be filled or to be emptied on the
+     * current lap around the array; threads claim a slot by advancing
+     * head or tail with compare-and-set.  A thread that finds the queue
+     * full or empty waits on the queue's monitor, and is notified by the
+     * next thread that takes or adds a tuple.
+     */
+    static final class TupleRing {
+        private final Tuple[] items;
+        private final AtomicLongArray seq;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        // threads waiting on this queue; only changed holding its monitor
+        volatile int waiting;
+
+        /** @param capacity the number of slots; must be a power of two */
+        TupleRing(int capacity) {
+            this.items = new Tuple[capacity];
+            this.seq = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                this.seq.set(i, i);
+            }
+        }
+
+        /** @return false if the queue is full */
+        boolean offer(Tuple t) {
+            long pos = this.tail.get();
+            while (true) {
+                int i = (int) pos & this.mask;
+                long dif = this.seq.get(i) - pos;
+                if (dif == 0) {
+                    if (this.tail.compareAndSet(pos, pos + 1)) {
+                        this.items[i] = t;
+                        this.seq.set(i, pos + 1);
+                        return true;
+                    }
+                    pos = this.tail.get();
+                } else if (dif < 0) {
+                    return false;
+                } else {
+                    pos = this.tail.get();
+                }
+            }
+        }
+
+        /**
+         * Wake the threads waiting on this queue, if there are any.  A
+         * waiter counts itself before it looks at the queue a last time,
+         * and the caller has just changed the queue, so one of them sees
+         * what the other did.
+         */
+        void signal() {
+            if (this.waiting > 0) {
+                wake();
+            }
+        }
+
+        /** Wake the threads waiting on this queue. */
+        synchronized void wake() {
+            this.notifyAll();
+        }
+
+        /** @return the oldest tuple, or null if the queue is empty */
+        Tuple poll() {
+            long pos = this.head.get();
+            while (true) {
+                int i = (int) pos & this.mask;
+                long dif = this.seq.get(i) - (pos + 1);
+                if (dif == 0) {
+                    if (this.head.compareAndSet(pos, pos + 1)) {
+                        Tuple t = this.items[i];
+                        this.items[i] = null;
+                        this.seq.set(i, pos + this.mask + 1);
+                        return t;
+                    }
+                    pos = this.head.get();
+                } else if (dif < 0) {
+                    return null;
+                } else {
+                    pos = this.head.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * The producer side of one exchange.  Producers start when the
+     * consumer opens and are stopped when it closes.
+     */
+    static final class Producers {
+        OpIterator[] inputs;
+        TupleRing ring;
+        private ArrayList<Future<?>> running;
+        private volatile boolean closed;
+        private volatile Exception failure;
+
+        Producers(OpIterator[] inputs) {
+            this.inputs = inputs;
+        }
+
+        /**
+         * Add t to the queue, waiting while it is full.  Drops t once the
+         * consumer is closed or a producer has failed.
+         */
+        void put(Tuple t) throws InterruptedException {
+            TupleRing ring = this.ring;
+            if (!ring.offer(t)) {
+                synchronized (ring) {
+                    ring.waiting++;
+                    try {
+                        while (!ring.offer(t)) {
+                            if (this.closed || this.failure != null) {
+                                return;
+                            }
+                            ring.wait();
+                        }
+                    } finally {
+                        ring.waiting--;
+                    }
+                }
+            }
+            ring.signal();
+        }
+
+        /**
+         * Take the oldest tuple off the queue, waiting while it is empty.
+         *
+         * @throws DbException if a producer failed, or the wait was
+         *         interrupted
+         */
+        Tuple take() throws DbException, TransactionAbortedException {
+            TupleRing ring = this.ring;
+            Tuple t = ring.poll();
+            if (t == null) {
+                synchronized (ring) {
+                    ring.waiting++;
+                    try {
+                        while ((t = ring.poll()) == null) {
+                            // a producer that failed may send no DONE
+                            rethrow();
+                            ring.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new DbException("interrupted while waiting for an exchange producer");
+                    } finally {
+                        ring.waiting--;
+                    }
+                }
+            }
+            ring.signal();
+            return t;
+        }
+
+        void start() {
+            this.closed = false;
+            this.failure = null;
+            this.ring = new TupleRing(RING_SIZE);
+            this.running = new ArrayList<Future<?>>();
+            for (final OpIterator in : this.inputs) {
+                this.running.add(workerPool.submit(new Runnable() {
+                    public void run() {
+                        produce(in);
+                    }
+                }));
+            }
+        }
+
+        void stop() {
+            if (this.running == null) {
+                return;
+            }
+            this.closed = true;
+            this.ring.wake();
+            for (Future<?> f : this.running) {
+                try {
+                    f.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    // the producer is gone either way
+                }
+            }
+            this.running = null;
+            this.ring = null;
+        }
+
+        private void produce(OpIterator in) {
+            try {
+                in.open();
+                while (!this.closed && in.hasNext()) {
+                    put(in.next());
+                }
+            } catch (Exception e) {
+                fail(e);
+            } finally {
+                in.close();
+                try {
+                    put(DONE);
+                } catch (InterruptedException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void fail(Exception e) {
+            if (this.failure == null) {
+                this.failure = e;
+            }
+            // the consumer may be waiting for a tuple that won't come
+            this.ring.wake();
+        }
+
+        /** Pass on the first error a producer ran into, if any. */
+        void rethrow() throws DbException, TransactionAbortedException {
+            Exception e = this.failure;
+            if (e == null) {
+                return;
+            }
+            if (e instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) e;
+            }
+            if (e instanceof DbException) {
+                throw (DbException) e;
+            }
+            throw new DbException("exchange producer failed: " + e);
+        }
+    }
+}
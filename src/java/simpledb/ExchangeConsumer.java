@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The consumer side of an {@link Exchange}: returns the tuples the
+ * exchange's producers put on its queue, in the order they arrive, until
+ * every producer is done.
+ *
+ * The tuples are not kept, so a consumer used once holds no more than its
+ * queue.  The first rewind() runs the inputs again, and from then on the
+ * consumer keeps its tuples, so later rewinds replay them.  A nested loops
+ * join, which rewinds its inner input for every outer tuple, asks for them
+ * to be kept from the start instead, see {@link #setSpooled}.
+ */
+public abstract class ExchangeConsumer extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private Exchange.Producers producers;
+
+    private boolean opened;
+    private int finished;
+    private boolean spooled;
+    private ArrayList<Tuple> spool;
+    private boolean drained;
+    private int replayPos;
+
+    /**
+     * @param name
+     *            the name shown by the query plan visualizer
+     * @param producers
+     *            the exchange's producer side
+     */
+    protected ExchangeConsumer(String name, Exchange.Producers producers) {
+        super(name);
+        this.producers = producers;
+    }
+
+    /**
+     * Keep every tuple returned from open() on, so that rewind() can
+     * replay them.  Takes effect at the next open().
+     *
+     * @param spooled true to keep the tuples
+     */
+    public void setSpooled(boolean spooled) {
+        this.spooled = spooled;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.producers.inputs[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        this.finished = 0;
+        this.spool = this.spooled ? new ArrayList<Tuple>() : null;
+        this.drained = false;
+        this.replayPos = -1;
+        this.producers.start();
+        this.opened = true;
+    }
+
+    public void close() {
+        super.close();
+        if (this.opened) {
+            this.producers.stop();
+            this.opened = false;
+        }
+        this.spool = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (this.spool != null) {
+            while (!this.drained) {
+                this.receive();
+            }
+            this.replayPos = 0;
+        } else {
+            // run the inputs again, and keep their tuples this time
+            this.producers.stop();
+            this.producers.start();
+            this.finished = 0;
+            this.drained = false;
+            this.spool = new ArrayList<Tuple>();
+        }
+        // drop whatever Operator had already fetched
+        super.close();
+        super.open();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (this.replayPos >= 0) {
+            return this.replayPos < this.spool.size() ? this.spool.get(this.replayPos++) : null;
+        }
+        return this.receive();
+    }
+
+    // take the next tuple off the queue, or null once all producers are done
+    private Tuple receive() throws DbException, TransactionAbortedException {
+        while (this.finished < this.producers.inputs.length) {
+            Tuple t = this.producers.take();
+            if (t != DONE) {
+                if (this.spool != null) {
+                    this.spool.add(t);
+                }
+                return t;
+            }
+            this.finished++;
+            this.producers.rethrow();
+        }
+        this.drained = true;
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return this.producers.inputs;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.producers.inputs = children;
+    }
+}
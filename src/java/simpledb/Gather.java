@@ -0,0 +1,20 @@
+package simpledb;
+
+/**
+ * Gather runs each of its inputs in its own thread and returns all of
+ * their tuples, in no particular order.  It is the exchange that puts the
+ * partitions of a parallel plan back together.
+ */
+public class Gather extends ExchangeConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param inputs
+     *            the plans to run in parallel; they must all return tuples
+     *            with the same TupleDesc
+     */
+    public Gather(OpIterator[] inputs) {
+        super("gather(" + inputs.length + ")", new Exchange.Producers(inputs));
+    }
+}
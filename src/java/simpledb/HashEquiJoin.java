@@ -1,14 +1,63 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation.  This one
+ * is a parallel radix hash join for equality predicates: both inputs are
+ * split by the hash of their join field into partitions small enough for
+ * one partition's hash table to stay in cache.  The partitions are then
+ * joined one after another as the join's tuples are asked for: a pool of
+ * workers builds the hash tables of the next few partitions at once, and
+ * each probe tuple's matches are returned as they are found, so the join's
+ * result is never held in memory.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Build tuples a partition is sized to hold, to keep its table in cache. */
+    static final int PARTITION_TUPLES = 4096;
+
+    // more partitions than this cost more in bookkeeping than they save
+    private static final int MAX_RADIX_BITS = 12;
+
+    private JoinPredicate predicate;
+    private OpIterator child1;
+    private OpIterator child2;
+    private int workers;
+
+    // skew of the last run: the number of partitions and the largest and
+    // total number of (build and probe) tuples in them
+    private int partitions;
+    private int largestPartition;
+    private int partitionedTuples;
+    // the bytes the inputs of the last run took, as the cost model counts them
+    private long memoryUsed;
+
+    // the partitioned inputs; partition p is build[buildBounds[p]] to
+    // build[buildBounds[p + 1] - 1], and likewise for probe
+    private transient Tuple[] build;
+    private transient Tuple[] probe;
+    private transient int[] buildBounds;
+    private transient int[] probeBounds;
+    private int buildField;
+    private int probeField;
+    private boolean buildRight;
+    private transient TupleDesc td;
+
+    // where fetchNext is: the hash tables of partitions tablesStart on,
+    // the partition being probed, the next probe tuple in it, and the
+    // current probe tuple's matches not yet returned
+    private transient ArrayList<HashMap<Field, ArrayList<Tuple>>> tables;
+    private int tablesStart;
+    private int part;
+    private int probePos;
+    private transient Tuple probeTuple;
+    private transient ArrayList<Tuple> matches;
+    private int matchPos;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -21,46 +70,153 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
-        // some code goes here
+        this(p, child1, child2, 1);
+    }
+
+    /**
+     * Constructor for a join that partitions, builds and probes with
+     * several threads.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param workers
+     *            the number of worker threads
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int workers) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("HashEquiJoin only joins on equality");
+        }
+        this.predicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.workers = Math.max(1, workers);
     }
 
     public JoinPredicate getJoinPredicate() {
-        // some code goes here
-        return null;
+        return this.predicate;
     }
 
     public TupleDesc getTupleDesc() {
-        // some code goes here
-        return null;
+        return TupleDesc.merge(this.child1.getTupleDesc(), this.child2.getTupleDesc());
     }
 
     public String getJoinField1Name()
     {
-        // some code goes here
-	return null;
+        return this.child1.getTupleDesc().getFieldName(this.predicate.getField1());
     }
 
     public String getJoinField2Name()
     {
-        // some code goes here
-        return null;
+        return this.child2.getTupleDesc().getFieldName(this.predicate.getField2());
+    }
+
+    /** @return the number of radix partitions the last run used */
+    public int getPartitions() {
+        return this.partitions;
+    }
+
+    /** @return the number of tuples, from both inputs, in the largest partition */
+    public int getLargestPartition() {
+        return this.largestPartition;
+    }
+
+    /**
+     * @return how unevenly the join keys spread over the partitions: the
+     *         largest partition divided by the average one, so 1.0 means
+     *         perfectly even and partitions times that much means all the
+     *         tuples landed in one partition
+     */
+    public double getSkew() {
+        if (this.partitionedTuples == 0) {
+            return 1.0;
+        }
+        return (double) this.largestPartition * this.partitions / this.partitionedTuples;
+    }
+
+    /**
+     * @return the bytes the last run held its inputs in, counted as
+     *         {@link CostModel#hashJoinBytes} does
+     */
+    public long getMemoryUsed() {
+        return this.memoryUsed;
+    }
+
+    /**
+     * @return true if the last run held more than
+     *         {@link CostModel#getWorkMemory}, the memory the cost model
+     *         assumed it would fit in.  The join does not spill: it keeps
+     *         its inputs in memory regardless, and the plan was costed as
+     *         if they had been written out.
+     */
+    public boolean exceededWorkMemory() {
+        return this.memoryUsed > CostModel.getWorkMemory();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        // some code goes here
+        super.open();
+        this.child1.open();
+        this.child2.open();
+        this.td = this.getTupleDesc();
+        Tuple[] left = drain(this.child1);
+        Tuple[] right = drain(this.child2);
+        this.memoryUsed = CostModel.hashJoinBytes(left.length, this.child1.getTupleDesc().getSize())
+                + CostModel.hashJoinBytes(right.length, this.child2.getTupleDesc().getSize());
+
+        // build on the smaller input
+        this.buildRight = right.length <= left.length;
+        Tuple[] build = this.buildRight ? right : left;
+        Tuple[] probe = this.buildRight ? left : right;
+        this.buildField = this.buildRight ? this.predicate.getField2() : this.predicate.getField1();
+        this.probeField = this.buildRight ? this.predicate.getField1() : this.predicate.getField2();
+
+        int bits = radixBits(build.length);
+        this.buildBounds = new int[(1 << bits) + 1];
+        this.probeBounds = new int[(1 << bits) + 1];
+        this.build = this.partition(build, this.buildField, bits, this.buildBounds);
+        this.probe = this.partition(probe, this.probeField, bits, this.probeBounds);
+
+        this.partitions = 1 << bits;
+        this.largestPartition = 0;
+        this.partitionedTuples = build.length + probe.length;
+        for (int p = 0; p < this.partitions; p++) {
+            int size = this.buildBounds[p + 1] - this.buildBounds[p]
+                    + this.probeBounds[p + 1] - this.probeBounds[p];
+            this.largestPartition = Math.max(this.largestPartition, size);
+        }
+        this.restart();
+    }
+
+    // go back to before the first partition
+    private void restart() {
+        this.tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>();
+        this.tablesStart = 0;
+        this.part = -1;
+        this.probePos = 0;
+        this.matches = null;
     }
 
     public void close() {
-        // some code goes here
+        this.child1.close();
+        this.child2.close();
+        this.build = null;
+        this.probe = null;
+        this.tables = null;
+        this.matches = null;
+        super.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
+        // the inputs are already partitioned; just join them again
+        this.restart();
+        super.close();
+        super.open();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -80,19 +236,206 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        return null;
+        if (this.build == null) {
+            return null;
+        }
+        while (true) {
+            if (this.matches != null && this.matchPos < this.matches.size()) {
+                Tuple m = this.matches.get(this.matchPos++);
+                return this.buildRight ? merge(this.td, this.probeTuple, m) : merge(this.td, m, this.probeTuple);
+            }
+            if (this.part >= 0 && this.probePos < this.probeBounds[this.part + 1]) {
+                this.probeTuple = this.probe[this.probePos++];
+                HashMap<Field, ArrayList<Tuple>> table = this.tables.get(this.part - this.tablesStart);
+                this.matches = table.get(this.probeTuple.getField(this.probeField));
+                this.matchPos = 0;
+                continue;
+            }
+            this.matches = null;
+            if (++this.part >= this.partitions) {
+                return null;
+            }
+            this.probePos = this.probeBounds[this.part];
+            if (this.part - this.tablesStart >= this.tables.size()) {
+                this.buildTables(this.part);
+            }
+        }
     }
 
     @Override
     public OpIterator[] getChildren() {
-        // some code goes here
-        return null;
+        OpIterator[] result = {this.child1, this.child2};
+        return result;
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
-        // some code goes here
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    private static Tuple[] drain(OpIterator child) throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while (child.hasNext()) {
+            tuples.add(child.next());
+        }
+        return tuples.toArray(new Tuple[tuples.size()]);
+    }
+
+    /** The number of hash bits to partition on for a build input of n tuples. */
+    static int radixBits(int n) {
+        int bits = 0;
+        while (bits < MAX_RADIX_BITS && ((long) PARTITION_TUPLES << bits) < n) {
+            bits++;
+        }
+        return bits;
+    }
+
+    /** The partition a join key falls into, from the top bits of its hash. */
+    static int radix(Field f, int bits) {
+        if (bits == 0) {
+            return 0;
+        }
+        return (f.hashCode() * 0x9E3779B1) >>> (32 - bits);
+    }
+
+    /** A piece of parallel work; i says which piece. */
+    private interface Task {
+        void run(int i) throws Exception;
     }
 
+    /** Runs task for 0..n-1 on the worker pool and waits for all of them. */
+    private static void runParallel(int n, final Task task)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Future<?>> running = new ArrayList<Future<?>>();
+        for (int i = 0; i < n; i++) {
+            final int piece = i;
+            running.add(Exchange.workerPool.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    task.run(piece);
+                    return null;
+                }
+            }));
+        }
+        Throwable failure = null;
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                failure = e;
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) failure;
+        }
+        if (failure instanceof DbException) {
+            throw (DbException) failure;
+        }
+        if (failure != null) {
+            throw new DbException("hash join worker failed: " + failure);
+        }
+    }
+
+    /**
+     * Radix-partitions in on the hash of field.  Each worker counts how
+     * many of its share of the tuples go to each partition; from the
+     * counts every worker gets its own place in each partition of the
+     * output, and then copies its tuples there without any locking.
+     *
+     * @param bounds
+     *            filled in so that partition p is out[bounds[p]] to
+     *            out[bounds[p + 1] - 1]
+     * @return the tuples of in, grouped by partition
+     */
+    private Tuple[] partition(final Tuple[] in, final int field, final int bits, int[] bounds)
+            throws DbException, TransactionAbortedException {
+        final int parts = 1 << bits;
+        final int chunks = this.workers;
+        final int[][] hist = new int[chunks][parts];
+        runParallel(chunks, new Task() {
+            public void run(int c) {
+                int[] h = hist[c];
+                for (int i = chunkStart(in.length, chunks, c); i < chunkStart(in.length, chunks, c + 1); i++) {
+                    h[radix(in[i].getField(field), bits)]++;
+                }
+            }
+        });
+
+        // partition-major, worker-minor offsets
+        final int[][] offset = new int[chunks][parts];
+        int pos = 0;
+        for (int p = 0; p < parts; p++) {
+            bounds[p] = pos;
+            for (int c = 0; c < chunks; c++) {
+                offset[c][p] = pos;
+                pos += hist[c][p];
+            }
+        }
+        bounds[parts] = pos;
+
+        final Tuple[] out = new Tuple[in.length];
+        runParallel(chunks, new Task() {
+            public void run(int c) {
+                int[] o = offset[c];
+                for (int i = chunkStart(in.length, chunks, c); i < chunkStart(in.length, chunks, c + 1); i++) {
+                    out[o[radix(in[i].getField(field), bits)]++] = in[i];
+                }
+            }
+        });
+        return out;
+    }
+
+    private static int chunkStart(int n, int chunks, int c) {
+        return (int) ((long) n * c / chunks);
+    }
+
+    /**
+     * Builds the hash tables of the partitions from first on, one per
+     * worker, in parallel.  A partition nothing probes gets an empty table.
+     */
+    private void buildTables(final int first) throws DbException, TransactionAbortedException {
+        final int n = Math.min(this.workers, this.partitions - first);
+        final ArrayList<HashMap<Field, ArrayList<Tuple>>> built = new ArrayList<HashMap<Field, ArrayList<Tuple>>>();
+        for (int i = 0; i < n; i++) {
+            built.add(null);
+        }
+        // drop the tables of the partitions already probed first
+        this.tables = built;
+        this.tablesStart = first;
+        runParallel(n, new Task() {
+            public void run(int i) {
+                int p = first + i;
+                HashMap<Field, ArrayList<Tuple>> table = new HashMap<Field, ArrayList<Tuple>>();
+                if (probeBounds[p] < probeBounds[p + 1]) {
+                    for (int j = buildBounds[p]; j < buildBounds[p + 1]; j++) {
+                        Field key = build[j].getField(buildField);
+                        ArrayList<Tuple> bucket = table.get(key);
+                        if (bucket == null) {
+                            bucket = new ArrayList<Tuple>();
+                            table.put(key, bucket);
+                        }
+                        bucket.add(build[j]);
+                    }
+                }
+                built.set(i, table);
+            }
+        });
+    }
+
+    private static Tuple merge(TupleDesc td, Tuple t1, Tuple t2) {
+        Tuple resTup = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        int n2 = t2.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++) {
+            resTup.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < n2; i++) {
+            resTup.setField(n1 + i, t2.getField(i));
+        }
+        return resTup;
+    }
 }
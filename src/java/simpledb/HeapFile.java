@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -22,11 +23,38 @@ public class HeapFile implements DbFile {
         
         private int curPageN;
         private Iterator<Tuple> curPageIter;
+
+        // read-ahead: pages below readAheadEnd have been handed to the
+        // BufferPool; the window doubles each time the scan catches up
+        private int readAheadWindow;
+        private int readAheadEnd;
+
+        // a scan bigger than a fraction of the pool must not flush it
+        private boolean coldInsert;
+
+        // synchronized scanning: a large scan starts at startPage (where
+        // the scans already running on the table are) and wraps around
+        // through totalPages; visited counts the pages moved past
+        private boolean joined;
+        private int startPage;
+        private int totalPages;
+        private int visited;
+        
+        // a page range [rangeStart, rangeEnd) to scan, or rangeEnd < 0
+        // for the whole file
+        private int rangeStart;
+        private int rangeEnd;
         
         public HeapFileIterator(HeapFile file, TransactionId tId) {
+            this(file, tId, 0, -1);
+        }
+
+        public HeapFileIterator(HeapFile file, TransactionId tId, int rangeStart, int rangeEnd) {
             this.file = file;
             this.tId = tId;
             this.curPageIter = null;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
         }
         
         @Override
@@ -37,9 +65,29 @@ public class HeapFile implements DbFile {
             }
             
             // Get the iterator for the first page
-            this.curPageN = 0;
+            int numPages = this.file.numPages();
+            this.coldInsert = Database.getBufferPool().isLargeScan(numPages);
+            this.joined = this.coldInsert && this.rangeEnd < 0;
+            this.startPage = this.joined ? joinScan(this.file.getId()) : 0;
+            if (this.startPage >= numPages) {
+                this.startPage = 0;
+            }
+            if (this.rangeEnd >= 0) {
+                if (this.rangeStart >= Math.min(this.rangeEnd, numPages)) {
+                    // nothing to scan in this range
+                    this.curPageIter = Collections.<Tuple>emptyList().iterator();
+                    this.curPageN = this.rangeStart;
+                    return;
+                }
+                this.startPage = 0;
+            }
+            this.totalPages = numPages;
+            this.visited = 0;
+            this.curPageN = this.rangeEnd >= 0 ? this.rangeStart : this.startPage;
+            this.readAheadWindow = 0;
+            this.readAheadEnd = this.curPageN + 1;
             HeapPageId curPId = new HeapPageId(this.file.getId(), this.curPageN);
-            HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(this.tId, curPId, Permissions.READ_WRITE);
+            HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(this.tId, curPId, Permissions.READ_ONLY, this.coldInsert);
             this.curPageIter = curPage.iterator();
         }
 
@@ -55,11 +103,10 @@ public class HeapFile implements DbFile {
                 return this.curPageIter.hasNext();
             } else {
                 // Check if there are more pages in the file
-                while (this.curPageN < this.file.numPages() - 1) {
+                while (this.advance()) {
                     // Get the next page's iterator
-                    this.curPageN++;
                     HeapPageId curPId = new HeapPageId(this.file.getId(), this.curPageN);
-                    HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(this.tId, curPId, Permissions.READ_WRITE);
+                    HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(this.tId, curPId, Permissions.READ_ONLY, this.coldInsert);
                     this.curPageIter = curPage.iterator();
                     
                     // Check if the new page has tuples on it. If not - go to the next one, if it exists.
@@ -73,6 +120,70 @@ public class HeapFile implements DbFile {
             }
         }
 
+        /**
+         * Move curPageN on to the next page of the scan.  A scan that
+         * started at page 0 runs to the end of the file as it is now; one
+         * that joined other scans part way runs to the end of the file as
+         * it was when it opened and then wraps around to the pages before
+         * startPage.
+         *
+         * @return false once there are no more pages to visit
+         */
+        private boolean advance() {
+            if (this.startPage == 0) {
+                if (this.curPageN >= this.lastPage()) {
+                    return false;
+                }
+                this.curPageN++;
+            } else {
+                if (++this.visited >= this.totalPages) {
+                    return false;
+                }
+                this.curPageN = (this.startPage + this.visited) % this.totalPages;
+                if (this.curPageN == 0) {
+                    this.readAheadEnd = 1;
+                }
+            }
+            if (this.joined) {
+                reportScan(this.file.getId(), this.curPageN);
+            }
+            this.readAhead();
+            return true;
+        }
+
+        /** The last page this scan visits when it does not wrap around. */
+        private int lastPage() {
+            int numPages = this.file.numPages();
+            return (this.rangeEnd >= 0 ? Math.min(this.rangeEnd, numPages) : numPages) - 1;
+        }
+
+        /**
+         * The scan just moved on to curPageN.  Having read more than one
+         * page in order, it is sequential: keep the next pages being
+         * read in the background, starting with a small window and
+         * doubling it (up to BufferPool.MAX_READ_AHEAD) whenever the
+         * scan gets within half a window of the read-ahead frontier.
+         */
+        private void readAhead() {
+            // after wrapping around, stop where the scan started
+            int numPages = this.startPage == 0 ? this.lastPage() + 1
+                    : this.curPageN < this.startPage ? this.startPage : this.totalPages;
+            int n = this.curPageN;
+            if (this.readAheadWindow == 0) {
+                this.readAheadWindow = INITIAL_READ_AHEAD;
+            } else if (n + this.readAheadWindow / 2 < this.readAheadEnd) {
+                return;
+            } else {
+                this.readAheadWindow = Math.min(this.readAheadWindow * 2, BufferPool.MAX_READ_AHEAD);
+            }
+
+            int end = Math.min(n + 1 + this.readAheadWindow, numPages);
+            for (int p = Math.max(this.readAheadEnd, n + 1); p < end; p++) {
+                Database.getBufferPool().prefetch(new HeapPageId(this.file.getId(), p));
+            }
+            this.readAheadEnd = Math.max(this.readAheadEnd, end);
+        }
+
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
             // TODO Auto-generated method stub
@@ -91,13 +202,69 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             // TODO Auto-generated method stub
+            if (this.joined) {
+                leaveScan(this.file.getId());
+                this.joined = false;
+            }
             this.curPageIter = null;
         }  
     }
+
+    /**
+     * Where the large scans of one table are.  A scan that opens while
+     * others are running starts at the page they last reached instead of
+     * page 0, so they all ask for the same pages at about the same time
+     * and each page is read once for all of them; it picks up the pages
+     * it skipped by wrapping around at the end.
+     */
+    private static class ScanGroup {
+        int scans;
+        int page;
+    }
+
+    // table id -> the scans running on it; guarded by itself
+    private static final HashMap<Integer, ScanGroup> scanGroups = new HashMap<Integer, ScanGroup>();
+
+    /** Registers a scan on the table and returns the page it should start at. */
+    private static int joinScan(int tableId) {
+        synchronized (scanGroups) {
+            ScanGroup g = scanGroups.get(tableId);
+            if (g == null) {
+                g = new ScanGroup();
+                scanGroups.put(tableId, g);
+            }
+            int start = g.scans > 0 ? g.page : 0;
+            g.scans++;
+            return start;
+        }
+    }
+
+    private static void reportScan(int tableId, int page) {
+        synchronized (scanGroups) {
+            ScanGroup g = scanGroups.get(tableId);
+            if (g != null) {
+                g.page = page;
+            }
+        }
+    }
+
+    private static void leaveScan(int tableId) {
+        synchronized (scanGroups) {
+            ScanGroup g = scanGroups.get(tableId);
+            if (g != null && --g.scans <= 0) {
+                scanGroups.remove(tableId);
+            }
+        }
+    }
     
+    /** Pages read ahead once a scan turns out to be sequential. */
+    static final int INITIAL_READ_AHEAD = 4;
+
     private File file;
     private TupleDesc td;
     private int tableId;
+    // writes made to the file through this HeapFile
+    private final AtomicLong writes = new AtomicLong();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -113,6 +280,15 @@ public class HeapFile implements DbFile {
         this.tableId = f.getAbsolutePath().hashCode();
     }
 
+    /**
+     * @return how many times pages have been written to the file through
+     *         this HeapFile.  It changes with every write, even one that
+     *         leaves the file's length and modification time as they were.
+     */
+    public long writeCount() {
+        return this.writes.get();
+    }
+
     /**
      * Returns the File backing this HeapFile on disk.
      * 
@@ -158,9 +334,13 @@ public class HeapFile implements DbFile {
             throw new IllegalArgumentException();
         
         try {
-            DataInputStream dis = new DataInputStream(new FileInputStream(this.file));
-            dis.skip(pageN * pageSize);
-            dis.readFully(pageData, 0, pageSize);
+            RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+            try {
+                raf.seek((long) pageN * pageSize);
+                raf.readFully(pageData, 0, pageSize);
+            } finally {
+                raf.close();
+            }
             HeapPageId resultPId = new HeapPageId(this.tableId, pageN);
             HeapPage resultPage = new HeapPage(resultPId, pageData);
             return resultPage;
@@ -177,6 +357,7 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+        this.writes.incrementAndGet();
         int pageSize = Database.getBufferPool().getPageSize();
         int pageN = page.getId().getPageNumber();
         
@@ -192,6 +373,32 @@ public class HeapFile implements DbFile {
         
     }
 
+    /**
+     * Write a run of pages with consecutive page numbers using a single
+     * write call.  Used by the BufferPool's background writer.
+     *
+     * @param pages the pages to write, in page-number order
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int firstPageN = pages.get(0).getId().getPageNumber();
+        byte[] data = new byte[pages.size() * pageSize];
+        for (int i = 0; i < pages.size(); i++) {
+            if (pages.get(i).getId().getPageNumber() != firstPageN + i)
+                throw new IllegalArgumentException("pages are not adjacent");
+            System.arraycopy(pages.get(i).getPageData(), 0, data, i * pageSize, pageSize);
+        }
+
+        this.writes.incrementAndGet();
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            raf.seek((long) firstPageN * pageSize);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -208,8 +415,8 @@ public class HeapFile implements DbFile {
         ArrayList<Page> result = new ArrayList<Page>();
         for (int i = 0; i < this.numPages(); i++) {
             // Try putting a tuple on the page
+            HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.tableId, i), Permissions.READ_WRITE);
             try {
-                HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.tableId, i), Permissions.READ_WRITE);
                 curPage.insertTuple(t);
                 result.add(curPage);
                 return result;
@@ -235,8 +442,8 @@ public class HeapFile implements DbFile {
         ArrayList<Page> result = new ArrayList<Page>();
         for (int i = 0; i < this.numPages(); i++) {
             // Try deleting a tuple from the page
+            HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.tableId, i), Permissions.READ_WRITE);
             try {
-                HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.tableId, i), Permissions.READ_WRITE);
                 curPage.deleteTuple(t);
                 result.add(curPage);
                 return result;
@@ -254,5 +461,21 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(this, tid);
     }
 
+    /**
+     * Returns an iterator over the tuples on pages startPage (inclusive)
+     * to endPage (exclusive) of this file, so that several threads can
+     * each scan a part of it.  Pages past the end of the file are ignored.
+     * 
+     * @param tid
+     *            the transaction the scan is part of
+     * @param startPage
+     *            the first page to scan
+     * @param endPage
+     *            the page after the last page to scan
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
+        return new HeapFileIterator(this, tid, startPage, endPage);
+    }
+
 }
 
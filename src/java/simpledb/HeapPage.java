@@ -25,6 +25,25 @@ public class HeapPage implements Page {
     
     private boolean dirtyPage;
     private TransactionId dirtyTid;
+    private volatile long pageLSN = 0;
+
+    // slot changes since the page was last logged, oldest first, or
+    // null once logging them would cost more than a full page image
+    private ArrayList<SlotChange> slotChanges = new ArrayList<SlotChange>();
+    private int slotChangeBytes = 0;
+
+    /** The insertion or deletion of one tuple, as it is logged. */
+    static class SlotChange {
+        final boolean insert;
+        final int slot;
+        final byte[] tuple;
+
+        SlotChange(boolean insert, int slot, byte[] tuple) {
+            this.insert = insert;
+            this.slot = slot;
+            this.tuple = tuple;
+        }
+    }
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -112,6 +131,14 @@ public class HeapPage implements Page {
         }
     }
 
+    public long getLSN() {
+        return pageLSN;
+    }
+
+    public void setLSN(long lsn) {
+        pageLSN = lsn;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -255,6 +282,7 @@ public class HeapPage implements Page {
         }
  
         // Mark slot empty
+        this.recordSlotChange(false, t.getRecordId().getTupleNumber());
         this.markSlotUsed(t.getRecordId().getTupleNumber(), false);  
     }
 
@@ -281,6 +309,7 @@ public class HeapPage implements Page {
                 t.setRecordId(new RecordId(this.pid, i));
                 this.tuples[i] = t;
                 this.markSlotUsed(i, true);
+                this.recordSlotChange(true, i);
                 
                 return;
             }
@@ -289,6 +318,60 @@ public class HeapPage implements Page {
         throw new DbException("Failed to insert a tuple. No empty slots");
     }
 
+    private void recordSlotChange(boolean insert, int slot) {
+        if (slotChanges == null)
+            return;
+        byte[] tuple = getTupleData(slot);
+        slotChangeBytes += tuple.length + 16;
+        if (slotChangeBytes >= BufferPool.getPageSize())
+            slotChanges = null;
+        else
+            slotChanges.add(new SlotChange(insert, slot, tuple));
+    }
+
+    /**
+     * Return the slot changes made since the last call, oldest first,
+     * and start recording afresh.  Returns null if the changes are not
+     * known or are bigger than the page, in which case the caller
+     * should log a full page image.
+     */
+    List<SlotChange> takeSlotChanges() {
+        List<SlotChange> changes = slotChanges;
+        slotChanges = new ArrayList<SlotChange>();
+        slotChangeBytes = 0;
+        return (changes == null || changes.isEmpty()) ? null : changes;
+    }
+
+    /**
+     * Set a slot to used, holding the given serialized tuple, or to empty.
+     * Used by recovery to redo and undo logged slot changes; applying
+     * the same change twice has no further effect.
+     */
+    void applySlotChange(int slot, boolean used, byte[] tuple) {
+        markSlotUsed(slot, used);
+        if (used) {
+            tuples[slot] = readNextTuple(new DataInputStream(new ByteArrayInputStream(tuple)), slot);
+        } else {
+            tuples[slot] = null;
+        }
+    }
+
+    // serialize the tuple in the given slot
+    private byte[] getTupleData(int slot) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                tuples[slot].getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // writing to memory; should never happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
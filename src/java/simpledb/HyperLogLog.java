@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * A HyperLogLog sketch (Flajolet et al.) that estimates how many distinct
+ * values it has been given, in constant space.  Each value's hash picks one
+ * of 2^PRECISION registers, and the register keeps the longest run of
+ * leading zeros seen in the rest of the hash; the harmonic mean of the
+ * registers gives the estimate, to within about 1.04 / sqrt(2^PRECISION)
+ * (1.6%).
+ */
+public class HyperLogLog {
+
+    /** Bits of the hash that choose the register. */
+    static final int PRECISION = 12;
+
+    private static final int REGISTERS = 1 << PRECISION;
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    // the last estimate, until a register changes; the optimizer asks
+    // for it for every join it costs
+    private volatile double estimate = -1;
+
+    /** Add a value to the sketch. */
+    public void add(Field f) {
+        this.addHash(mix(f.hashCode()));
+    }
+
+    /** Add a combination of two values to the sketch. */
+    public void add(Field a, Field b) {
+        this.addHash(mix(mix(a.hashCode()) ^ Long.rotateLeft(mix(b.hashCode()), 32)));
+    }
+
+    /** Add a value, given a well-mixed 64-bit hash of it. */
+    public void addHash(long hash) {
+        int r = (int) (hash >>> (64 - PRECISION));
+        // the rest of the hash, with a sentinel bit so the run is bounded
+        long rest = (hash << PRECISION) | (1L << (PRECISION - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > this.registers[r]) {
+            this.registers[r] = rank;
+            this.estimate = -1;
+        }
+    }
+
+    /** Add every value another sketch has seen to this one. */
+    public void merge(HyperLogLog other) {
+        for (int r = 0; r < REGISTERS; r++) {
+            if (other.registers[r] > this.registers[r]) {
+                this.registers[r] = other.registers[r];
+            }
+        }
+        this.estimate = -1;
+    }
+
+    /** Write the sketch out, for {@link #read} to load it again. */
+    public void write(DataOutputStream out) throws IOException {
+        out.write(this.registers);
+    }
+
+    /** Read back a sketch written by {@link #write}. */
+    public static HyperLogLog read(DataInputStream in) throws IOException {
+        HyperLogLog h = new HyperLogLog();
+        in.readFully(h.registers);
+        return h;
+    }
+
+    /** @return the estimated number of distinct values added */
+    public double estimate() {
+        double cached = this.estimate;
+        if (cached >= 0) {
+            return cached;
+        }
+        double sum = 0;
+        int empty = 0;
+        for (int r = 0; r < REGISTERS; r++) {
+            sum += Math.pow(2, -this.registers[r]);
+            if (this.registers[r] == 0) {
+                empty++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double e = alpha * REGISTERS * REGISTERS / sum;
+        // with few values, counting the empty registers is more accurate
+        if (e <= 2.5 * REGISTERS && empty > 0) {
+            e = REGISTERS * Math.log((double) REGISTERS / empty);
+        }
+        this.estimate = e;
+        return e;
+    }
+
+    // spread a 32-bit hash code over 64 bits (the MurmurHash3 finalizer),
+    // since IntField's hash code is just its value
+    private static long mix(int h) {
+        return mix((long) h);
+    }
+
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -11,6 +11,11 @@ public class IntHistogram {
     private double bucketSize;
     private int tuples;
 
+    // the value bucket 0 starts at
+    private long rangeMin;
+    // whether the range grows to fit the values (see IntHistogram(int))
+    private boolean adaptive;
+
     /**
      * Create a new IntHistogram.
      * 
@@ -34,10 +39,56 @@ public class IntHistogram {
         this.buckets = new int[buckets];
         this.bucketSize = (max-min) / (double) buckets;
         this.tuples = 0;
+        this.rangeMin = min;
+    }
+
+    /**
+     * Create a new IntHistogram over values whose range is not known in
+     * advance, so that it can be built in a single pass over the data.
+     * 
+     * Buckets start one value wide at the first value added.  Whenever a
+     * value falls outside the range the buckets cover, neighbouring
+     * buckets are merged in pairs, doubling their width and the range,
+     * until it fits.  The result is the same as a fixed-width histogram
+     * over a range at most twice as wide as the values, and space stays
+     * constant.
+     * 
+     * @param buckets The number of buckets to split the input value into;
+     *            rounded up to an even number so that pairs merge evenly.
+     */
+    public IntHistogram(int buckets) {
+        this.bucketNum = buckets + buckets % 2;
+        this.buckets = new int[this.bucketNum];
+        this.bucketSize = 1;
+        this.min = Integer.MAX_VALUE;
+        this.max = Integer.MIN_VALUE;
+        this.tuples = 0;
+        this.adaptive = true;
+    }
+
+    // merge pairs of buckets so the range doubles upwards
+    private void growUp() {
+        for (int i = 0; i < bucketNum / 2; i++) {
+            buckets[i] = buckets[2 * i] + buckets[2 * i + 1];
+        }
+        java.util.Arrays.fill(buckets, bucketNum / 2, bucketNum, 0);
+        bucketSize *= 2;
+    }
+
+    // merge pairs of buckets so the range doubles downwards
+    private void growDown() {
+        int half = bucketNum / 2;
+        for (int i = bucketNum - 1; i >= half; i--) {
+            int j = 2 * (i - half);
+            buckets[i] = buckets[j] + buckets[j + 1];
+        }
+        java.util.Arrays.fill(buckets, 0, half, 0);
+        rangeMin -= (long) bucketSize * bucketNum;
+        bucketSize *= 2;
     }
 
     private int index(int v) {
-        int index = (int) ((v-min) / bucketSize);
+        int index = (int) ((v-rangeMin) / bucketSize);
         if (index == this.bucketNum) {
             index--;
         }
@@ -49,6 +100,19 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
+        if (this.adaptive) {
+            if (this.tuples == 0) {
+                this.rangeMin = v;
+            }
+            while (v < this.rangeMin) {
+                growDown();
+            }
+            while (v >= this.rangeMin + (long) this.bucketSize * this.bucketNum) {
+                growUp();
+            }
+            this.min = Math.min(this.min, v);
+            this.max = Math.max(this.max, v);
+        }
     	this.buckets[index(v)]++;
         tuples++;
     }
@@ -57,7 +121,18 @@ public class IntHistogram {
         if (v < min || v > max)
             return 0.0;
 
-        return (buckets[index(v)] / Math.max(1, bucketSize)) / tuples;
+        return (buckets[index(v)] / width(index(v))) / tuples;
+    }
+
+    // the number of distinct values bucket i can hold; a grown range may
+    // reach past the values actually seen, so only count those in between
+    private double width(int i) {
+        if (!adaptive) {
+            return Math.max(1, bucketSize);
+        }
+        long lo = Math.max(rangeMin + (long) (i * bucketSize), min);
+        long hi = Math.min(rangeMin + (long) ((i + 1) * bucketSize) - 1, max);
+        return Math.max(1, hi - lo + 1);
     }
 
     private double estimateGt(int v) {
@@ -67,13 +142,17 @@ public class IntHistogram {
             return 0.0;
         
         int index = index(v);
-        double b_right = (index + 1) * bucketSize;
-        double b_part = (b_right - v) / bucketSize;
-
         double b_fs = 0.0;
         for (int i=index+1; i<bucketNum; i++)
             b_fs += (double) buckets[i]/tuples;
 
+        if (adaptive) {
+            // the values of v's bucket above v, out of those it can hold
+            long hi = Math.min(rangeMin + (long) ((index + 1) * bucketSize) - 1, max);
+            return ((double) buckets[index]/tuples) * (hi - v) / width(index) + b_fs;
+        }
+        double b_right = (index + 1) * bucketSize;
+        double b_part = (b_right - v) / bucketSize;
         return (buckets[index]/tuples) * b_part + b_fs;
     }
 
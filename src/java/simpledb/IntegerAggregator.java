@@ -92,6 +92,41 @@ public class IntegerAggregator implements Aggregator {
         }      
     }
 
+    /**
+     * Merge another IntegerAggregator's partial results into this one.
+     * Every group keeps its running min, max or sum together with its
+     * count, so all operators, AVG included, combine exactly.
+     * 
+     * @param other
+     *            an IntegerAggregator built with the same arguments
+     */
+    public void mergePartial(Aggregator other) {
+        IntegerAggregator o = (IntegerAggregator) other;
+        if (!this.aggrFieldName.endsWith(")")) {
+            this.aggrFieldName = o.aggrFieldName;
+        }
+        for (Field curGbField : o.fieldCount.keySet()) {
+            this.fieldCount.put(curGbField, this.fieldCount.getOrDefault(curGbField, 0) + o.fieldCount.get(curGbField));
+
+            int otherValue = o.aggregate.get(curGbField);
+            Integer curValue = this.aggregate.get(curGbField);
+            if (curValue == null) {
+                this.aggregate.put(curGbField, otherValue);
+                continue;
+            }
+            switch (this.aOp.toString()) {
+            case "min":
+                this.aggregate.put(curGbField, Math.min(curValue, otherValue));
+                break;
+            case "max":
+                this.aggregate.put(curGbField, Math.max(curValue, otherValue));
+                break;
+            default:
+                this.aggregate.put(curGbField, curValue + otherValue);
+            }
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * 
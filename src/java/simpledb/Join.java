@@ -70,6 +70,11 @@ public class Join extends Operator {
             TransactionAbortedException {
         // some code goes here
         super.open();
+        // the inner input is rewound for every outer tuple; an exchange
+        // only keeps its tuples for that if asked to
+        if (this.child2 instanceof ExchangeConsumer) {
+            ((ExchangeConsumer) this.child2).setSpooled(true);
+        }
         this.child1.open();
         this.child2.open();
     }
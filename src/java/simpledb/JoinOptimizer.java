@@ -13,6 +13,39 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    Strategy strategy;
+
+    /** How {@link #orderJoins} ordered the joins. */
+    public enum Strategy {
+        /** every plan without cross products was considered (DPccp) */
+        EXHAUSTIVE,
+        /** the joins were ordered greedily */
+        GREEDY,
+        /** there were too many relations to order, so joins were left as written */
+        AS_WRITTEN
+    }
+
+    /** The default for {@link #setGreedyThreshold}. */
+    public static final int DEFAULT_GREEDY_THRESHOLD = 15;
+
+    // queries with more joins than this are ordered greedily
+    private static int greedyThreshold = DEFAULT_GREEDY_THRESHOLD;
+
+    /** Set the most joins {@link #orderJoins} searches every plan for.
+        The number of plans grows exponentially with the joins (with
+        3^n for n relations all joined to each other), so queries with
+        more are ordered greedily instead.
+
+        @param joins the most joins to order exhaustively
+    */
+    public static void setGreedyThreshold(int joins) {
+        greedyThreshold = Math.max(0, joins);
+    }
+
+    /** @return the join count set with {@link #setGreedyThreshold} */
+    public static int getGreedyThreshold() {
+        return greedyThreshold;
+    }
 
     /**
      * Constructor
@@ -68,12 +101,24 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (usesHashJoin(lj))
+            j = new HashEquiJoin(p,plan1,plan2,LogicalPlan.getParallelism());
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * With parallelism on, equi-joins run as a parallel hash join; other
+     * joins, as nested loops.
+     */
+    static boolean usesHashJoin(LogicalJoinNode lj) {
+        return lj.p == Predicate.Op.EQUALS && LogicalPlan.getParallelism() > 1
+                && !(lj instanceof LogicalSubplanJoinNode);
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -102,16 +147,42 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, -1);
+    }
+
+    /**
+     * Estimate the cost of a join, with the formula of the algorithm
+     * {@link #instantiateJoin} will pick for it (see {@link CostModel}).
+     *
+     * @param innerPages
+     *            the pages of the right-hand side, if it is a stored table
+     *            that a nested loops join might find in the buffer pool;
+     *            -1 if it is the result of another join
+     */
+    double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, int innerPages) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (usesHashJoin(j)) {
+            return CostModel.hashJoinCost(card1, card2, cost1, cost2,
+                    tupleSize(j.t1Alias), tupleSize(j.t2Alias),
+                    LogicalPlan.getParallelism());
         } else {
-            return (cost1 + card1 * cost2 //IO cost
-                       + card1 * cost2);  //CPU cost
+            return CostModel.nestedLoopsCost(card1, card2, cost1, cost2, innerPages);
         }
     }
 
+    // bytes per tuple of a table in the query, as its scan passes them
+    // up; the result of a join is wider, so this is a lower bound for it
+    private int tupleSize(String alias) {
+        Integer id = this.p.getTableId(alias);
+        if (id == null)
+            return Type.INT_TYPE.getLen();
+        return this.p.scanTupleSize(alias);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -162,8 +233,16 @@ public class JoinOptimizer {
                     card = card2;
             else if (t2pkey)
                 card = card1;
-            else
-                card = Math.max(card1, card2);
+            else {
+                // each value on the side with fewer distinct values meets
+                // card / ndv rows of the other side
+                double ndv1 = distinctValues(table1Alias, field1PureName, card1, stats, tableAliasToId);
+                double ndv2 = distinctValues(table2Alias, field2PureName, card2, stats, tableAliasToId);
+                if (ndv1 > 0 && ndv2 > 0)
+                    card = (int) Math.min(Integer.MAX_VALUE, (double) card1 * card2 / Math.max(ndv1, ndv2));
+                else
+                    card = Math.max(card1, card2);
+            }
         }
 
         if (joinOp == Predicate.Op.GREATER_THAN || joinOp == Predicate.Op.LESS_THAN ||
@@ -178,41 +257,43 @@ public class JoinOptimizer {
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * The number of distinct values of a join field among card rows of its
+     * table, from the table's statistics; 0 if there are none.  Filters
+     * below the join can only remove values, so no more than card.
      */
-    @SuppressWarnings("unchecked")
-    public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
-        Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+    static double distinctValues(String tableAlias, String fieldPureName, int card,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId.get(tableAlias);
+        if (tableId == null)
+            return 0;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 0;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return 0;
         }
-
-        return els;
-
+        return Math.min(s.estimateDistinct(field), Math.max(card, 1));
     }
 
+    /** The most relations {@link #orderJoins} enumerates plans for: one per bit of a long. */
+    static final int MAX_RELATIONS = 64;
+
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     *
+     * Plans are enumerated with DPccp (Moerkotte and Neumann, "Analysis of
+     * Two Existing and One New Dynamic Programming Algorithm for the
+     * Generation of Optimal Bushy Join Trees without Cross Products"): sets
+     * of relations are bitsets, and only pairs of connected sets joined by
+     * a predicate are ever costed, each pair once.  Plans may be bushy,
+     * joining the results of two other joins.  With more than
+     * {@link #getGreedyThreshold} joins, the plan is built greedily instead
+     * (Fegaras' Greedy Operator Ordering): the pair of plans with the
+     * smallest join result is joined, until only one is left.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -224,8 +305,9 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed; each join's inputs are made by
+     *         the joins before it.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -235,34 +317,47 @@ public class JoinOptimizer {
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
 
+        JoinGraph g = new JoinGraph(stats, filterSelectivities);
+        if (g.aliases.size() > MAX_RELATIONS) {
+            this.strategy = Strategy.AS_WRITTEN;
+            if (explain)
+                System.out.println("Join order: as written (" + g.aliases.size()
+                        + " relations are too many to order)");
+            return this.joins;
+        }
+
         PlanCache pc = new PlanCache();
-        for (int i=1; i<joins.size()+1; i++) {
-            for (Set<LogicalJoinNode> subset : enumerateSubsets(joins, i)) {
-                CostCard bestplan = new CostCard();
-                bestplan.cost = Double.MAX_VALUE;
-                for (LogicalJoinNode n : subset) {
-                    CostCard subplan = computeCostAndCardOfSubplan(stats, filterSelectivities,
-                                        n, subset, bestplan.cost, pc);
-                    if (subplan != null && subplan.cost < bestplan.cost) {
-                        bestplan = subplan;
-                    }
-                if (bestplan.cost != Double.MAX_VALUE) {
-                    pc.addPlan(subset, bestplan.cost, bestplan.card, bestplan.plan);
-                }
-                }
-            }
+        g.prepare(pc);
+        if (joins.size() > greedyThreshold) {
+            this.strategy = Strategy.GREEDY;
+            g.greedy();
+        } else {
+            this.strategy = Strategy.EXHAUSTIVE;
+            g.enumerate();
+        }
+        if (explain) {
+            if (this.strategy == Strategy.GREEDY)
+                System.out.println("Join order: greedy (" + joins.size()
+                        + " joins, more than " + greedyThreshold + ")");
+            else
+                System.out.println("Join order: exhaustive over " + g.aliases.size()
+                        + " relations (" + pc.size() + " subplans)");
         }
 
-        Vector<LogicalJoinNode> plan = pc.getOrder(new HashSet<LogicalJoinNode>(joins));
-        if (explain){
-            if(plan != null) {
-                printJoins(plan, pc, stats, filterSelectivities);
-            }
-            else {
-                printJoins(joins, pc, stats, filterSelectivities);
+        // each connected part of the query, one after the other
+        Vector<LogicalJoinNode> plan = new Vector<LogicalJoinNode>();
+        for (long part : g.components()) {
+            if (!pc.contains(part)) {
+                plan = null;
+                break;
             }
+            g.appendPlan(part, pc, plan);
+        }
+        if (explain) {
+            printJoins(plan != null ? plan : joins, pc, g.index, stats,
+                    filterSelectivities);
         }
-        if(plan != null) {
+        if (plan != null) {
             return plan;
         }
         else {
@@ -270,168 +365,330 @@ public class JoinOptimizer {
         } 
     }
 
+    /** @return how the last call to {@link #orderJoins} ordered the joins, or null before one */
+    public Strategy getStrategy() {
+        return this.strategy;
+    }
+
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * The query's relations, numbered so a set of them is a bitset, and the
+     * join predicates between them; and the search for ways to join them,
+     * exhaustive or greedy, into a {@link PlanCache}.
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private class JoinGraph {
+        final HashMap<String, TableStats> stats;
+        final HashMap<String, Double> filterSelectivities;
+        final ArrayList<String> aliases = new ArrayList<String>();
+        final HashMap<String, Integer> index = new HashMap<String, Integer>();
+        // the relations each join predicate's two sides refer to, as bits;
+        // right is 0 for a join with a subquery
+        long[] left;
+        long[] right;
+        // pages of each relation's table; -1 if it is joined with a
+        // subquery, so not read straight from the table
+        int[] pages;
+        // whether each side of each join predicate is its table's primary key
+        boolean[] leftPkey;
+        boolean[] rightPkey;
+        // each join predicate the other way round, made once
+        LogicalJoinNode[] swapped;
+        // neighbours[i]: the relations with a join predicate with relation i
+        long[] neighbours;
+        PlanCache pc;
+
+        JoinGraph(HashMap<String, TableStats> stats,
+                HashMap<String, Double> filterSelectivities) {
+            this.stats = stats;
+            this.filterSelectivities = filterSelectivities;
+            for (LogicalJoinNode j : joins) {
+                this.number(j.t1Alias);
+                if (!(j instanceof LogicalSubplanJoinNode))
+                    this.number(j.t2Alias);
+            }
+        }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+        private void number(String alias) {
+            if (!this.index.containsKey(alias)) {
+                this.index.put(alias, this.aliases.size());
+                this.aliases.add(alias);
             }
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+        // number the join predicates' sides, and cost the single relations
+        void prepare(PlanCache pc) throws ParsingException {
+            int n = this.aliases.size();
+            this.pc = pc;
+            this.left = new long[joins.size()];
+            this.right = new long[joins.size()];
+            this.leftPkey = new boolean[joins.size()];
+            this.rightPkey = new boolean[joins.size()];
+            this.swapped = new LogicalJoinNode[joins.size()];
+            this.neighbours = new long[n];
+            this.pages = new int[n];
+            for (int k = 0; k < joins.size(); k++) {
+                LogicalJoinNode j = joins.get(k);
+                if (p.getTableId(j.t1Alias) == null)
+                    throw new ParsingException("Unknown table " + j.t1Alias);
+                this.left[k] = 1L << this.index.get(j.t1Alias);
+                this.leftPkey[k] = isPkey(j.t1Alias, j.f1PureName);
+                if (j instanceof LogicalSubplanJoinNode)
+                    continue;
+                if (p.getTableId(j.t2Alias) == null)
+                    throw new ParsingException("Unknown table " + j.t2Alias);
+                this.right[k] = 1L << this.index.get(j.t2Alias);
+                this.rightPkey[k] = isPkey(j.t2Alias, j.f2PureName);
+                this.swapped[k] = j.swapInnerOuter();
+                if (this.left[k] != this.right[k]) {
+                    this.neighbours[this.index.get(j.t1Alias)] |= this.right[k];
+                    this.neighbours[this.index.get(j.t2Alias)] |= this.left[k];
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                this.addRelation(i);
+            }
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        // the costs of every pair of connected sets that can be joined
+        void enumerate() throws ParsingException {
+            for (int i = this.aliases.size() - 1; i >= 0; i--) {
+                long s = 1L << i;
+                this.emitCsg(s);
+                this.enumerateCsgRec(s, below(i) | s);
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        // a single relation: a scan, and any joins with subqueries on it
+        private void addRelation(int i) throws ParsingException {
+            String alias = this.aliases.get(i);
+            Integer id = p.getTableId(alias);
+            if (id == null)
+                throw new ParsingException("Unknown table " + alias);
+            TableStats s = this.stats.get(Database.getCatalog().getTableName(id));
+            if (s == null)
+                throw new ParsingException("No statistics for table " + alias);
+            DbFile f = Database.getCatalog().getDatabaseFile(id);
+            this.pages[i] = f instanceof HeapFile ? ((HeapFile) f).numPages() : -1;
+            double cost = s.estimateScanCost();
+            int card = s.estimateTableCardinality(this.filterSelectivities.get(alias));
+            boolean pkey = false;
+            for (int k = 0; k < joins.size(); k++) {
+                LogicalJoinNode j = joins.get(k);
+                if (j instanceof LogicalSubplanJoinNode && this.left[k] == 1L << i) {
+                    this.pages[i] = -1;
+                    cost = estimateJoinCost(j, card, 0, cost, 0);
+                    card = estimateJoinCardinality(j, card, 0, this.leftPkey[k], false, this.stats);
+                    pkey |= this.leftPkey[k];
+                }
+            }
+            this.pc.addPlan(1L << i, cost, card, 0, -1, pkey);
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        private long neighbourhood(long s) {
+            long n = 0;
+            for (long rest = s; rest != 0; rest &= rest - 1) {
+                n |= this.neighbours[Long.numberOfTrailingZeros(rest)];
+            }
+            return n & ~s;
+        }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
-    }
+        // every connected superset of s reached through relations not in x
+        private void enumerateCsgRec(long s, long x) throws ParsingException {
+            long n = this.neighbourhood(s) & ~x;
+            if (n == 0)
+                return;
+            for (long sub = n & -n; sub != 0; sub = next(sub, n)) {
+                this.emitCsg(s | sub);
+            }
+            for (long sub = n & -n; sub != 0; sub = next(sub, n)) {
+                this.enumerateCsgRec(s | sub, x | n);
+            }
+        }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+        // every connected set to join with s1 whose relations come after
+        // s1's first
+        private void emitCsg(long s1) throws ParsingException {
+            long x = s1 | below(Long.numberOfTrailingZeros(s1));
+            long n = this.neighbourhood(s1) & ~x;
+            for (long rest = n; rest != 0; rest &= ~Long.highestOneBit(rest)) {
+                long s2 = Long.highestOneBit(rest);
+                this.emitCsgCmp(s1, s2);
+                this.enumerateCmpRec(s1, s2, x | (n & (s2 | (s2 - 1))));
+            }
+        }
+
+        private void enumerateCmpRec(long s1, long s2, long x) throws ParsingException {
+            long n = this.neighbourhood(s2) & ~x;
+            if (n == 0)
+                return;
+            for (long sub = n & -n; sub != 0; sub = next(sub, n)) {
+                this.emitCsgCmp(s1, s2 | sub);
+            }
+            for (long sub = n & -n; sub != 0; sub = next(sub, n)) {
+                this.enumerateCmpRec(s1, s2 | sub, x | n);
+            }
         }
-        return false;
+
+        /**
+         * Join the two plans with the smallest result, over and over, until
+         * every connected part of the query has one plan.  Each pair is
+         * costed once; the sets of the pairs not chosen stay in the cache
+         * with the plan found for them.
+         */
+        void greedy() throws ParsingException {
+            ArrayList<Long> plans = new ArrayList<Long>();
+            for (int i = 0; i < this.aliases.size(); i++) {
+                plans.add(1L << i);
+            }
+            while (true) {
+                int bestA = -1, bestB = -1;
+                int bestCard = Integer.MAX_VALUE;
+                double bestCost = Double.MAX_VALUE;
+                for (int a = 0; a < plans.size(); a++) {
+                    long sa = plans.get(a);
+                    long n = this.neighbourhood(sa);
+                    for (int b = a + 1; b < plans.size(); b++) {
+                        long sb = plans.get(b);
+                        if ((n & sb) == 0)
+                            continue;
+                        if (!this.pc.contains(sa | sb))
+                            this.emitCsgCmp(sa, sb);
+                        if (!this.pc.contains(sa | sb))
+                            continue;
+                        int card = this.pc.getCard(sa | sb);
+                        double cost = this.pc.getCost(sa | sb);
+                        if (card < bestCard || (card == bestCard && cost < bestCost)) {
+                            bestA = a;
+                            bestB = b;
+                            bestCard = card;
+                            bestCost = cost;
+                        }
+                    }
+                }
+                if (bestA < 0)
+                    return;
+                long joined = plans.get(bestA) | plans.get(bestB);
+                plans.remove(bestB); // the later one first
+                plans.remove(bestA);
+                plans.add(joined);
+            }
+        }
+
+        // cost joining two connected sets each way round, over each
+        // predicate between them, and keep the plan if it's the best yet
+        private void emitCsgCmp(long s1, long s2) throws ParsingException {
+            if (!this.pc.contains(s1) || !this.pc.contains(s2))
+                return;
+            long s = s1 | s2;
+            double best = this.pc.contains(s) ? this.pc.getCost(s) : Double.MAX_VALUE;
+            int card1 = this.pc.getCard(s1), card2 = this.pc.getCard(s2);
+            double cost1 = this.pc.getCost(s1), cost2 = this.pc.getCost(s2);
+            int pages1 = this.storedPages(s1), pages2 = this.storedPages(s2);
+            for (int k = 0; k < joins.size(); k++) {
+                LogicalJoinNode j, j2;
+                if ((this.left[k] & s1) != 0 && (this.right[k] & s2) != 0) {
+                    j = joins.get(k);
+                    j2 = this.swapped[k];
+                } else if ((this.left[k] & s2) != 0 && (this.right[k] & s1) != 0) {
+                    j = this.swapped[k];
+                    j2 = joins.get(k);
+                } else {
+                    continue;
+                }
+                // j joins s1 to s2, j2 s2 to s1
+                double c = estimateJoinCost(j, card1, card2, cost1, cost2, pages2);
+                if (c < best) {
+                    best = c;
+                    this.addJoin(s1, s2, k, j, c);
+                }
+                c = estimateJoinCost(j2, card2, card1, cost2, cost1, pages1);
+                if (c < best) {
+                    best = c;
+                    this.addJoin(s2, s1, k, j2, c);
+                }
+            }
+        }
+
+        // the pages of s if it is one relation read straight from its
+        // table; -1 if it is a join
+        private int storedPages(long s) {
+            return Long.bitCount(s) == 1 ? this.pages[Long.numberOfTrailingZeros(s)] : -1;
+        }
+
+        // j joins outer to inner, with j.t1 in outer
+        private void addJoin(long outer, long inner, int k, LogicalJoinNode j,
+                double cost) {
+            boolean forward = (this.left[k] & outer) != 0;
+            boolean outerPkey = Long.bitCount(outer) == 1
+                    ? (forward ? this.leftPkey[k] : this.rightPkey[k]) : this.pc.hasPkey(outer);
+            boolean innerPkey = Long.bitCount(inner) == 1
+                    ? (forward ? this.rightPkey[k] : this.leftPkey[k]) : this.pc.hasPkey(inner);
+            int card = estimateJoinCardinality(j, this.pc.getCard(outer),
+                    this.pc.getCard(inner), outerPkey, innerPkey, this.stats);
+            boolean pkey = this.pc.hasPkey(outer) || this.pc.hasPkey(inner)
+                    || this.leftPkey[k] || this.rightPkey[k];
+            this.pc.addPlan(outer | inner, cost, card, outer, k, pkey);
+        }
+
+        /** The connected parts of the query, in the order of their first relations. */
+        ArrayList<Long> components() {
+            ArrayList<Long> parts = new ArrayList<Long>();
+            long seen = 0;
+            for (int i = 0; i < this.aliases.size(); i++) {
+                if ((seen & (1L << i)) != 0)
+                    continue;
+                long part = 1L << i;
+                for (long grown = part | this.neighbourhood(part); grown != part;
+                        grown = part | this.neighbourhood(part)) {
+                    part = grown;
+                }
+                seen |= part;
+                parts.add(part);
+            }
+            return parts;
+        }
+
+        /**
+         * Add the joins of the best plan for s to plan, in the order they
+         * should be executed: the outer input's, the inner input's, then
+         * the joins between the two, with each join's t1 on the outer side.
+         */
+        void appendPlan(long s, PlanCache pc, Vector<LogicalJoinNode> plan) {
+            long outer = pc.getLeft(s);
+            if (outer == 0) {
+                for (int k = 0; k < joins.size(); k++) {
+                    if (this.right[k] == 0 && this.left[k] == s)
+                        plan.addElement(joins.get(k));
+                }
+                return;
+            }
+            long inner = s & ~outer;
+            this.appendPlan(outer, pc, plan);
+            this.appendPlan(inner, pc, plan);
+            int top = pc.getJoin(s);
+            plan.addElement((this.left[top] & outer) != 0 ? joins.get(top)
+                    : this.swapped[top]);
+            // any other predicates between the two sides (a cycle in the query)
+            for (int k = 0; k < joins.size(); k++) {
+                if (k == top)
+                    continue;
+                if ((this.left[k] & outer) != 0 && (this.right[k] & inner) != 0)
+                    plan.addElement(joins.get(k));
+                else if ((this.left[k] & inner) != 0 && (this.right[k] & outer) != 0)
+                    plan.addElement(this.swapped[k]);
+            }
+        }
+    }
+
+    // the relations numbered below i
+    private static long below(int i) {
+        return (1L << i) - 1;
+    }
+
+    // the subset of n after sub, in increasing order; 0 after the last
+    private static long next(long sub, long n) {
+        return (sub - n) & n;
     }
 
     /**
@@ -450,18 +707,14 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
+    // the relations joined with alias so far, alias included
+    private static long relations(String alias, HashMap<String, Long> joined,
+            HashMap<String, Integer> index) {
+        Long s = joined.get(alias);
+        if (s != null)
+            return s;
+        Integer i = index.get(alias);
+        return i == null || i >= MAX_RELATIONS ? 0 : 1L << i;
     }
 
     /**
@@ -473,6 +726,8 @@ public class JoinOptimizer {
      *            the join plan to visualize
      * @param pc
      *            the PlanCache accumulated whild building the optimal plan
+     * @param index
+     *            the number of each relation's bit in the PlanCache's sets
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -481,7 +736,7 @@ public class JoinOptimizer {
      *            alias is given)
      */
     private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
-            HashMap<String, TableStats> stats,
+            HashMap<String, Integer> index, HashMap<String, TableStats> stats,
             HashMap<String, Double> selectivities) {
 
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
@@ -500,25 +755,30 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        // the relations joined with each one so far, as a PlanCache set
+        HashMap<String, Long> joined = new HashMap<String, Long>();
         boolean neither;
 
-        System.out.println(js);
+        System.out.println("Join plan: " + js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            long s = relations(j.t1Alias, joined, index);
+            if (j.t2Alias != null)
+                s |= relations(j.t2Alias, joined, index);
+            for (Map.Entry<String, Integer> e : index.entrySet()) {
+                if ((s & (1L << e.getValue())) != 0)
+                    joined.put(e.getKey(), s);
+            }
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
             String table2Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t2Alias));
 
-            // Double c = pc.getCost(pathSoFar);
             neither = true;
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + (pc.contains(s) ? "" + pc.getCost(s) : "?") + ", card = "
+                    + (pc.contains(s) ? "" + pc.getCard(s) : "?") + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
@@ -557,11 +817,14 @@ public class JoinOptimizer {
             }
             m.put(j.t2Alias, root);
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
+            // unless this table doesn't join with other tables, all
+            // tables joined with it so far are accessed from root; those
+            // of other joins (in a bushy plan) aren't yet
             if (!neither) {
                 for (String key : m.keySet()) {
-                    m.put(key, root);
+                    Long k = joined.get(key);
+                    if (k == null || k.longValue() == s)
+                        m.put(key, root);
                 }
             }
 
@@ -52,11 +52,9 @@ public class LockManager {
         //System.out.println("Already have read");
         return;
       }
-      //If you have the only write lock, get a read in return 
-      if (exclusiveLocks.remove(pid, tid)) {
-        ArrayList<TransactionId> owners = new ArrayList<TransactionId>();
-        owners.add(tid);
-        sharedLocks.put(pid, owners);
+      //If you have the write lock it already covers reading; giving it up
+      //would let others see (and the page writer flush) your changes
+      if (exclusiveLocks.get(pid) == tid) {
         return;
       }
       //Loop if there's currently an exclusive lock being held, stop looping after trying to
@@ -140,6 +138,24 @@ public class LockManager {
     return false;
   }
 
+  /**
+   * Return true if some transaction holds the write lock on the page.
+   * Not synchronized, since addLock keeps the monitor while it waits:
+   * the BufferPool's page writer asks this while holding the BufferPool
+   * monitor and must not wait behind a blocked transaction.
+   */
+  public boolean isLockedExclusively(PageId pid) {
+    return this.exclusiveLocks.containsKey(pid);
+  }
+
+  /**
+   * Return the transaction holding the write lock on the page, or null.
+   * Not synchronized, for the same reason as isLockedExclusively.
+   */
+  public TransactionId exclusiveHolder(PageId pid) {
+    return this.exclusiveLocks.get(pid);
+  }
+
   public synchronized void releaseLocks(TransactionId tid) {
     //System.out.println("releasing locks");
     ArrayList<PageId> locks = transactionLocks.remove(tid);
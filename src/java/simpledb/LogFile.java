@@ -2,6 +2,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -39,20 +41,30 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The file begins with a two long integer header.  The first
+long integer is the LSN of the last written checkpoint, or -1 if there
+are no checkpoints.  The second is the LSN of the first byte that
+follows the header.
+
+<li> Every log record is identified by its log sequence number (LSN),
+which is the logical byte position at which the record begins.  LSNs
+increase monotonically and are not changed by log truncation; the
+record with LSN l lives at file offset l - base + HEADER_SIZE, where
+base is the second header field.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id, and the long integer LSN of the previous record written
+by the same transaction (-1 for the first one), so that a transaction's
+records can be walked backwards during rollback.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, the LSN of the record,
+so the log can be scanned backwards.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, CLR, SLOT_INSERT and SLOT_DELETE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -62,19 +74,44 @@ accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first and last log records, followed
+by the dirty page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction
+id, a long integer first record LSN and a long integer last record LSN
+for each active transaction; then an integer count of dirty pages, and
+for each an integer table id, an integer page number and the long
+integer LSN of the first update not yet written to disk (its recLSN).
+
+<li> SLOT_INSERT and SLOT_DELETE records describe a single tuple
+inserted into or deleted from a HeapPage: an integer table id, an
+integer page number, an integer slot number, an integer length and
+the serialized tuple.  They are much smaller than an UPDATE record and
+are used whenever the page can tell what changed (see
+HeapPage.takeSlotChanges()); UPDATE records with full images are the
+fallback.
+
+<li> CLR (compensation log record) records are written whenever an
+UPDATE or slot change is undone, by rollback or by recovery.  They
+consist of the LSN of the next record of the transaction that still
+has to be undone (the undone record's previous LSN), and an integer
+kind followed by the change the undo made: UPDATE followed by the
+installed page image, or SLOT_INSERT/SLOT_DELETE followed by the slot
+change as above.  CLRs are only ever redone, never undone, so undo that
+is interrupted by a crash resumes where it left off.
 
 </ul>
 
+<p> Records are not written to the file one field at a time.  They are
+serialized into an in-memory log buffer and the buffer is handed to the
+file's channel in large chunks, either when it fills up or when some
+caller needs the log durable up to a given LSN (see {@link #forceUpTo}).
 */
 
 public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
+    private FileChannel channel;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +119,52 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int SLOT_INSERT_RECORD = 7;
+    static final int SLOT_DELETE_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+
+    /** Size of the in-memory log buffer, in bytes. */
+    static final int LOG_BUFFER_SIZE = 256 * 1024;
 
-    long currentOffset = -1;//protected by this
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    long baseLsn = 0; // LSN of the first byte after the header //protected by this
+    long currentOffset = -1; // LSN of the next record to append //protected by this
+    private long writtenLsn = 0; // bytes below this LSN are in the file //protected by this
+    private long durableLsn = 0; // bytes below this LSN are forced //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    // duration of the phases of the last call to recover(), in nanoseconds
+    private long analysisNanos, redoNanos, undoNanos; //protected by this
+
+    /** Default time the flusher waits for more commits to join a group. */
+    static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+    /** Default number of commits that triggers a group flush immediately. */
+    static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+
+    private long groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY; //protected by this
+    private int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE; //protected by this
+
+    // number of commits appended but not yet covered by a force
+    private int waitingCommits = 0; //protected by this
+    private long groupFlushes = 0; //protected by this
+    private Thread flusher = null; //protected by this
+    private boolean flusherStopped = false; //protected by this
+
+    // held while forcing the channel, so that logTruncate cannot swap
+    // out the file underneath the flusher thread
+    private final Object forceLock = new Object();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -107,6 +180,7 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,18 +201,42 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            channel.truncate(0);
+            writeHeader(channel, NO_CHECKPOINT_ID, 0);
+            baseLsn = 0;
+            currentOffset = writtenLsn = durableLsn = 0;
+            logBuffer.clear();
+        }
+    }
+
+    /** Position the log at the end of an existing log file, so that
+        it can be read (by recovery) and appended to. */
+    void openExisting() throws IOException {
+        recoveryUndecided = false;
+        if (channel.size() < HEADER_SIZE) {
+            channel.truncate(0);
+            writeHeader(channel, NO_CHECKPOINT_ID, 0);
         }
+        baseLsn = readHeader(LONG_SIZE);
+        currentOffset = writtenLsn = durableLsn =
+            baseLsn + channel.size() - HEADER_SIZE;
+        logBuffer.clear();
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** @return the LSN that the next appended record will receive */
+    public synchronized long getCurrentLsn() {
+        return currentOffset;
+    }
+
+    /** @return the LSN up to which the log is known to be on stable storage */
+    public synchronized long getDurableLsn() {
+        return durableLsn;
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -158,32 +256,145 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
 
-    /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+    /** Write a commit record to disk for the specified tid, and wait
+        until the log has been forced past it.  A transaction that has
+        logged nothing, such as a read-only one that never called
+        {@link #logXactionBegin}, has nothing to make durable, so no
+        record is written for it.  <p>
+
+        The force is not issued by the committing thread.  Instead, the
+        commit is handed to a single flusher thread that forces the log
+        once for every commit appended within a short window (see
+        {@link #setGroupCommit}), so concurrent commits share one fsync
+        and do not serialize behind each other on the LogFile monitor.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitEnd;
+        synchronized (this) {
+            if (!tidToLastLogRecord.containsKey(tid.getId()))
+                return;
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            endRecord();
+            commitEnd = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+
+            waitingCommits++;
+            startFlusher();
+            notifyAll();
+        }
+        awaitDurable(commitEnd);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Configure group commit.
+        @param maxDelay the longest time, in milliseconds, the flusher
+          waits for additional commits before forcing the log; 0 forces
+          as soon as the previous force completes
+        @param maxBatch the number of waiting commits that triggers a
+          force without waiting for the rest of the delay
+    */
+    public synchronized void setGroupCommit(long maxDelay, int maxBatch) {
+        if (maxDelay < 0 || maxBatch < 1)
+            throw new IllegalArgumentException("invalid group commit settings");
+        groupCommitDelay = maxDelay;
+        groupCommitSize = maxBatch;
+        notifyAll();
+    }
+
+    /** @return the number of forces the flusher thread has issued on
+        behalf of committing transactions */
+    public synchronized long getGroupFlushCount() {
+        return groupFlushes;
+    }
+
+    // start the flusher thread the first time a commit is queued
+    private void startFlusher() {
+        if (flusher != null)
+            return;
+        flusherStopped = false;
+        flusher = new Thread("LogFile-flusher") {
+            public void run() { flushCommits(); }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private synchronized void awaitDurable(long lsn) throws IOException {
+        while (durableLsn < lsn) {
+            if (flusher == null)
+                throw new IOException("log flusher stopped before commit was durable");
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for commit");
+            }
+        }
+    }
+
+    /** Body of the flusher thread: wait for queued commits, let the
+        group fill up, then force the log once for all of them. */
+    private void flushCommits() {
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (waitingCommits == 0 && !flusherStopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only shutdown interrupts us
+                    }
+                }
+                if (waitingCommits == 0) {
+                    flusher = null;
+                    notifyAll();
+                    return;
+                }
+                long deadline = System.currentTimeMillis() + groupCommitDelay;
+                long now;
+                while (waitingCommits < groupCommitSize
+                        && !flusherStopped
+                        && (now = System.currentTimeMillis()) < deadline) {
+                    try {
+                        wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        // ignore; the deadline bounds the wait
+                    }
+                }
+                waitingCommits = 0;
+                target = currentOffset;
+            }
+
+            try {
+                forceUpTo(target - 1);
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    flusher = null;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                groupFlushes++;
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,34 +402,62 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the new record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, lsn = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           previous lsn of the transaction
            before page data (see writePageData)
            after page data
-           start offset
+           record lsn
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        beginRecord(UPDATE_RECORD, tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(recordOut,before);
+        writePageData(recordOut,after);
+        long lsn = endRecord();
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE LSN = " + lsn);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Write a SLOT_INSERT or SLOT_DELETE record for a single tuple
+        inserted into or deleted from a heap page.
+        @param tid The transaction performing the write
+        @param pid The page that changed
+        @param insert true if the tuple was inserted, false if deleted
+        @param slot The slot the tuple occupies
+        @param tuple The serialized tuple
+        @return the LSN of the new record
+    */
+    public synchronized long logSlotChange(TransactionId tid, PageId pid,
+                                           boolean insert, int slot, byte[] tuple)
+        throws IOException {
+        preAppend();
+        beginRecord(insert ? SLOT_INSERT_RECORD : SLOT_DELETE_RECORD, tid.getId());
+        writeSlotChange(recordOut, pid, slot, tuple);
+        return endRecord();
+    }
+
+    private static void writeSlotChange(DataOutput out, PageId pid, int slot,
+                                        byte[] tuple) throws IOException {
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+        out.writeInt(slot);
+        out.writeInt(tuple.length);
+        out.write(tuple);
+    }
+
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -233,43 +472,43 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            out.writeInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput in) throws IOException {
         PageId pid;
         Page newPage = null;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        String pageClassName = in.readUTF();
+        String idClassName = in.readUTF();
 
         try {
             Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = in.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                idArgs[i] = new Integer(in.readInt());
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            int pageSize = in.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            in.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
@@ -307,149 +546,127 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        long lsn = endRecord();
+        tidToFirstLogRecord.put(tid.getId(), lsn);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Write a fuzzy checkpoint record.  The checkpoint does not
+        flush the buffer pool or block transactions while pages are
+        written; instead it records the active transactions and the
+        dirty page table, and recovery redoes from the oldest recLSN
+        in it.  The background writer in BufferPool keeps that recLSN
+        moving forward. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long cpLsn;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, lsn = " + currentOffset);
+            preAppend();
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            // safe under our monitor: the dirty page table is a
+            // concurrent map and is updated under this monitor too
+            Map<PageId,Long> dirty = Database.getBufferPool().getDirtyPageTable();
+            beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            recordOut.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                recordOut.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION LSN: " + tidToFirstLogRecord.get(key));
+                recordOut.writeLong(tidToFirstLogRecord.get(key));
+                Long last = tidToLastLogRecord.get(key);
+                recordOut.writeLong(last == null ? -1 : last);
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            recordOut.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                recordOut.writeInt(e.getKey().getTableId());
+                recordOut.writeInt(e.getKey().getPageNumber());
+                recordOut.writeLong(e.getValue());
             }
+            cpLsn = endRecord();
+        }
+
+        //once the CP is durable, make sure the CP location at the
+        // beginning of the log file is updated
+        forceUpTo(cpLsn);
+        synchronized (this) {
+            if (readHeader(0) < cpLsn)
+                writeHeader(channel, cpLsn, baseLsn);
+            //Debug.log("CP LSN = " + cpLsn);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  LSNs are preserved: the retained suffix of the
+        log is copied to a new file whose header records its base LSN. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        writeBuffer();
+        long cpLoc = readHeader(0);
+
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
         long minLogRecord = cpLoc;
+        LogRecord cp = readRecord(openReader(cpLoc));
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        if (cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        for (long[] txn : cp.activeTxns) {
+            long firstLogRecord = txn[1];
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        }
+        // redo may have to start before the checkpoint
+        for (long[] page : cp.dirtyPages) {
+            if (page[2] < minLogRecord) {
+                minLogRecord = page[2];
             }
         }
 
+        if (minLogRecord <= baseLsn)
+            return;
+
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        FileChannel newChannel = logNew.getChannel();
+        writeHeader(newChannel, cpLoc, minLogRecord);
+
+        long from = fileOffset(minLogRecord);
+        long count = channel.size() - from;
+        long copied = 0;
+        newChannel.position(HEADER_SIZE); // transferTo appends at the channel position
+        while (copied < count) {
+            copied += channel.transferTo(from + copied, count - copied,
+                                         newChannel);
         }
+        newChannel.force(true);
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        Debug.log("TRUNCATING LOG;  WAS " + channel.size() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (count + HEADER_SIZE));
 
-        currentOffset = raf.getFilePointer();
+        synchronized (forceLock) {
+            raf.close();
+            logNew.close();
+            logFile.delete();
+            newFile.renameTo(logFile);
+            raf = new RandomAccessFile(logFile, "rw");
+            channel = raf.getChannel();
+            newFile.delete();
+        }
+        baseLsn = minLogRecord;
         //print();
     }
 
@@ -466,8 +683,109 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (last == null)
+                    return; // nothing logged, nothing to undo
+                TreeMap<Long,Long> toUndo = new TreeMap<Long,Long>();
+                toUndo.put(last, tid.getId());
+                undo(toUndo);
+            }
+        }
+    }
+
+    /** Undo the updates of a set of transactions, newest record first,
+        writing a CLR for every UPDATE undone and installing the before
+        images on disk.  The log is forced before any page is written.
+
+        @param toUndo maps the LSN of the next record to undo to the
+          transaction it belongs to (initially, each transaction's last
+          record)
+    */
+    private void undo(TreeMap<Long,Long> toUndo) throws IOException {
+        writeBuffer(); // records to undo must be readable from the file
+        // pages are changed in memory and written once, after all
+        // CLRs are logged
+        HashMap<PageId,Page> restored = new HashMap<PageId,Page>();
+
+        while (!toUndo.isEmpty()) {
+            Map.Entry<Long,Long> next = toUndo.pollLastEntry();
+            LogRecord rec = readRecord(openReader(next.getKey()));
+            long undoNext;
+            switch (rec.type) {
+            case UPDATE_RECORD:
+                beginRecord(CLR_RECORD, rec.tid);
+                recordOut.writeLong(rec.prevLsn);
+                recordOut.writeInt(UPDATE_RECORD);
+                writePageData(recordOut, rec.before);
+                endRecord();
+                restored.put(rec.pid, rec.before);
+                undoNext = rec.prevLsn;
+                break;
+            case SLOT_INSERT_RECORD:
+            case SLOT_DELETE_RECORD:
+                // the compensating change is the opposite slot change
+                boolean used = rec.type == SLOT_DELETE_RECORD;
+                beginRecord(CLR_RECORD, rec.tid);
+                recordOut.writeLong(rec.prevLsn);
+                recordOut.writeInt(used ? SLOT_INSERT_RECORD : SLOT_DELETE_RECORD);
+                writeSlotChange(recordOut, rec.pid, rec.slot, rec.tuple);
+                endRecord();
+                HeapPage p = (HeapPage) workingPage(rec.pid, restored);
+                p.applySlotChange(rec.slot, used, rec.tuple);
+                undoNext = rec.prevLsn;
+                break;
+            case CLR_RECORD:
+                undoNext = rec.undoNextLsn;
+                break;
+            case BEGIN_RECORD:
+                undoNext = -1;
+                break;
+            default:
+                undoNext = rec.prevLsn;
+            }
+            if (undoNext >= 0)
+                toUndo.put(undoNext, rec.tid);
+        }
+
+        force();
+        installPages(restored.values());
+    }
+
+    /** Apply the change described by an UPDATE, slot change or CLR
+        record to the working copy of its page. */
+    private void redo(LogRecord rec, Map<PageId,Page> working) throws IOException {
+        if (rec.after != null) {
+            working.put(rec.pid, rec.after);
+        } else {
+            HeapPage p = (HeapPage) workingPage(rec.pid, working);
+            p.applySlotChange(rec.slot, rec.type == SLOT_INSERT_RECORD
+                              || (rec.type == CLR_RECORD && rec.clrKind == SLOT_INSERT_RECORD),
+                              rec.tuple);
+        }
+    }
+
+    /** Return the copy of a page that recovery is changing, starting
+        from the buffer pool's copy if it has one, else from disk. */
+    private Page workingPage(PageId pid, Map<PageId,Page> working) throws IOException {
+        Page p = working.get(pid);
+        if (p == null) {
+            Page cached = Database.getBufferPool().peekPage(pid);
+            if (cached != null) {
+                p = new HeapPage((HeapPageId) pid, cached.getPageData());
+            } else {
+                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
             }
+            working.put(pid, p);
+        }
+        return p;
+    }
+
+    // write recovered page images to disk and drop any cached copies
+    private void installPages(Collection<Page> pages) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        for (Page p : pages) {
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            bp.discardPage(p.getId());
         }
     }
 
@@ -475,10 +793,19 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // with an empty dirty page table the checkpoint leaves
+            // nothing to redo at startup
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                flusherStopped = true;
+                notifyAll();
+                synchronized (forceLock) {
+                    raf.close();
+                }
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -492,19 +819,447 @@ public class LogFile {
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+                openExisting();
+                long start = System.nanoTime();
+
+                // analysis: rebuild the transaction table from the last
+                // checkpoint and find the end of the valid log
+                long cpLsn = readHeader(0);
+                long scanFrom = (cpLsn == NO_CHECKPOINT_ID) ? baseLsn : cpLsn;
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+
+                LogReader in = openReader(scanFrom);
+                long validEnd = scanFrom;
+                while (validEnd < currentOffset) {
+                    LogRecord rec;
+                    try {
+                        rec = readRecord(in);
+                    } catch (IOException e) {
+                        // torn write at the tail of the log
+                        Debug.log("RECOVERY: ignoring partial record at " + validEnd);
+                        break;
+                    }
+                    validEnd = in.position();
+                    switch (rec.type) {
+                    case CHECKPOINT_RECORD:
+                        for (long[] txn : rec.activeTxns) {
+                            tidToFirstLogRecord.put(txn[0], txn[1]);
+                            tidToLastLogRecord.put(txn[0], txn[2]);
+                        }
+                        for (long[] page : rec.dirtyPages) {
+                            dirtyPages.put(new HeapPageId((int) page[0], (int) page[1]), page[2]);
+                        }
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        tidToFirstLogRecord.remove(rec.tid);
+                        tidToLastLogRecord.remove(rec.tid);
+                        break;
+                    default:
+                        // records that change a page also dirty it
+                        if (rec.pid != null && !dirtyPages.containsKey(rec.pid))
+                            dirtyPages.put(rec.pid, rec.lsn);
+                        if (!tidToFirstLogRecord.containsKey(rec.tid))
+                            tidToFirstLogRecord.put(rec.tid, rec.lsn);
+                        tidToLastLogRecord.put(rec.tid, rec.lsn);
+                    }
+                }
+                if (validEnd < currentOffset) {
+                    channel.truncate(fileOffset(validEnd));
+                    currentOffset = writtenLsn = durableLsn = validEnd;
+                }
+                long analysisDone = System.nanoTime();
+
+                // redo: repeat history, committed or not, from the
+                // oldest recLSN; records older than their page's recLSN
+                // are already on disk
+                long redoFrom = validEnd;
+                for (Long recLsn : dirtyPages.values()) {
+                    redoFrom = Math.min(redoFrom, recLsn);
+                }
+                int redoCount = 0;
+                LinkedHashMap<PageId,Page> redone = new LinkedHashMap<PageId,Page>();
+                in = openReader(redoFrom);
+                while (in.position() < validEnd) {
+                    LogRecord rec = readRecord(in);
+                    if (rec.pid == null)
+                        continue;
+                    Long recLsn = dirtyPages.get(rec.pid);
+                    if (recLsn != null && rec.lsn >= recLsn) {
+                        redo(rec, redone);
+                        redoCount++;
+                    }
+                }
+                installPages(redone.values());
+                long redoDone = System.nanoTime();
+
+                // undo: roll back every transaction without a COMMIT or ABORT
+                TreeMap<Long,Long> toUndo = new TreeMap<Long,Long>();
+                for (Map.Entry<Long,Long> e : tidToLastLogRecord.entrySet()) {
+                    toUndo.put(e.getValue(), e.getKey());
+                }
+                Set<Long> losers = new HashSet<Long>(tidToLastLogRecord.keySet());
+                undo(toUndo);
+                for (Long tid : losers) {
+                    beginRecord(ABORT_RECORD, tid);
+                    endRecord();
+                    tidToFirstLogRecord.remove(tid);
+                    tidToLastLogRecord.remove(tid);
+                }
+                force();
+                long undoDone = System.nanoTime();
+
+                analysisNanos = analysisDone - start;
+                redoNanos = redoDone - analysisDone;
+                undoNanos = undoDone - redoDone;
+                Debug.log("RECOVERY: analysis " + analysisNanos / 1000 + "us, redo "
+                          + redoCount + " records in " + redoNanos / 1000 + "us, undo "
+                          + losers.size() + " transactions in " + undoNanos / 1000 + "us");
             }
          }
     }
 
+    /** @return the time, in milliseconds, the analysis phase of the
+        last recovery took */
+    public synchronized double getAnalysisTime() {
+        return analysisNanos / 1e6;
+    }
+
+    /** @return the time, in milliseconds, the redo phase of the last
+        recovery took */
+    public synchronized double getRedoTime() {
+        return redoNanos / 1e6;
+    }
+
+    /** @return the time, in milliseconds, the undo phase of the last
+        recovery took */
+    public synchronized double getUndoTime() {
+        return undoNanos / 1e6;
+    }
+
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        // some code goes here
+    public synchronized void print() throws IOException {
+        if (recoveryUndecided)
+            openExisting();
+        writeBuffer();
+        long cpLsn = readHeader(0);
+        System.out.println("CHECKPOINT LSN: " + cpLsn + ", BASE LSN: " + baseLsn);
+        LogReader in = openReader(baseLsn);
+        while (in.position() < currentOffset) {
+            LogRecord rec = readRecord(in);
+            StringBuilder line = new StringBuilder();
+            line.append(rec.lsn).append(": ").append(recordName(rec.type))
+                .append(" tid=").append(rec.tid)
+                .append(" prev=").append(rec.prevLsn);
+            if (rec.type == CLR_RECORD) {
+                line.append(" undoNext=").append(rec.undoNextLsn)
+                    .append(" kind=").append(recordName(rec.clrKind));
+            }
+            switch (rec.type) {
+            case CLR_RECORD:
+            case UPDATE_RECORD:
+            case SLOT_INSERT_RECORD:
+            case SLOT_DELETE_RECORD:
+                line.append(" page=").append(rec.pid.getTableId())
+                    .append(":").append(rec.pid.getPageNumber());
+                if (rec.after == null)
+                    line.append(" slot=").append(rec.slot);
+                break;
+            case CHECKPOINT_RECORD:
+                for (long[] txn : rec.activeTxns) {
+                    line.append(" [tid=").append(txn[0]).append(" first=")
+                        .append(txn[1]).append(" last=").append(txn[2]).append("]");
+                }
+                for (long[] page : rec.dirtyPages) {
+                    line.append(" [page=").append(page[0]).append(":")
+                        .append(page[1]).append(" recLSN=").append(page[2]).append("]");
+                }
+                break;
+            }
+            System.out.println(line);
+        }
+        System.out.println("END LSN: " + currentOffset);
+    }
+
+    private static String recordName(int type) {
+        switch (type) {
+        case ABORT_RECORD: return "ABORT";
+        case COMMIT_RECORD: return "COMMIT";
+        case UPDATE_RECORD: return "UPDATE";
+        case BEGIN_RECORD: return "BEGIN";
+        case CHECKPOINT_RECORD: return "CHECKPOINT";
+        case CLR_RECORD: return "CLR";
+        case SLOT_INSERT_RECORD: return "SLOT_INSERT";
+        case SLOT_DELETE_RECORD: return "SLOT_DELETE";
+        default: return "UNKNOWN(" + type + ")";
+        }
     }
 
+    /** Force the entire log, including buffered records, to disk. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        forceUpTo(currentOffset - 1);
+    }
+
+    /** Make sure the log record with the specified LSN, and every
+        record before it, is on stable storage.  This is the write-ahead
+        rule: BufferPool calls this with a page's LSN (the LSN of the
+        last record that changed it) before writing the page, so only
+        the prefix of the log describing that page has to be forced.
+
+        @param lsn the LSN of the last record that must be durable
+    */
+    public void forceUpTo(long lsn) throws IOException {
+        long target;
+        synchronized (this) {
+            if (lsn < durableLsn)
+                return;
+            writeBuffer();
+            target = writtenLsn;
+        }
+        synchronized (forceLock) {
+            // read channel under forceLock: logTruncate may have
+            // copied the records into a new file
+            channel.force(true);
+        }
+        synchronized (this) {
+            if (target > durableLsn)
+                durableLsn = target;
+            notifyAll();
+        }
+    }
+
+    // ===================== Log buffer =====================================
+
+    /** A ByteArrayOutputStream whose contents can be viewed without copying. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(1024);
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private long recordTid; // tid of the record being serialized
+
+    // start serializing a record into recordOut
+    private void beginRecord(int type, long tid) throws IOException {
+        Long prev = tidToLastLogRecord.get(tid);
+        recordTid = tid;
+        record.reset();
+        recordOut.writeInt(type);
+        recordOut.writeLong(tid);
+        recordOut.writeLong(prev == null ? -1 : prev);
+    }
+
+    // finish the record being serialized, append it to the log buffer
+    // and return its LSN
+    private long endRecord() throws IOException {
+        long lsn = currentOffset;
+        recordOut.writeLong(lsn);
+        ByteBuffer data = record.view();
+        if (data.remaining() > logBuffer.remaining())
+            writeBuffer();
+        if (data.remaining() > logBuffer.capacity()) {
+            // too big to buffer; hand it straight to the channel
+            writeFully(channel, data, fileOffset(writtenLsn));
+            writtenLsn = currentOffset + record.size();
+        } else {
+            logBuffer.put(data);
+        }
+        currentOffset += record.size();
+        if (recordTid != -1)
+            tidToLastLogRecord.put(recordTid, lsn);
+        return lsn;
+    }
+
+    // hand the contents of the log buffer to the file (without forcing)
+    private void writeBuffer() throws IOException {
+        if (logBuffer.position() == 0)
+            return;
+        logBuffer.flip();
+        int n = logBuffer.remaining();
+        writeFully(channel, logBuffer, fileOffset(writtenLsn));
+        writtenLsn += n;
+        logBuffer.clear();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer data, long pos)
+        throws IOException {
+        while (data.hasRemaining()) {
+            pos += ch.write(data, pos);
+        }
+    }
+
+    private long fileOffset(long lsn) {
+        return lsn - baseLsn + HEADER_SIZE;
+    }
+
+    private static void writeHeader(FileChannel ch, long cpLsn, long base)
+        throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(cpLsn);
+        header.putLong(base);
+        header.flip();
+        writeFully(ch, header, 0);
+    }
+
+    private long readHeader(int offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(LONG_SIZE);
+        while (b.hasRemaining()) {
+            if (channel.read(b, offset + b.position()) < 0)
+                throw new EOFException("log header truncated");
+        }
+        b.flip();
+        return b.getLong();
+    }
+
+    /** A log record read back from the log file. */
+    static class LogRecord {
+        int type;
+        long tid;
+        long prevLsn;
+        long lsn;
+        long undoNextLsn = -1; // CLR only
+        int clrKind;           // CLR only: the kind of change it made
+        PageId pid;            // page changed by UPDATE, SLOT_*, CLR
+        Page before;           // UPDATE only
+        Page after;            // UPDATE, and the installed image of a CLR
+        int slot;              // slot changes, direct or in a CLR
+        byte[] tuple;
+        long[][] activeTxns;   // CHECKPOINT only: {tid, first lsn, last lsn}
+        long[][] dirtyPages;   // CHECKPOINT only: {table id, page number, recLSN}
+    }
+
+    /** Read the next record from the log.
+        @throws IOException if the record is incomplete or malformed */
+    LogRecord readRecord(LogReader in) throws IOException {
+        LogRecord rec = new LogRecord();
+        long start = in.position();
+        rec.type = in.readInt();
+        rec.tid = in.readLong();
+        rec.prevLsn = in.readLong();
+        switch (rec.type) {
+        case UPDATE_RECORD:
+            rec.before = readPageData(in);
+            rec.after = readPageData(in);
+            rec.pid = rec.after.getId();
+            break;
+        case SLOT_INSERT_RECORD:
+        case SLOT_DELETE_RECORD:
+            readSlotChange(in, rec);
+            break;
+        case CLR_RECORD:
+            rec.undoNextLsn = in.readLong();
+            rec.clrKind = in.readInt();
+            if (rec.clrKind == UPDATE_RECORD) {
+                rec.after = readPageData(in);
+                rec.pid = rec.after.getId();
+            } else {
+                readSlotChange(in, rec);
+            }
+            break;
+        case CHECKPOINT_RECORD:
+            int n = in.readInt();
+            rec.activeTxns = new long[n][];
+            for (int i = 0; i < n; i++) {
+                rec.activeTxns[i] = new long[] { in.readLong(), in.readLong(), in.readLong() };
+            }
+            n = in.readInt();
+            rec.dirtyPages = new long[n][];
+            for (int i = 0; i < n; i++) {
+                rec.dirtyPages[i] = new long[] { in.readInt(), in.readInt(), in.readLong() };
+            }
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new IOException("bad log record type " + rec.type + " at " + start);
+        }
+        rec.lsn = in.readLong();
+        if (rec.lsn != start)
+            throw new IOException("log record at " + start + " claims lsn " + rec.lsn);
+        return rec;
+    }
+
+    private static void readSlotChange(DataInput in, LogRecord rec) throws IOException {
+        rec.pid = new HeapPageId(in.readInt(), in.readInt());
+        rec.slot = in.readInt();
+        rec.tuple = new byte[in.readInt()];
+        in.readFully(rec.tuple);
+    }
+
+    /** A stream over the log that knows the LSN it is positioned at. */
+    static class LogReader extends DataInputStream {
+        private final long startLsn;
+        private final CountingStream counter;
+
+        private LogReader(CountingStream in, long startLsn) {
+            super(in);
+            this.counter = in;
+            this.startLsn = startLsn;
+        }
+
+        long position() {
+            return startLsn + counter.count;
+        }
+    }
+
+    private static class CountingStream extends FilterInputStream {
+        long count = 0;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long k = super.skip(n);
+            count += k;
+            return k;
+        }
+    }
+
+    /** Return a stream that reads the log starting at the record with
+        the specified LSN.  Buffered records must have been written
+        (see writeBuffer) before calling this. */
+    LogReader openReader(long lsn) {
+        final FileChannel ch = channel;
+        final long start = fileOffset(lsn);
+        InputStream in = new InputStream() {
+            long pos = start;
+
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : (one[0] & 0xff);
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = ch.read(ByteBuffer.wrap(b, off, len), pos);
+                if (n > 0)
+                    pos += n;
+                return n;
+            }
+        };
+        return new LogReader(new CountingStream(new BufferedInputStream(in, 16 * 1024)), lsn);
     }
 
 }
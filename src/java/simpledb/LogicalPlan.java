@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -38,6 +39,26 @@ public class LogicalPlan {
     private String query;
 //    private Query owner;
 
+    // the number of threads each base table is scanned with
+    private static int parallelism = 1;
+
+    /** Set the degree of parallelism of the plans {@link #physicalPlan}
+        builds: with more than one, each base table (and the filters on
+        it) is scanned as that many page ranges in parallel and gathered
+        with a {@link Gather} exchange.  Tables with fewer pages than that
+        are scanned by one thread.
+
+        @param dop the number of threads per scan; 1 turns parallelism off
+    */
+    public static void setParallelism(int dop) {
+        parallelism = Math.max(1, dop);
+    }
+
+    /** @return the degree of parallelism set with {@link #setParallelism} */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
@@ -289,6 +310,7 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,ArrayList<Predicate>> scanFilters = new HashMap<String,ArrayList<Predicate>>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -335,13 +357,28 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!scanFilters.containsKey(lf.tableAlias))
+                scanFilters.put(lf.tableAlias, new ArrayList<Predicate>());
+            scanFilters.get(lf.tableAlias).add(p);
+        }
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-            
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
-
-            //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
+        // estimate each table's filters together, so statistics on
+        // correlated columns can be used
+        for (Map.Entry<String, ArrayList<Predicate>> e : scanFilters.entrySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            filterSelectivities.put(e.getKey(), s.estimateSelectivity(e.getValue()));
+        }
+        
+        // the filters are applied right on top of the scans; drop the
+        // columns nothing above them refers to, so joins and sorts only
+        // carry what the query needs
+        for (LogicalScanNode table : tables) {
+            OpIterator scan = null;
+            if (parallelism > 1)
+                scan = parallelScan(t, table, scanFilters.get(table.alias));
+            if (scan == null)
+                scan = prune(table.alias, subplanMap.get(table.alias));
+            subplanMap.put(table.alias, scan);
         }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
@@ -481,6 +518,106 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /** Return the fields of a table that the query refers to above its
+        filters -- in joins, the select list, grouping or ordering.
+        @param alias the alias of the table
+        @return the fields' qualified names (alias.field), or null if the
+        query selects all of them (SELECT *)
+    */
+    HashSet<String> referencedFields(String alias) {
+        HashSet<String> used = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            used.add(si.fname);
+        }
+        for (LogicalJoinNode lj : joins) {
+            used.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                used.add(lj.f2QuantifiedName);
+        }
+        if (aggField != null)
+            used.add(aggField);
+        if (groupByField != null)
+            used.add(groupByField);
+        if (oByField != null)
+            used.add(oByField);
+
+        HashSet<String> fields = new HashSet<String>();
+        for (String f : used) {
+            if (f.startsWith(alias + "."))
+                fields.add(f);
+        }
+        return fields;
+    }
+
+    /** @return the size in bytes of the tuples a scan of the table passes
+        up the plan, once its unused fields have been dropped */
+    int scanTupleSize(String alias) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableMap.get(alias));
+        HashSet<String> used = referencedFields(alias);
+        if (used == null)
+            return td.getSize();
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (used.contains(alias + "." + td.getFieldName(i)))
+                size += td.getFieldType(i).getLen();
+        }
+        return Math.max(size, td.getFieldType(0).getLen());
+    }
+
+    /** Project the output of a scan down to the fields the query refers
+        to (see {@link #referencedFields}).  A table none of whose fields
+        are referenced keeps its first one, so its tuples can still be
+        joined and counted.
+        @return plan, or a projection of it
+    */
+    private OpIterator prune(String alias, OpIterator plan) {
+        HashSet<String> used = referencedFields(alias);
+        if (used == null)
+            return plan;
+        TupleDesc td = plan.getTupleDesc();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (used.contains(td.getFieldName(i))) {
+                fields.add(i);
+                types.add(td.getFieldType(i));
+            }
+        }
+        if (fields.size() == td.numFields())
+            return plan;
+        if (fields.isEmpty()) {
+            fields.add(0);
+            types.add(td.getFieldType(0));
+        }
+        return new Project(fields, types, plan);
+    }
+
+    /** Build a scan of table, with the filters on it and its unused
+        fields dropped, that runs as {@link #getParallelism} page ranges
+        in parallel.
+        @return the parallel plan, or null if the table is too small
+    */
+    private OpIterator parallelScan(TransactionId t, LogicalScanNode table, ArrayList<Predicate> preds) {
+        int numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(table.t)).numPages();
+        if (numPages < parallelism)
+            return null;
+        OpIterator[] parts = new OpIterator[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            int start = (int) ((long) numPages * i / parallelism);
+            // the last range also takes pages added after planning
+            int end = i == parallelism - 1 ? Integer.MAX_VALUE : (int) ((long) numPages * (i + 1) / parallelism);
+            OpIterator part = new SeqScan(t, table.t, table.alias, start, end);
+            if (preds != null) {
+                for (Predicate p : preds)
+                    part = new Filter(p, part);
+            }
+            parts[i] = prune(table.alias, part);
+        }
+        return new Gather(parts);
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -229,17 +229,14 @@ public class OperatorCardinality {
         String pureFieldName = tmp[1];
         Integer tableId = tableAliasToId.get(tableAlias);
 
-        double groupFieldAvgSelectivity = 1.0;
         if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
-                    Database.getCatalog().getTableName(tableId))
-                    .avgSelectivity(
-                            Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
-                            Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            // one group per distinct value of the group by field
+            double groups = JoinOptimizer.distinctValues(tableAlias,
+                    pureFieldName, childCard, tableStats, tableAliasToId);
+            if (groups > 0) {
+                a.setEstimatedCardinality((int) groups);
+                return hasJoinPK;
+            }
         }
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
@@ -56,4 +56,16 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record describing a change to this
+     * page, or 0 if the page has not been changed since it was read.
+     * The log must be forced up to this LSN before the page is written.
+     */
+    public long getLSN();
+
+    /**
+     * Set the LSN of the last log record describing a change to this page.
+     */
+    public void setLSN(long lsn);
 }
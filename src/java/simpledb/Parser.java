@@ -595,7 +595,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-parallel threads] [-greedy joins] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -607,7 +607,13 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        // costs measured by CostCalibrator, if it has been run for this database
+        File costs = new File(new File(argv[0]).getAbsoluteFile().getParentFile(), CostModel.FILE_NAME);
+        if (costs.isFile()) {
+            CostModel.load(costs);
+            System.out.println("Loaded cost model from " + costs);
+        }
+        TableStats.loadStatistics();
 
         String queryFile = null;
 
@@ -616,6 +622,23 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-parallel")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected thread count after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    LogicalPlan.setParallelism(Integer.parseInt(argv[i]));
+                    System.out.println("Scanning with " + LogicalPlan.getParallelism() + " threads.");
+                } else if (argv[i].equals("-greedy")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected join count after -greedy\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    JoinOptimizer.setGreedyThreshold(Integer.parseInt(argv[i]));
+                    System.out.println("Ordering more than " + JoinOptimizer.getGreedyThreshold()
+                            + " joins greedily.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
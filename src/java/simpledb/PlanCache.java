@@ -1,50 +1,134 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to join a given set of relations.  A set of relations is a bitset,
+ * bit i standing for the i'th relation of the query, and the cache is an
+ * open-addressed hash table over parallel arrays, so looking a set up
+ * allocates nothing.
+ *
+ * Only the top of each plan is kept: which relations make up its outer
+ * (left) input, and which join predicate connects it to the rest.  The
+ * inputs' plans are in the cache themselves, so the whole plan can be
+ * read back from the top down. */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    private long[] sets = new long[64];
+    private double[] costs = new double[64];
+    private int[] cards = new int[64];
+    private long[] lefts = new long[64];
+    private int[] joins = new int[64];
+    private boolean[] pkeys = new boolean[64];
+    private int size;
+
+    /** Add a new cost, cardinality and plan for a particular set of relations.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-        specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        specified set
+        @param s the set of relations for which a new plan is being added; never empty
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
-    */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
-    }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+        @param left the relations of the plan's outer input, or 0 for a single relation
+        @param join the index of the join predicate joining the outer input to the rest, or -1 for a single relation
+        @param pkey whether one of the plan's joins is on a primary key
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    void addPlan(long s, double cost, int card, long left, int join, boolean pkey) {
+        if (2 * (this.size + 1) > this.sets.length) {
+            this.grow();
+        }
+        int i = this.slot(s);
+        if (this.sets[i] == 0) {
+            this.sets[i] = s;
+            this.size++;
+        }
+        this.costs[i] = cost;
+        this.cards[i] = card;
+        this.lefts[i] = left;
+        this.joins[i] = join;
+        this.pkeys[i] = pkey;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+
+    /** @return whether there is a plan for the specified set of relations */
+    boolean contains(long s) {
+        return this.sets[this.slot(s)] != 0;
+    }
+
+    /** Find the cost of the best plan in the cache for the specified set
+        @param s the set of relations to look up the best cost for
+        @return the cost of the best plan for s in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long s) {
+        return this.costs[this.find(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
-        @return the cardinality of the best order for s in the cache
+
+    /** Find the cardinality of the best plan in the cache for the specified set
+        @param s the set of relations to look up the best cardinality for
+        @return the cardinality of the best plan for s in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long s) {
+        return this.cards[this.find(s)];
+    }
+
+    /** @return the relations of the outer input of the best plan for s, or 0 if s is a single relation */
+    long getLeft(long s) {
+        return this.lefts[this.find(s)];
+    }
+
+    /** @return the index of the join predicate at the top of the best plan for s, or -1 if s is a single relation */
+    int getJoin(long s) {
+        return this.joins[this.find(s)];
+    }
+
+    /** @return whether one of the joins of the best plan for s is on a primary key */
+    boolean hasPkey(long s) {
+        return this.pkeys[this.find(s)];
+    }
+
+    /** @return the number of sets with plans in the cache */
+    int size() {
+        return this.size;
+    }
+
+    private int find(long s) {
+        int i = this.slot(s);
+        if (this.sets[i] == 0) {
+            throw new java.util.NoSuchElementException("no plan for relations " + Long.toBinaryString(s));
+        }
+        return i;
+    }
+
+    // the slot holding s, or the empty slot where it would go
+    private int slot(long s) {
+        int mask = this.sets.length - 1;
+        long h = s * 0x9e3779b97f4a7c15L;
+        int i = (int) (h >>> 32) & mask;
+        while (this.sets[i] != 0 && this.sets[i] != s) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        long[] oldSets = this.sets;
+        double[] oldCosts = this.costs;
+        int[] oldCards = this.cards;
+        long[] oldLefts = this.lefts;
+        int[] oldJoins = this.joins;
+        boolean[] oldPkeys = this.pkeys;
+        int n = oldSets.length * 2;
+        this.sets = new long[n];
+        this.costs = new double[n];
+        this.cards = new int[n];
+        this.lefts = new long[n];
+        this.joins = new int[n];
+        this.pkeys = new boolean[n];
+        for (int k = 0; k < oldSets.length; k++) {
+            if (oldSets[k] != 0) {
+                int i = this.slot(oldSets[k]);
+                this.sets[i] = oldSets[k];
+                this.costs[i] = oldCosts[k];
+                this.cards[i] = oldCards[k];
+                this.lefts[i] = oldLefts[k];
+                this.joins[i] = oldJoins[k];
+                this.pkeys[i] = oldPkeys[k];
+            }
+        }
     }
 }
@@ -15,6 +15,10 @@ public class SeqScan implements OpIterator {
     private int tableId;
     private String alias;
     private DbFileIterator tableIter;
+
+    // the pages [startPage, endPage) to scan, or endPage < 0 for all
+    private int startPage;
+    private int endPage;
     
     private boolean iterOpen;
 
@@ -40,6 +44,29 @@ public class SeqScan implements OpIterator {
         this.tableId = tableid;
         this.alias = tableAlias;
         this.tableIter = null;
+        this.startPage = 0;
+        this.endPage = -1;
+    }
+
+    /**
+     * Creates a sequential scan over pages startPage (inclusive) to endPage
+     * (exclusive) of the specified table, which must be a HeapFile.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, as in the other constructor.
+     * @param startPage
+     *            the first page to scan.
+     * @param endPage
+     *            the page after the last page to scan.
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int startPage, int endPage) {
+        this(tid, tableid, tableAlias);
+        this.startPage = startPage;
+        this.endPage = endPage;
     }
 
     /**
@@ -84,7 +111,12 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        this.tableIter = Database.getCatalog().getDatabaseFile(this.tableId).iterator(this.tId);
+        DbFile file = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (this.endPage >= 0) {
+            this.tableIter = ((HeapFile) file).iterator(this.tId, this.startPage, this.endPage);
+        } else {
+            this.tableIter = file.iterator(this.tId);
+        }
         this.tableIter.open();
         this.iterOpen = true;
     }
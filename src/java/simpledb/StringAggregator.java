@@ -67,6 +67,20 @@ public class StringAggregator implements Aggregator {
         this.fieldCount.put(curGbField, this.fieldCount.get(curGbField)+1);
     }
 
+    /**
+     * Merge another StringAggregator's partial counts into this one.
+     * @param other a StringAggregator built with the same arguments
+     */
+    public void mergePartial(Aggregator other) {
+        StringAggregator o = (StringAggregator) other;
+        if (!this.aggrFieldName.endsWith(")")) {
+            this.aggrFieldName = o.aggrFieldName;
+        }
+        for (Field curGbField : o.fieldCount.keySet()) {
+            this.fieldCount.put(curGbField, this.fieldCount.getOrDefault(curGbField, 0) + o.fieldCount.get(curGbField));
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
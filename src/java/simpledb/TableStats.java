@@ -1,10 +1,20 @@
 package simpledb;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.io.Serializable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.io.*;
 
 import java.util.ArrayList;
 
@@ -16,7 +26,64 @@ import java.util.ArrayList;
  */
 public class TableStats {
 
-	private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
+	private static final ConcurrentHashMap<String, TableStats> statsMap = new Registry();
+
+    // tables whose statistics loadStatistics found saved and fresh on
+    // disk, to be read in when first asked for
+    private static final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+    // a table left pending, and how many page writes its file had seen
+    // then: any since mean the saved statistics may no longer match it
+    private static final class Pending {
+        final int tableid;
+        final long writes;
+
+        Pending(int tableid, long writes) {
+            this.tableid = tableid;
+            this.writes = writes;
+        }
+    }
+
+    // whether statistics are saved next to their tables
+    private static volatile boolean persistent = false;
+
+    /**
+     * The statistics registry.  Looking up a table that loadStatistics
+     * left pending reads its statistics from disk (or, if that fails or the
+     * table has been written to since, computes them) there and then.
+     */
+    private static final class Registry extends ConcurrentHashMap<String, TableStats> {
+        private static final long serialVersionUID = 1L;
+
+        public TableStats get(Object name) {
+            TableStats s = super.get(name);
+            if (s != null || !pending.containsKey(name)) {
+                return s;
+            }
+            synchronized (pending) {
+                s = super.get(name);
+                Pending p = pending.get(name);
+                if (s == null && p != null) {
+                    HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(p.tableid);
+                    if (hf.writeCount() == p.writes) {
+                        s = load(p.tableid, CostModel.getPageReadCost());
+                    }
+                    if (s == null) {
+                        s = new TableStats(p.tableid, CostModel.getPageReadCost());
+                        s.save();
+                    }
+                    this.put((String) name, s);
+                }
+                pending.remove(name);
+                return s;
+            }
+        }
+
+        // the statistics in memory, without loading pending ones
+        TableStats peek(Object name) {
+            return super.get(name);
+        }
+    }
 
 	static final int IOCOSTPERPAGE = 1000;
 
@@ -24,6 +91,19 @@ public class TableStats {
         return statsMap.get(tablename);
     }
 
+    /**
+     * @return the table's statistics if they are in memory, or null.
+     *         Unlike getTableStats, this never reads in or computes the
+     *         statistics of a table loadStatistics left pending, so it is
+     *         cheap enough to call while holding locks.
+     */
+    static TableStats peekTableStats(String tablename) {
+        if (statsMap instanceof Registry) {
+            return ((Registry) statsMap).peek(tablename);
+        }
+        return statsMap.get(tablename);
+    }
+
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
     }
@@ -50,18 +130,146 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Compute statistics for every table in the catalog, several tables
+     * at a time: one thread per processor, each taking the next table
+     * nobody has started on yet.
+     */
     public static void computeStatistics() {
+        computeStatistics(Database.getCatalog().tableIdIterator());
+    }
+
+    /**
+     * Make statistics available for every table in the catalog, reading
+     * them from the sidecar file saved next to each table's file where
+     * the table hasn't changed since they were saved.  Those are only read
+     * when the table's statistics are first looked up; the rest are
+     * computed now, as computeStatistics does, and saved for next time.
+     * This turns persistence on (see setPersistent).
+     */
+    public static void loadStatistics() {
+        setPersistent(true);
+        ArrayList<Integer> stale = new ArrayList<Integer>();
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+            DataInputStream saved = f instanceof HeapFile ? readKey((HeapFile) f, null) : null;
+            if (saved != null) {
+                closeQuietly(saved);
+                pending.put(Database.getCatalog().getTableName(tableid),
+                        new Pending(tableid, ((HeapFile) f).writeCount()));
+            } else {
+                stale.add(tableid);
+            }
+        }
+        if (!stale.isEmpty()) {
+            computeStatistics(stale.iterator());
+        }
+    }
+
+    // column pairs to keep joint statistics on, by table name
+    private static final ConcurrentHashMap<String, ArrayList<String[]>> columnGroups =
+            new ConcurrentHashMap<String, ArrayList<String[]>>();
+
+    /**
+     * Declare two columns of a table to be correlated, so the table's
+     * statistics keep joint statistics on them (see ColumnPairStats) and
+     * conjunctions of predicates on both are estimated from those.  Takes
+     * effect the next time the table's statistics are computed.
+     *
+     * @param tableName the table
+     * @param column1 the first column's name
+     * @param column2 the second column's name
+     */
+    public static void declareColumnGroup(String tableName, String column1, String column2) {
+        ArrayList<String[]> groups = new ArrayList<String[]>();
+        ArrayList<String[]> old = columnGroups.putIfAbsent(tableName, groups);
+        groups = old == null ? groups : old;
+        synchronized (groups) {
+            groups.add(new String[] { column1, column2 });
+        }
+    }
+
+    // the declared column pairs of a table, as field indexes
+    private static int[][] declaredGroups(int tableid, TupleDesc td) {
+        ArrayList<int[]> pairs = new ArrayList<int[]>();
+        ArrayList<String[]> groups;
+        try {
+            groups = columnGroups.get(Database.getCatalog().getTableName(tableid));
+        } catch (NoSuchElementException e) {
+            groups = null;
+        }
+        if (groups != null) {
+            synchronized (groups) {
+                for (String[] g : groups) {
+                    pairs.add(new int[] { td.fieldNameToIndex(g[0]), td.fieldNameToIndex(g[1]) });
+                }
+            }
+        }
+        return pairs.toArray(new int[0][]);
+    }
 
+    /**
+     * Set whether statistics are saved to a sidecar file next to their
+     * table's file (the table file's name plus ".stats") whenever they are
+     * computed or rebuilt, for loadStatistics to read at the next start.
+     */
+    public static void setPersistent(boolean on) {
+        persistent = on;
+    }
+
+    private static void computeStatistics(Iterator<Integer> tableIt) {
         System.out.println("Computing table stats.");
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        HashMap<Integer, Future<TableStats>> running = new HashMap<Integer, Future<TableStats>>();
         while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            final int tableid = tableIt.next();
+            running.put(tableid, pool.submit(new Callable<TableStats>() {
+                public TableStats call() {
+                    TableStats stats = new TableStats(tableid, CostModel.getPageReadCost());
+                    stats.save();
+                    return stats;
+                }
+            }));
+        }
+        pool.shutdown();
+        for (Map.Entry<Integer, Future<TableStats>> e : running.entrySet()) {
+            try {
+                setTableStats(Database.getCatalog().getTableName(e.getKey()), e.getValue().get());
+            } catch (InterruptedException | ExecutionException ex) {
+                ex.printStackTrace();
+            }
         }
         System.out.println("Done.");
     }
 
+    // re-analyze a table once this many rows, plus this fraction of the
+    // rows it had, have been inserted or deleted since its statistics were
+    // built
+    private static int refreshMinimum = 500;
+    private static double refreshFraction = 0.1;
+
+    // runs the re-analyzes, one at a time, in the background
+    private static final ExecutorService analyzer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "stats-refresh");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Set how many modifications make a table's statistics stale: once
+     * minimum + fraction * (rows when they were built) rows have been
+     * inserted or deleted, they are rebuilt in the background and swapped
+     * into the registry.
+     */
+    public static void setRefreshThreshold(int minimum, double fraction) {
+        refreshMinimum = minimum;
+        refreshFraction = fraction;
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -72,9 +280,83 @@ public class TableStats {
     private TupleDesc td;
     private int numTuples;
     private int numFields;
-	private int ioCostPerPage;
-	private IntHistogram[] intHistograms;
-    private StringHistogram[] stringHistograms;
+	private double ioCostPerPage;
+    private EquiDepthHistogram[] histograms;
+
+    /**
+     * Rows kept in a random sample while scanning, for building the
+     * histograms (where there are no exact counts) and column pair
+     * statistics, and estimating the number of distinct values of each
+     * column when only some pages are read.
+     */
+    static final int RESERVOIR_SIZE = 10000;
+
+    /**
+     * When every page is read, a column with no more distinct values than
+     * this has its histogram built from exact counts of them rather than
+     * from the reservoir.
+     */
+    static final int EXACT_VALUES = 10000;
+
+    /** The seed {@link #setSampleSeed} starts out with. */
+    public static final long DEFAULT_SAMPLE_SEED = 0x5ca1ab1eL;
+
+    // seeds the choice of pages and rows to sample, so that a table's
+    // statistics (and the plans built from them) don't change from one
+    // run to the next
+    private static long sampleSeed = DEFAULT_SAMPLE_SEED;
+
+    // pages read by the statistics computeStatistics builds; 0 reads all
+    private static int samplePages = 0;
+
+    /**
+     * Set how many pages of each table computeStatistics (and the
+     * two-argument constructor) reads.  Tables with more pages are
+     * sampled: that many pages, chosen at random, are read in full.
+     *
+     * @param pages the number of pages to sample, or 0 to read every page
+     */
+    public static void setSamplePages(int pages) {
+        samplePages = Math.max(0, pages);
+    }
+
+    /** @return the sample size set with {@link #setSamplePages} */
+    public static int getSamplePages() {
+        return samplePages;
+    }
+
+    /**
+     * Set the seed for choosing which pages, and which of their rows, a
+     * sample takes.  Statistics built with the same seed from the same
+     * table are the same.
+     */
+    public static void setSampleSeed(long seed) {
+        sampleSeed = seed;
+    }
+
+    /** @return the seed set with {@link #setSampleSeed} */
+    public static long getSampleSeed() {
+        return sampleSeed;
+    }
+
+    private int numPages;
+    private int pagesRead;
+    private int rowsSampled;
+    private double cardinalityError;
+    private double[] distinct;
+    private HyperLogLog[] sketches;
+    private int tableid;
+    private int modifications;
+    private int refreshAfter;
+    private boolean refreshing;
+    private ColumnPairStats[] pairs;
+    // the rows each column's histogram was built from: every row read,
+    // or the reservoir
+    private int[] histogramRows;
+    // the table file's length and modification time when these
+    // statistics were built; saved statistics are stale if they differ
+    private long fileLength;
+    private long fileModified;
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
@@ -86,17 +368,25 @@ public class TableStats {
      *            The cost per page of IO. This doesn't differentiate between
      *            sequential-scan IO and disk seeks.
      */
-    public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+    public TableStats(int tableid, double ioCostPerPage) {
+        this(tableid, ioCostPerPage, samplePages);
+    }
 
+    /**
+     * Create a new TableStats object from a sample of the table's pages.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param pagesToSample
+     *            How many randomly chosen pages to read; if the table has
+     *            no more pages than this, or it is 0, every page is read and
+     *            the statistics are exact.
+     */
+    public TableStats(int tableid, double ioCostPerPage, int pagesToSample) {
         this.ioCostPerPage = ioCostPerPage;
+        this.tableid = tableid;
         this.numTuples = 0;
         this.file = Database.getCatalog().getDatabaseFile(tableid);
         this.td = file.getTupleDesc();
@@ -105,79 +395,442 @@ public class TableStats {
         //While we could use ArrayList, these arrays make it easier to
         //access histograms relative to each field based on its corresponding
         //index in the table
-        this.intHistograms = new IntHistogram[numFields];
-        this.stringHistograms = new StringHistogram[numFields];
+        this.histograms = new EquiDepthHistogram[numFields];
+        this.sketches = new HyperLogLog[numFields];
    
-        DbFileIterator iter = file.iterator(new TransactionId());
-        try {
-            iter.open();
-
-            int[] min = new int[numFields];
-            int[] max = new int[numFields];
-            boolean first = true;
-
-            while (iter.hasNext()) {
-                Tuple next = iter.next();
-                numTuples++;
-
-                //We can get mins and maxs in this iteration, so we only have to iterate
-                //through twice. We have to iterate a second time to put the tuples in
-                //the histograms, but we can't make histograms until we know min/max.
+        // One pass over the pages, straight from the pool or the disk:
+        // statistics are approximate anyway, so take no locks and keep the
+        // pool's contents as they were.  Every row goes into the distinct
+        // value sketches, and into the counts of each column's values while
+        // a full scan finds few enough of them; the histograms of the other
+        // columns are built from the reservoir.
+        for (int i=0; i<numFields; i++) {
+            sketches[i] = new HyperLogLog();
+        }
+        int[][] groups = declaredGroups(tableid, td);
+        HyperLogLog[] pairSketches = new HyperLogLog[groups.length];
+        for (int g = 0; g < groups.length; g++) {
+            pairSketches[g] = new HyperLogLog();
+        }
+        HeapFile hf = (HeapFile) file;
+        this.fileLength = hf.getFile().length();
+        this.fileModified = hf.getFile().lastModified();
+        if (System.currentTimeMillis() - this.fileModified < MTIME_RESOLUTION) {
+            // a write later in the same tick wouldn't change the time
+            this.fileModified = UNTRUSTED;
+        }
+        this.numPages = hf.numPages();
+        Random rand = new Random(sampleSeed);
+        int[] pages = choosePages(numPages, pagesToSample, rand);
+        boolean sampling = pages.length < numPages;
 
+        // block sampling: every tuple on a chosen page is read, and kept
+        // in the reservoir with equal probability
+        Tuple[] reservoir = new Tuple[RESERVOIR_SIZE];
+        ArrayList<HashMap<Field, Integer>> counts = new ArrayList<HashMap<Field, Integer>>();
+        for (int i=0; i<numFields; i++) {
+            counts.add(sampling ? null : new HashMap<Field, Integer>());
+        }
+        double pageSum = 0, pageSumSq = 0;
+        for (int p : pages) {
+            int onPage = 0;
+            Iterator<Tuple> tuples = scanPage(hf, p).iterator();
+            while (tuples.hasNext()) {
+                Tuple next = tuples.next();
+                if (rowsSampled < RESERVOIR_SIZE) {
+                    reservoir[rowsSampled] = next;
+                } else {
+                    int slot = rand.nextInt(rowsSampled + 1);
+                    if (slot < RESERVOIR_SIZE) {
+                        reservoir[slot] = next;
+                    }
+                }
+                rowsSampled++;
+                onPage++;
                 for (int i=0; i<numFields; i++) {
-                    if (td.getFieldType(i) == Type.INT_TYPE) {
-                        int value = ((IntField) next.getField(i)).getValue();
-                        if (first) {
-                            min[i] = value;
-                            max[i] = value;
-                            first = false;
-                        }
-                        else {
-                            if (value<min[i]) {
-                                min[i] = value;
-                            }
-                            if (value>max[i]) {
-                                max[i] = value;
-                            }
+                    sketches[i].add(next.getField(i));
+                    HashMap<Field, Integer> c = counts.get(i);
+                    if (c != null) {
+                        Integer before = c.put(next.getField(i), 1);
+                        if (before != null) {
+                            c.put(next.getField(i), before + 1);
+                        } else if (c.size() > EXACT_VALUES) {
+                            counts.set(i, null);
                         }
                     }
                 }
+                for (int g = 0; g < groups.length; g++) {
+                    pairSketches[g].add(next.getField(groups[g][0]), next.getField(groups[g][1]));
+                }
             }
-            iter.rewind();
-            //Now we build histograms for each field
+            pageSum += onPage;
+            pageSumSq += (double) onPage * onPage;
+        }
+        this.pagesRead = pages.length;
+        int kept = Math.min(rowsSampled, RESERVOIR_SIZE);
 
+        if (sampling) {
+            // scale up the rows per page, with the standard error of that
+            // mean (with the finite population correction)
+            double mean = pageSum / pagesRead;
+            double variance = pagesRead > 1 ? (pageSumSq - pagesRead * mean * mean) / (pagesRead - 1) : 0;
+            this.numTuples = (int) Math.round(mean * numPages);
+            this.cardinalityError = numPages * Math.sqrt(Math.max(0, variance) / pagesRead
+                    * (1 - (double) pagesRead / numPages));
+        } else {
+            this.numTuples = rowsSampled;
+            this.cardinalityError = 0;
+        }
+
+        // a full scan put every row in the sketches; a sample has to be
+        // scaled up
+        if (sampling) {
+            this.distinct = new double[numFields];
             for (int i=0; i<numFields; i++) {
-                if (td.getFieldType(i) == Type.INT_TYPE) {
-                    intHistograms[i] = new IntHistogram(NUM_HIST_BINS, min[i], max[i]);
+                this.distinct[i] = estimateDistinct(reservoir, kept, i, numTuples);
+            }
+        }
+
+        this.histogramRows = new int[numFields];
+        for (int i=0; i<numFields; i++) {
+            if (counts.get(i) != null) {
+                histograms[i] = new EquiDepthHistogram(counts.get(i), NUM_HIST_BINS);
+                histogramRows[i] = rowsSampled;
+            } else {
+                histograms[i] = new EquiDepthHistogram(column(reservoir, kept, i), kept, NUM_HIST_BINS,
+                        estimateDistinct(i), numTuples);
+                histogramRows[i] = kept;
+            }
+        }
+        this.pairs = new ColumnPairStats[groups.length];
+        for (int g = 0; g < groups.length; g++) {
+            int f1 = groups[g][0], f2 = groups[g][1];
+            this.pairs[g] = new ColumnPairStats(f1, f2, column(reservoir, kept, f1), column(reservoir, kept, f2),
+                    kept, numTuples, pairSketches[g], estimateDistinct(f1), estimateDistinct(f2));
+        }
+        this.refreshAfter = refreshMinimum + (int) (refreshFraction * numTuples);
+    }
+
+    // a page of the table, from the pool if it is there and from the
+    // disk if not, without locking it
+    private HeapPage scanPage(HeapFile hf, int p) {
+        HeapPageId pid = new HeapPageId(this.tableid, p);
+        Page page = Database.getBufferPool().peekPage(pid);
+        if (page == null) {
+            page = hf.readPage(pid);
+        }
+        return (HeapPage) page;
+    }
+
+    // the values of a field in the first n rows of sample
+    private static Field[] column(Tuple[] sample, int n, int field) {
+        Field[] values = new Field[n];
+        for (int r = 0; r < n; r++) {
+            values[r] = sample[r].getField(field);
+        }
+        return values;
+    }
+
+    /**
+     * Account for a tuple inserted into the table since these statistics
+     * were built: it is counted, and its values go into the histograms and
+     * the distinct value sketches.  BufferPool calls this once the
+     * transaction that inserted it has committed.
+     *
+     * @param t the inserted tuple
+     */
+    public synchronized void addTuple(Tuple t) {
+        this.numTuples++;
+        for (int i=0; i<numFields; i++) {
+            histograms[i].addValue(t.getField(i));
+            sketches[i].add(t.getField(i));
+        }
+        for (ColumnPairStats p : pairs) {
+            p.addValues(t.getField(p.field1()), t.getField(p.field2()));
+        }
+        this.modified();
+    }
+
+    /**
+     * Account for a tuple deleted from the table since these statistics
+     * were built.  Its values are taken out of the histograms; a sketch
+     * can't forget a value, so the distinct counts only come down at the
+     * next re-analyze.
+     *
+     * @param t the deleted tuple
+     */
+    public synchronized void removeTuple(Tuple t) {
+        this.numTuples = Math.max(0, this.numTuples - 1);
+        for (int i=0; i<numFields; i++) {
+            histograms[i].removeValue(t.getField(i));
+        }
+        for (ColumnPairStats p : pairs) {
+            p.removeValues(t.getField(p.field1()), t.getField(p.field2()));
+        }
+        this.modified();
+    }
+
+    /** @return the rows inserted or deleted since these statistics were built */
+    public synchronized int modifications() {
+        return this.modifications;
+    }
+
+    // once there have been enough changes, build fresh statistics in the
+    // background and put them in this one's place, unless someone else
+    // has replaced it already
+    private void modified() {
+        this.modifications++;
+        if (this.refreshing || this.modifications < this.refreshAfter) {
+            return;
+        }
+        this.refreshing = true;
+        final TableStats stale = this;
+        analyzer.submit(new Runnable() {
+            public void run() {
+                TableStats fresh = new TableStats(stale.tableid, stale.ioCostPerPage, samplePages);
+                fresh.save();
+                try {
+                    statsMap.replace(Database.getCatalog().getTableName(stale.tableid), stale, fresh);
+                } catch (NoSuchElementException e) {
+                    // the table has been dropped
                 }
-                if (td.getFieldType(i) == Type.STRING_TYPE) {
-                    stringHistograms[i] = new StringHistogram(NUM_HIST_BINS);
+            }
+        });
+    }
+
+    // sidecar file layout: MAGIC, VERSION, the table file's length and
+    // modification time, then the statistics
+    private static final int MAGIC = 0x53544154;
+    private static final int VERSION = 5;
+
+    // the coarsest modification time resolution of the file systems a
+    // table might be on, in milliseconds (FAT's is two seconds)
+    private static final long MTIME_RESOLUTION = 2000;
+    // the modification time saved for statistics built so soon after the
+    // table was written that a later write could leave the time as it was;
+    // it matches no file, so they are computed again next time
+    private static final long UNTRUSTED = -1;
+
+    /** @return the file statistics for the table in f are saved in */
+    static File sidecar(HeapFile f) {
+        return new File(f.getFile().getPath() + ".stats");
+    }
+
+    // the sidecar of f opened past its header, if it is for f as it is on
+    // disk now; otherwise null.  The key is filled in for stats, if given.
+    // Only the file's length and modification time are checked, never its
+    // contents: a write can only leave those as they were within the
+    // timestamp resolution, and statistics built that soon after one are
+    // saved as UNTRUSTED.  Writes made after loadStatistics are caught by
+    // the file's write count instead (see Registry).
+    private static DataInputStream readKey(HeapFile f, TableStats stats) {
+        File side = sidecar(f);
+        if (!side.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(side)));
+            long length = f.getFile().length();
+            long modified = f.getFile().lastModified();
+            if (in.readInt() == MAGIC && in.readInt() == VERSION
+                    && in.readLong() == length
+                    && in.readLong() == modified) {
+                if (stats != null) {
+                    stats.fileLength = length;
+                    stats.fileModified = modified;
                 }
+                return in;
             }
-            while (iter.hasNext()) {
-                Tuple next = iter.next();
-                for (int i=0; i<numFields; i++) {
-                    Type t = td.getFieldType(i);
-                    if (t == Type.INT_TYPE) {
-                        int value = ((IntField) next.getField(i)).getValue();
-                        intHistograms[i].addValue(value);
-                    }
-                    if (t == Type.STRING_TYPE) {
-                        String value = ((StringField) next.getField(i)).getValue();
-                        stringHistograms[i].addValue(value);
-                    }
+            in.close();
+        } catch (IOException e) {
+            closeQuietly(in);
+        }
+        return null;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Save these statistics in their table's sidecar file, if statistics
+     * are being persisted (see loadStatistics).  Written to a temporary
+     * file first and renamed into place, so a reader never sees half of
+     * it.
+     */
+    synchronized void save() {
+        if (!persistent || !(file instanceof HeapFile)) {
+            return;
+        }
+        File side = sidecar((HeapFile) file);
+        File tmp = new File(side.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.fileLength);
+            out.writeLong(this.fileModified);
+            out.writeInt(this.numFields);
+            out.writeInt(this.numTuples);
+            out.writeInt(this.numPages);
+            out.writeInt(this.pagesRead);
+            out.writeInt(this.rowsSampled);
+            out.writeDouble(this.cardinalityError);
+            out.writeBoolean(this.distinct != null);
+            for (int i = 0; i < numFields; i++) {
+                if (this.distinct != null) {
+                    out.writeDouble(this.distinct[i]);
                 }
+                this.sketches[i].write(out);
+                out.writeInt(this.histogramRows[i]);
+                this.histograms[i].write(out);
+            }
+            out.writeInt(this.pairs.length);
+            for (ColumnPairStats p : this.pairs) {
+                p.write(out);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(side)) {
+                side.delete();
+                tmp.renameTo(side);
+            }
+        } catch (IOException e) {
+            // statistics will just be computed again next time
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Read a table's statistics from its sidecar file.
+     *
+     * @return the statistics, or null if there are none saved or the
+     *         table has changed since they were
+     */
+    static TableStats load(int tableid, double ioCostPerPage) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile)) {
+            return null;
+        }
+        TableStats s = new TableStats();
+        DataInputStream in = readKey((HeapFile) f, s);
+        if (in == null) {
+            return null;
+        }
+        try {
+            s.tableid = tableid;
+            s.ioCostPerPage = ioCostPerPage;
+            s.file = f;
+            s.td = f.getTupleDesc();
+            s.numFields = in.readInt();
+            if (s.numFields != s.td.numFields()) {
+                return null;
+            }
+            s.numTuples = in.readInt();
+            s.numPages = in.readInt();
+            s.pagesRead = in.readInt();
+            s.rowsSampled = in.readInt();
+            s.cardinalityError = in.readDouble();
+            if (in.readBoolean()) {
+                s.distinct = new double[s.numFields];
+            }
+            s.sketches = new HyperLogLog[s.numFields];
+            s.histograms = new EquiDepthHistogram[s.numFields];
+            s.histogramRows = new int[s.numFields];
+            for (int i = 0; i < s.numFields; i++) {
+                if (s.distinct != null) {
+                    s.distinct[i] = in.readDouble();
+                }
+                s.sketches[i] = HyperLogLog.read(in);
+                s.histogramRows[i] = in.readInt();
+                s.histograms[i] = EquiDepthHistogram.read(in, s.td.getFieldType(i));
+            }
+            // saved before the columns now declared correlated were
+            int[][] groups = declaredGroups(tableid, s.td);
+            s.pairs = new ColumnPairStats[in.readInt()];
+            if (s.pairs.length != groups.length) {
+                return null;
+            }
+            for (int g = 0; g < s.pairs.length; g++) {
+                s.pairs[g] = ColumnPairStats.read(in, s.td);
+                if (s.pairs[g].field1() != groups[g][0] || s.pairs[g].field2() != groups[g][1]) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        s.refreshAfter = refreshMinimum + (int) (refreshFraction * s.numTuples);
+        return s;
+    }
+
+    private TableStats() {
+    }
+
+    /**
+     * @return the pages to read, in file order: all of them, or n chosen
+     *         at random (a partial Fisher-Yates shuffle) if n is smaller
+     */
+    private static int[] choosePages(int numPages, int n, Random rand) {
+        int[] pages = new int[numPages];
+        for (int p = 0; p < numPages; p++) {
+            pages[p] = p;
+        }
+        if (n <= 0 || n >= numPages) {
+            return pages;
+        }
+        for (int i = 0; i < n; i++) {
+            int j = i + rand.nextInt(numPages - i);
+            int tmp = pages[i];
+            pages[i] = pages[j];
+            pages[j] = tmp;
+        }
+        int[] chosen = Arrays.copyOf(pages, n);
+        Arrays.sort(chosen);
+        return chosen;
+    }
+
+    /**
+     * Estimate the number of distinct values of a column in a table of
+     * total rows from a uniform sample of them, with the GEE estimator
+     * (Charikar et al.): values seen once stand for sqrt(total / sample)
+     * values each, values seen more often for one.
+     */
+    private static double estimateDistinct(Tuple[] sample, int n, int field, int total) {
+        HashMap<Field, Integer> counts = new HashMap<Field, Integer>();
+        for (int r = 0; r < n; r++) {
+            Field f = sample[r].getField(field);
+            Integer c = counts.get(f);
+            counts.put(f, c == null ? 1 : c + 1);
+        }
+        if (n == 0 || n >= total) {
+            return counts.size();
+        }
+        int once = 0;
+        for (int c : counts.values()) {
+            if (c == 1) {
+                once++;
             }
-            iter.close();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        double d = Math.sqrt((double) total / n) * once + (counts.size() - once);
+        return Math.min(Math.max(d, counts.size()), total);
     }
 
     /**
      * Estimates the cost of sequentially scanning the file, given that the cost
-     * to read a page is costPerPageIO. You can assume that there are no seeks
-     * and that no pages are in the buffer pool.
+     * to read a page is costPerPageIO. You can assume that there are no seeks.
+     * Pages already in the buffer pool cost only {@link CostModel#getPageHitCost}.
      * 
      * Also, assume that your hard drive can only read entire pages at once, so
      * if the last page of the table only has one tuple on it, it's just as
@@ -187,7 +840,8 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        return ((HeapFile) file).numPages() * ioCostPerPage;
+        return CostModel.scanCost(((HeapFile) file).numPages(),
+                Database.getBufferPool().cachedPages(this.tableid), ioCostPerPage);
     }
 
     /**
@@ -231,20 +885,141 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        double selectivity = 0.0;
-        Type t = td.getFieldType(field);
-        if (t == Type.INT_TYPE) {
-            int v = ((IntField) constant).getValue();
-            selectivity = intHistograms[field].estimateSelectivity(op, v);
-        }
-        if (t == Type.STRING_TYPE) {
-            String v = ((StringField) constant).getValue();
-            selectivity = stringHistograms[field].estimateSelectivity(op, v);
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+        return histograms[field].estimateSelectivity(op, constant);
+    }
+
+    /**
+     * Estimate the selectivity of a conjunction of predicates on the
+     * table.  Predicates on two columns declared correlated (see
+     * declareColumnGroup) are estimated together from their joint
+     * statistics; the rest are taken to be independent.
+     *
+     * @param conjunction
+     *            the predicates, on the table's field numbers
+     * @return the estimated fraction of tuples satisfying all of them
+     */
+    public synchronized double estimateSelectivity(List<Predicate> conjunction) {
+        boolean[] used = new boolean[conjunction.size()];
+        double selectivity = 1.0;
+        for (int i = 0; i < used.length; i++) {
+            for (int j = i + 1; j < used.length && !used[i]; j++) {
+                if (used[j]) {
+                    continue;
+                }
+                Predicate p1 = conjunction.get(i), p2 = conjunction.get(j);
+                ColumnPairStats pair = this.getColumnPairStats(p1.getField(), p2.getField());
+                if (pair == null) {
+                    continue;
+                }
+                if (pair.field1() != p1.getField()) {
+                    Predicate tmp = p1;
+                    p1 = p2;
+                    p2 = tmp;
+                }
+                selectivity *= this.estimatePairSelectivity(pair, p1, p2);
+                used[i] = true;
+                used[j] = true;
+            }
+            if (!used[i]) {
+                Predicate p = conjunction.get(i);
+                selectivity *= this.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+                used[i] = true;
+            }
         }
         return selectivity;
     }
 
+    /**
+     * @return the joint statistics on two columns, in either order, or null
+     *         if they weren't declared correlated
+     */
+    public ColumnPairStats getColumnPairStats(int field1, int field2) {
+        for (ColumnPairStats p : this.pairs) {
+            if ((p.field1() == field1 && p.field2() == field2)
+                    || (p.field1() == field2 && p.field2() == field1)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    // p1 is on pair's first column and p2 on its second
+    private double estimatePairSelectivity(ColumnPairStats pair, Predicate p1, Predicate p2) {
+        if (p1.getOp() != Predicate.Op.EQUALS || p2.getOp() != Predicate.Op.EQUALS) {
+            return pair.estimateSelectivity(p1.getOp(), p1.getOperand(), p2.getOp(), p2.getOperand());
+        }
+        double common = pair.commonFraction(p1.getOperand(), p2.getOperand());
+        if (common >= 0) {
+            return common;
+        }
+        // no rows at all in the values' cell: a combination that never occurs
+        if (pair.estimateSelectivity(p1.getOp(), p1.getOperand(), p2.getOp(), p2.getOperand()) == 0.0) {
+            return 0.0;
+        }
+        // a row with the first value has one of distinct pairs / distinct
+        // first values second values, and the same the other way round;
+        // with one column determining the other, the conjunction is as
+        // selective as that column alone
+        double s1 = this.estimateSelectivity(p1.getField(), p1.getOp(), p1.getOperand());
+        double s2 = this.estimateSelectivity(p2.getField(), p2.getOp(), p2.getOperand());
+        double d = pair.estimateDistinct();
+        double s = Math.min(s1 * this.estimateDistinct(p1.getField()) / d,
+                s2 * this.estimateDistinct(p2.getField()) / d);
+        return Math.min(s, Math.min(s1, s2));
+    }
+
+    /**
+     * @return the estimated number of distinct values of the field: from
+     *         its HyperLogLog sketch, or if only some pages were read,
+     *         scaled up from the sample (but no fewer than the sampled
+     *         pages held); never more than the number of tuples
+     */
+    public synchronized double estimateDistinct(int field) {
+        double d = this.sketches[field].estimate();
+        if (this.distinct != null) {
+            d = Math.max(d, this.distinct[field]);
+        }
+        return Math.max(1.0, Math.min(d, this.numTuples));
+    }
+
+    /** @return whether these statistics come from a sample of the pages */
+    public boolean isSampled() {
+        return this.pagesRead < this.numPages;
+    }
+
+    /** @return the number of pages read to build these statistics */
+    public int pagesRead() {
+        return this.pagesRead;
+    }
+
+    /**
+     * @return the standard error of {@link #totalTuples}: 0 if every page
+     *         was read, otherwise estimated from how much the number of
+     *         rows varied between the pages read
+     */
+    public double cardinalityError() {
+        return this.cardinalityError;
+    }
+
+    /**
+     * The standard error of {@link #estimateSelectivity} from sampling
+     * alone, treating the n rows the field's histogram was built from as a
+     * simple random sample of the table's N: sqrt(s (1 - s) / n (1 - n / N)).
+     * 0 if it was built from every row, which a full scan does for a
+     * column with few distinct values.  Histogram bucketing errors come on
+     * top of this.
+     */
+    public synchronized double estimateSelectivityError(int field, Predicate.Op op, Field constant) {
+        int n = this.histogramRows[field];
+        if (!this.isSampled() && n >= this.rowsSampled) {
+            return 0.0;
+        }
+        double s = this.estimateSelectivity(field, op, constant);
+        double fpc = Math.max(0.0, 1.0 - (double) n / Math.max(n, this.numTuples));
+        return n == 0 ? 1.0 : Math.sqrt(s * (1 - s) / n * fpc);
+    }
+
     /**
      * return the total number of tuples in this table
      * */
@@ -0,0 +1,272 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests for the BufferPool's background page writer.  The tests call
+ * writeDirtyPages directly; the writer thread itself may also run a
+ * round at any time, which must not change the outcome.
+ */
+public class BufferPoolWriterTest extends TestUtil.CreateHeapFile {
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    BufferPool.setStealNoForce(true);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // four full pages of rows 0..2015
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 504 * 4; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(4, empty.numPages());
+    for (int i = 0; i < 4; ++i) {
+      bp.getPage(tid, page(i), Permissions.READ_WRITE).markDirty(true, tid);
+    }
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  @After public void resetPolicy() {
+    BufferPool.setStealNoForce(false);
+  }
+
+  private HeapPageId page(int i) {
+    return new HeapPageId(empty.getId(), i);
+  }
+
+  private boolean onDisk(int v) {
+    return onDisk(empty, v);
+  }
+
+  private boolean onDisk(HeapFile hf, int v) {
+    for (int i = 0; i < hf.numPages(); i++) {
+      Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), i))).iterator();
+      while (it.hasNext()) {
+        if (((IntField) it.next().getField(0)).getValue() == v)
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private Tuple firstTuple(TransactionId tid, int pageNo) throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid, page(pageNo), Permissions.READ_ONLY);
+    return p.iterator().next();
+  }
+
+  /**
+   * Under NO-FORCE a committed transaction is still recorded as the
+   * page's dirtier.  While a second transaction holds the write lock it
+   * may have changed the page without logging it yet, so the writer
+   * must leave the page alone until the lock is released.
+   */
+  @Test public void skipsWriteLockedPages() throws Exception {
+    int value;
+    HeapPage p;
+    Transaction t1 = new Transaction();
+    Transaction t2 = new Transaction();
+    // hold the monitor so the writer thread cannot clean the page
+    // before t2 has it
+    synchronized (bp) {
+      t1.start();
+      bp.deleteTuple(t1.getId(), firstTuple(t1.getId(), 0));
+      t1.commit();
+      assertEquals(t1.getId(), bp.peekPage(page(0)).isDirty());
+
+      // t2 is in the middle of HeapFile.deleteTuple: the page has
+      // changed but BufferPool has not logged it
+      t2.start();
+      p = (HeapPage) bp.getPage(t2.getId(), page(0), Permissions.READ_WRITE);
+      Tuple victim = p.iterator().next();
+      value = ((IntField) victim.getField(0)).getValue();
+      p.deleteTuple(victim);
+    }
+
+    bp.writeDirtyPages();
+    assertEquals(t1.getId(), bp.peekPage(page(0)).isDirty());
+    assertTrue(onDisk(value));
+
+    // t2 finishes without changing anything after all
+    p.insertTuple(Utility.getHeapTuple(value, 2));
+    p.takeSlotChanges();
+    t2.commit();
+    bp.writeDirtyPages();
+    assertNull(bp.peekPage(page(0)).isDirty());
+    assertFalse(onDisk(0));
+    assertTrue(onDisk(value));
+  }
+
+  /**
+   * Eviction under STEAL leaves a dirty page alone while another
+   * transaction holds its write lock, for the same reason the writer
+   * does: the page may have a change nobody has logged yet.
+   */
+  @Test public void evictionSkipsWriteLockedPages() throws Exception {
+    bp = Database.resetBufferPool(1);
+    int value;
+    HeapPage p;
+    Transaction t1 = new Transaction();
+    Transaction t2 = new Transaction();
+    synchronized (bp) {
+      t1.start();
+      bp.deleteTuple(t1.getId(), firstTuple(t1.getId(), 0));
+      t1.commit();
+
+      // t2 is in the middle of HeapFile.deleteTuple
+      t2.start();
+      p = (HeapPage) bp.getPage(t2.getId(), page(0), Permissions.READ_WRITE);
+      Tuple victim = p.iterator().next();
+      value = ((IntField) victim.getField(0)).getValue();
+      p.deleteTuple(victim);
+    }
+
+    // the only frame holds t2's page, so there is nothing to evict
+    Transaction t3 = new Transaction();
+    t3.start();
+    try {
+      bp.getPage(t3.getId(), page(1), Permissions.READ_ONLY);
+      fail("expected DbException");
+    } catch (DbException e) {
+      // expected
+    }
+    assertTrue(onDisk(value));
+    t3.commit();
+
+    p.insertTuple(Utility.getHeapTuple(value, 2));
+    p.takeSlotChanges();
+    t2.commit();
+  }
+
+  /**
+   * Adjacent dirty pages are written with one call, and the metrics
+   * count pages and calls separately.
+   */
+  @Test public void coalescesAdjacentPages() throws Exception {
+    long pagesBefore = bp.getBackgroundPagesWritten();
+    long writesBefore = bp.getBackgroundWrites();
+
+    long pages, writes;
+    // keep the writer thread out until the pages are written
+    synchronized (bp) {
+      Transaction t = new Transaction();
+      t.start();
+      for (int i = 0; i < 4; i++) {
+        bp.deleteTuple(t.getId(), firstTuple(t.getId(), i));
+      }
+      t.commit();
+      assertEquals(4, bp.getDirtyPageTable().size());
+
+      bp.writeDirtyPages();
+      pages = bp.getBackgroundPagesWritten() - pagesBefore;
+      writes = bp.getBackgroundWrites() - writesBefore;
+    }
+    assertEquals(4, pages);
+    assertEquals(1, writes);
+    assertTrue(bp.getDirtyPageTable().isEmpty());
+    assertTrue(bp.getBackgroundWriteRate() > 0);
+    for (int i = 0; i < 4; i++) {
+      assertNull(bp.peekPage(page(i)).isDirty());
+      assertFalse(onDisk(504 * i));
+    }
+
+    // nothing dirty, nothing written
+    bp.writeDirtyPages();
+    assertEquals(pages, bp.getBackgroundPagesWritten() - pagesBefore);
+    assertEquals(writes, bp.getBackgroundWrites() - writesBefore);
+  }
+
+  /**
+   * Run the writer flat out while transactions update tables, some
+   * committing and some aborting.  Each thread has a table of its own,
+   * since HeapFile write locks every page it looks at.  An aborted row
+   * can only reach disk if the writer wrote a page in the middle of an
+   * update, before its log record existed for the rollback to undo.
+   */
+  @Test public void concurrentUpdates() throws Exception {
+    final int threads = 4;
+    final int rounds = 100;
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicBoolean failed = new AtomicBoolean(false);
+
+    final HeapFile[] tables = new HeapFile[threads];
+    for (int i = 0; i < threads; i++) {
+      File f = File.createTempFile("writer", ".dat");
+      f.deleteOnExit();
+      tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+    }
+
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          while (!done.get()) {
+            bp.writeDirtyPages();
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+          failed.set(true);
+        }
+      }
+    };
+    Thread[] updaters = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final HeapFile table = tables[i];
+      updaters[i] = new Thread() {
+        public void run() {
+          try {
+            for (int r = 1; r <= rounds; r++) {
+              // committed rows are positive, aborted ones negative
+              boolean commit = r % 2 == 0;
+              Transaction t = new Transaction();
+              t.start();
+              bp.insertTuple(t.getId(), table.getId(),
+                             Utility.getHeapTuple(commit ? r : -r, 2));
+              if (commit)
+                t.commit();
+              else
+                t.abort();
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+            failed.set(true);
+          }
+        }
+      };
+    }
+
+    writer.start();
+    for (Thread t : updaters)
+      t.start();
+    for (Thread t : updaters)
+      t.join();
+    done.set(true);
+    writer.join();
+    assertFalse(failed.get());
+    assertTrue(bp.getBackgroundPagesWritten() > 0);
+
+    bp.flushAllPages();
+    for (HeapFile table : tables) {
+      for (int r = 1; r <= rounds; r++) {
+        assertEquals(r % 2 == 0, onDisk(table, r % 2 == 0 ? r : -r));
+      }
+    }
+  }
+
+  /** JUnit suite target */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BufferPoolWriterTest.class);
+  }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class ColumnPairStatsTest {
+
+	// 100 cities with 10 zip codes each; a zip code determines its city
+	private static ColumnPairStats cityZip(int rows) {
+		Field[] city = new Field[rows];
+		Field[] zip = new Field[rows];
+		HyperLogLog sketch = new HyperLogLog();
+		for (int i = 0; i < rows; i++) {
+			int z = (i * 7) % 1000;
+			city[i] = new IntField(z / 10);
+			zip[i] = new IntField(z);
+			sketch.add(city[i], zip[i]);
+		}
+		return new ColumnPairStats(0, 1, city, zip, rows, rows, sketch, 100, 1000);
+	}
+
+	/**
+	 * There are only as many combinations as zip codes, and predicates on
+	 * both columns are estimated from where the rows really are.
+	 */
+	@Test public void correlatedTest() {
+		ColumnPairStats s = cityZip(10000);
+		Assert.assertEquals(1000, s.estimateDistinct(), 50);
+
+		// independence would say 0.11 * 0.11
+		Assert.assertEquals(0.11, s.estimateSelectivity(Op.LESS_THAN_OR_EQ, new IntField(10),
+				Op.LESS_THAN_OR_EQ, new IntField(109)), 0.02);
+		Assert.assertEquals(0.0, s.estimateSelectivity(Op.LESS_THAN, new IntField(50),
+				Op.GREATER_THAN_OR_EQ, new IntField(600)), 0.01);
+		Assert.assertEquals(0.5, s.estimateSelectivity(Op.LESS_THAN, new IntField(50),
+				Op.LESS_THAN, new IntField(500)), 0.05);
+	}
+
+	/**
+	 * With few enough combinations, each one is kept with its exact
+	 * frequency.
+	 */
+	@Test public void commonTest() {
+		ColumnPairStats s = cityZip(500);	// every seventh zip code, once each
+		Field[] city = new Field[1000];
+		Field[] zip = new Field[1000];
+		HyperLogLog sketch = new HyperLogLog();
+		for (int i = 0; i < 1000; i++) {
+			city[i] = new IntField(i % 4);
+			zip[i] = new IntField((i % 4) * 100 + (i % 8) / 4);
+			sketch.add(city[i], zip[i]);
+		}
+		s = new ColumnPairStats(0, 1, city, zip, 1000, 1000, sketch, 4, 8);
+		Assert.assertEquals(0.125, s.commonFraction(new IntField(2), new IntField(201)), 1e-9);
+		Assert.assertEquals(-1.0, s.commonFraction(new IntField(2), new IntField(301)), 1e-9);
+		Assert.assertEquals(0.25, s.estimateSelectivity(Op.EQUALS, new IntField(3),
+				Op.GREATER_THAN, new IntField(0)), 1e-9);
+	}
+
+	/**
+	 * Rows added and removed move the estimates.
+	 */
+	@Test public void updateTest() {
+		ColumnPairStats s = cityZip(10000);
+		for (int i = 0; i < 10000; i++) {
+			s.addValues(new IntField(500), new IntField(5000));
+		}
+		Assert.assertEquals(0.5, s.estimateSelectivity(Op.GREATER_THAN, new IntField(99),
+				Op.GREATER_THAN, new IntField(999)), 0.01);
+		for (int i = 0; i < 10000; i++) {
+			int z = (i * 7) % 1000;
+			s.removeValues(new IntField(z / 10), new IntField(z));
+		}
+		Assert.assertEquals(1.0, s.estimateSelectivity(Op.EQUALS, new IntField(500),
+				Op.EQUALS, new IntField(5000)), 0.05);
+	}
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.io.File;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CostModelTest {
+
+	@After public void resetCostModel() {
+		CostModel.reset();
+	}
+
+	/**
+	 * A scan costs less the more of the table is already in the buffer pool.
+	 */
+	@Test public void cachedScanTest() {
+		double cold = CostModel.scanCost(100, 0, 1000);
+		double half = CostModel.scanCost(100, 50, 1000);
+		double warm = CostModel.scanCost(100, 100, 1000);
+		Assert.assertEquals(100000.0, cold, 0.001);
+		Assert.assertTrue(warm < half);
+		Assert.assertTrue(half < cold);
+	}
+
+	/**
+	 * Rescanning an inner table that fits in the buffer pool is charged as
+	 * buffer hits; one too big for it, or an intermediate result, pays for
+	 * every pass.
+	 */
+	@Test public void nestedLoopsInnerTest() {
+		int small = 10;
+		int large = Database.getBufferPool().getMaxPages() + 1;
+		double cached = CostModel.nestedLoopsCost(100, 100, 1000, 10 * 1000, small);
+		double uncached = CostModel.nestedLoopsCost(100, 100, 1000, 10 * 1000, -1);
+		Assert.assertTrue(cached < uncached);
+		Assert.assertEquals(uncached,
+				CostModel.nestedLoopsCost(100, 100, 1000, 10 * 1000, large), 0.001);
+		Assert.assertEquals(1000 + 10 * 1000 + 99 * 10 * 1000 + 100 * 100, uncached, 0.001);
+	}
+
+	/**
+	 * A hash join of large inputs is cheaper than comparing every pair, and
+	 * more workers make it cheaper still.
+	 */
+	@Test public void hashJoinTest() {
+		double nl = CostModel.nestedLoopsCost(100000, 100000, 1000, 1000, 1);
+		double hash = CostModel.hashJoinCost(100000, 100000, 1000, 1000, 8, 8, 1);
+		Assert.assertTrue(hash < nl);
+		Assert.assertTrue(CostModel.hashJoinCost(100000, 100000, 1000, 1000, 8, 8, 4) < hash);
+	}
+
+	/**
+	 * Inputs that take more than the hash join's memory are charged for
+	 * writing their pages out and reading them back.
+	 */
+	@Test public void spillTest() {
+		long footprint = 2 * CostModel.hashJoinBytes(1000, 8);
+		CostModel.setWorkMemory(footprint);
+		double inMemory = CostModel.hashJoinCost(1000, 1000, 0, 0, 8, 8, 1);
+		CostModel.setWorkMemory(footprint - 1);
+		double spilled = CostModel.hashJoinCost(1000, 1000, 0, 0, 8, 8, 1);
+		int pages = (int) Math.ceil(16000.0 / BufferPool.getPageSize());
+		Assert.assertEquals(inMemory + 2 * pages * CostModel.getPageReadCost(), spilled, 0.001);
+	}
+
+	/**
+	 * Saved constants are loaded back.
+	 */
+	@Test public void saveLoadTest() throws Exception {
+		File f = File.createTempFile("costmodel", ".properties");
+		f.deleteOnExit();
+		CostModel.setPageReadCost(123.5);
+		CostModel.setPageHitCost(0.25);
+		CostModel.setHashTupleCost(7);
+		CostModel.setWorkMemory(12345);
+		CostModel.save(f);
+		CostModel.reset();
+		Assert.assertEquals(TableStats.IOCOSTPERPAGE, CostModel.getPageReadCost(), 0.001);
+		Assert.assertEquals(CostModel.defaultWorkMemory(), CostModel.getWorkMemory());
+
+		CostModel.load(f);
+		Assert.assertEquals(123.5, CostModel.getPageReadCost(), 0.001);
+		Assert.assertEquals(0.25, CostModel.getPageHitCost(), 0.001);
+		Assert.assertEquals(7, CostModel.getHashTupleCost(), 0.001);
+		Assert.assertEquals(12345, CostModel.getWorkMemory());
+	}
+
+	/**
+	 * Table statistics cost pages at the page read cost as it is, even
+	 * below one.
+	 */
+	@Test public void fractionalPageCostTest() throws Exception {
+		Database.reset();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+		CostModel.setPageReadCost(0.4);
+		TableStats stats = new TableStats(hf.getId(), CostModel.getPageReadCost());
+		Assert.assertEquals(hf.numPages() * 0.4, stats.estimateScanCost(), 1e-9);
+	}
+
+	/**
+	 * Calibration measures every constant, and a page from disk costs more
+	 * than one from the buffer pool.
+	 */
+	@Test public void calibrateTest() throws Exception {
+		Database.reset();
+		CostCalibrator.calibrate(256);
+		Assert.assertTrue(CostModel.getPageReadCost() > 0);
+		Assert.assertTrue(CostModel.getPageHitCost() > 0);
+		Assert.assertTrue(CostModel.getHashTupleCost() > 0);
+		Assert.assertTrue(CostModel.getWorkMemory() > 0);
+		Assert.assertTrue(CostModel.getPageReadCost() > CostModel.getPageHitCost());
+	}
+}
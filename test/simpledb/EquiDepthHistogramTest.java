@@ -0,0 +1,123 @@
+package simpledb;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class EquiDepthHistogramTest {
+
+	private static Field[] ints(int[] values) {
+		Field[] fields = new Field[values.length];
+		for (int i = 0; i < values.length; i++) {
+			fields[i] = new IntField(values[i]);
+		}
+		return fields;
+	}
+
+	/**
+	 * A column with few values keeps all of them in the common value list,
+	 * so every estimate is exact.
+	 */
+	@Test public void fewValuesTest() {
+		int[] v = new int[1000];
+		for (int i = 0; i < v.length; i++) {
+			v[i] = i < 500 ? 7 : i % 10;	// 7 is half the rows
+		}
+		EquiDepthHistogram h = new EquiDepthHistogram(ints(v), v.length, 100, 0);
+		Assert.assertEquals(10, h.numCommonValues());
+		Assert.assertEquals(0, h.numBuckets());
+
+		Assert.assertEquals(0.55, h.estimateSelectivity(Op.EQUALS, new IntField(7)), 1e-9);
+		Assert.assertEquals(0.05, h.estimateSelectivity(Op.EQUALS, new IntField(3)), 1e-9);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, new IntField(11)), 1e-9);
+		Assert.assertEquals(0.35, h.estimateSelectivity(Op.LESS_THAN, new IntField(7)), 1e-9);
+		Assert.assertEquals(0.1, h.estimateSelectivity(Op.GREATER_THAN, new IntField(7)), 1e-9);
+		Assert.assertEquals(0.45, h.estimateSelectivity(Op.NOT_EQUALS, new IntField(7)), 1e-9);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, new IntField(-5)), 1e-9);
+	}
+
+	/**
+	 * The buckets each hold about the same number of rows, whatever the
+	 * distribution, and a value too frequent for its bucket is pulled out
+	 * into the common value list.
+	 */
+	@Test public void equalDepthTest() {
+		int[] v = new int[10000];
+		for (int i = 0; i < v.length; i++) {
+			// dense near 0, sparse up to a million, and one heavy hitter
+			v[i] = i % 5 == 0 ? 424242 : (int) ((long) i * i / 100);
+		}
+		EquiDepthHistogram h = new EquiDepthHistogram(ints(v), v.length, 100, 0);
+		// the heavy hitter, and the few repeats among the smallest values
+		Assert.assertTrue(h.numCommonValues() >= 1 && h.numCommonValues() < 20);
+		Assert.assertTrue(h.numBuckets() >= 90 && h.numBuckets() <= 100);
+		Assert.assertEquals(0.2, h.estimateSelectivity(Op.EQUALS, new IntField(424242)), 1e-3);
+
+		// quartiles of the non-heavy rows
+		for (int q = 1; q < 4; q++) {
+			int rank = 8000 * q / 4;
+			int i = rank + rank / 4;	// the i-th row, skipping every fifth
+			int value = (int) ((long) i * i / 100);
+			double actual = q / 4.0 * 0.8 + (value > 424242 ? 0.2 : 0);
+			Assert.assertEquals(actual, h.estimateSelectivity(Op.LESS_THAN, new IntField(value)), 0.02);
+		}
+	}
+
+	/**
+	 * Strings are ordered by their whole value, not a prefix, so strings
+	 * sharing their first characters still fall in different buckets.
+	 */
+	@Test public void stringTest() {
+		Field[] s = new Field[2000];
+		for (int i = 0; i < s.length; i++) {
+			s[i] = new StringField(String.format("customer%05d", i), Type.STRING_LEN);
+		}
+		EquiDepthHistogram h = new EquiDepthHistogram(s, s.length, 100, 0);
+		Assert.assertTrue(h.numBuckets() >= 90);
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.LESS_THAN,
+				new StringField("customer00500", Type.STRING_LEN)), 0.02);
+		Assert.assertEquals(1.0 / 2000, h.estimateSelectivity(Op.EQUALS,
+				new StringField("customer01234", Type.STRING_LEN)), 1e-4);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN,
+				new StringField("customer99999", Type.STRING_LEN)), 1e-9);
+	}
+
+	/**
+	 * Given the column's distinct count, values the sample missed are
+	 * accounted for in the equality estimate.
+	 */
+	@Test public void scaledDistinctTest() {
+		int[] v = new int[1000];
+		for (int i = 0; i < v.length; i++) {
+			v[i] = i * 10;
+		}
+		EquiDepthHistogram sampleOnly = new EquiDepthHistogram(ints(v), v.length, 100, 0);
+		EquiDepthHistogram scaled = new EquiDepthHistogram(ints(v), v.length, 100, 10000);
+		Assert.assertEquals(1.0 / 1000, sampleOnly.estimateSelectivity(Op.EQUALS, new IntField(500)), 1e-6);
+		Assert.assertEquals(1.0 / 10000, scaled.estimateSelectivity(Op.EQUALS, new IntField(505)), 1e-6);
+	}
+
+	/**
+	 * Added and removed rows shift the estimates, including rows outside
+	 * the range the histogram was built over.
+	 */
+	@Test public void updateTest() {
+		int[] v = new int[1000];
+		for (int i = 0; i < v.length; i++) {
+			v[i] = i;
+		}
+		EquiDepthHistogram h = new EquiDepthHistogram(ints(v), v.length, 100, 0);
+		for (int i = 0; i < 1000; i++) {
+			h.addValue(new IntField(5000));
+		}
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, new IntField(1000)), 0.01);
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.LESS_THAN, new IntField(500)), 0.01);
+
+		for (int i = 0; i < 500; i++) {
+			h.removeValue(new IntField(i));
+		}
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, new IntField(500)), 0.01);
+		Assert.assertEquals(1.0 / 3, h.estimateSelectivity(Op.LESS_THAN, new IntField(1000)), 0.01);
+	}
+}
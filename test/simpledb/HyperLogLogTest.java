@@ -0,0 +1,77 @@
+package simpledb;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+public class HyperLogLogTest {
+
+	/**
+	 * The estimate is within a few percent of the true distinct count, from
+	 * a handful of values up to far more than there are registers, and
+	 * repeats don't change it.
+	 */
+	@Test public void estimateTest() {
+		int[] counts = { 10, 1000, 100000, 1000000 };
+		for (int n : counts) {
+			HyperLogLog h = new HyperLogLog();
+			for (int rep = 0; rep < 3; rep++) {
+				for (int i = 0; i < n; i++) {
+					h.add(new IntField(i * 7919));
+				}
+			}
+			Assert.assertEquals(n, h.estimate(), n * 0.05 + 1);
+		}
+
+		HyperLogLog s = new HyperLogLog();
+		for (int i = 0; i < 5000; i++) {
+			s.add(new StringField("value" + (i % 500), Type.STRING_LEN));
+		}
+		Assert.assertEquals(500, s.estimate(), 500 * 0.05);
+	}
+
+	/**
+	 * A merged sketch estimates the size of the union.
+	 */
+	@Test public void mergeTest() {
+		HyperLogLog a = new HyperLogLog();
+		HyperLogLog b = new HyperLogLog();
+		for (int i = 0; i < 60000; i++) {
+			a.add(new IntField(i));
+			b.add(new IntField(i + 30000));
+		}
+		a.merge(b);
+		Assert.assertEquals(90000, a.estimate(), 90000 * 0.05);
+	}
+
+	/**
+	 * Asking for the estimate again after more values or a merge doesn't
+	 * return the earlier one.
+	 */
+	@Test public void estimateAfterChangeTest() {
+		HyperLogLog a = new HyperLogLog();
+		HyperLogLog b = new HyperLogLog();
+		for (int i = 0; i < 1000; i++) {
+			a.add(new IntField(i));
+			b.add(new IntField(i + 100000));
+		}
+		Assert.assertEquals(1000, a.estimate(), 50);
+		Assert.assertEquals(1000, a.estimate(), 50);
+		for (int i = 1000; i < 2000; i++) {
+			a.add(new IntField(i));
+		}
+		Assert.assertEquals(2000, a.estimate(), 100);
+		a.merge(b);
+		Assert.assertEquals(3000, a.estimate(), 150);
+	}
+
+	/**
+	 * The sketch is a fixed size, however many values go in.
+	 */
+	@Test public void constantSpaceTest() {
+		HyperLogLog h = new HyperLogLog();
+		for (int i = 0; i < 33554432; i++) {
+			h.add(new IntField(i));
+		}
+		Assert.assertEquals(33554432, h.estimate(), 33554432 * 0.05);
+	}
+}
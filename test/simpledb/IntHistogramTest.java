@@ -174,4 +174,33 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * A histogram that grows its range as values arrive agrees with one
+	 * that was told the range up front.
+	 */
+	@Test public void adaptiveRangeTest() {
+		IntHistogram fixed = new IntHistogram(100, -500, 1500);
+		IntHistogram adaptive = new IntHistogram(100);
+		
+		// start in the middle so the range has to grow both ways
+		for (int c = 0; c < 20000; c++) {
+			int v = 500 + ((c * 7919) % 2001) * (c % 2 == 0 ? 1 : -1) / 2;
+			fixed.addValue(v);
+			adaptive.addValue(v);
+		}
+		
+		double selectivity = 0.0;
+		for (int c = -600; c <= 1600; c++) {
+			selectivity += adaptive.estimateSelectivity(Op.EQUALS, c);
+		}
+		Assert.assertTrue(selectivity > 0.99 && selectivity < 1.01);
+		
+		for (int c = -400; c <= 1400; c += 100) {
+			Assert.assertEquals(fixed.estimateSelectivity(Op.GREATER_THAN, c),
+					adaptive.estimateSelectivity(Op.GREATER_THAN, c), 0.05);
+		}
+		Assert.assertTrue(adaptive.estimateSelectivity(Op.LESS_THAN, -501) < 0.001);
+		Assert.assertTrue(adaptive.estimateSelectivity(Op.GREATER_THAN, 1501) < 0.001);
+	}
 }
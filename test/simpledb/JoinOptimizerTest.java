@@ -5,8 +5,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -57,6 +59,11 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
     /**
      * Set up the test; create some initial tables to work with
      */
+    @After
+    public void resetGreedyThreshold() {
+        JoinOptimizer.setGreedyThreshold(JoinOptimizer.DEFAULT_GREEDY_THRESHOLD);
+    }
+
     @Before
     public void setUp() throws Exception {
         super.setUp();
@@ -265,6 +272,32 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
     }
 
+    /**
+     * Without a primary key, an equi-join's cardinality comes from the
+     * number of distinct values of the join fields: each of the 20 values
+     * of t1.c8 matches a twentieth of t2.
+     */
+    @Test
+    public void estimateJoinCardinalityFromDistinct() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName2 + " t1, " + tableName2
+                        + " t2 WHERE t1.c8 = t2.c7;"),
+                new Vector<LogicalJoinNode>());
+
+        int cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c8", "c7", Predicate.Op.EQUALS), 10000, 10000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertEquals(10000 * 10000 / 20, cardinality, 10000 * 10000 / 20 * 0.05);
+
+        // a filtered input can't have more values than rows
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c8", "c7", Predicate.Op.EQUALS), 10, 10000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertEquals(10 * 10000 / 20, cardinality, 10 * 10000 / 20 * 0.05);
+    }
+
     /**
      * Determine whether the orderJoins implementation is doing a reasonable job
      * of ordering joins, and not taking an unreasonable amount of time to do so
@@ -621,4 +654,124 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * A 16-way star join, with every subset of the points connected
+     * through the hub, is ordered quickly and without cross products
+     */
+    @Test(timeout = 10000)
+    public void starOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        HeapFile hub = SystemTestUtil.createRandomHeapFile(2, 1000, 1000,
+                null, null, "c");
+        HeapFile point = SystemTestUtil.createRandomHeapFile(2, 100, 1000,
+                null, null, "c");
+        Database.getCatalog().addTable(hub, "hub");
+        Database.getCatalog().addTable(point, "point");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("hub", new TableStats(hub.getId(), 103));
+        stats.put("point", new TableStats(point.getId(), 103));
+
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        String query = "SELECT * FROM hub h";
+        filterSelectivities.put("h", 1.0);
+        for (int i = 0; i < 15; i++) {
+            query += ", point p" + i;
+            filterSelectivities.put("p" + i, 1.0);
+            nodes.add(new LogicalJoinNode("h", "p" + i, "c" + (i % 2), "c0",
+                    Predicate.Op.EQUALS));
+        }
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(
+                new TransactionId(), query + ";"), nodes);
+
+        long start = System.currentTimeMillis();
+        Vector<LogicalJoinNode> result = j.orderJoins(stats,
+                filterSelectivities, false);
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        HashSet<String> joined = new HashSet<String>();
+        joined.add(result.get(0).t1Alias);
+        for (LogicalJoinNode n : result) {
+            Assert.assertTrue(joined.contains(n.t1Alias) || joined.contains(n.t2Alias));
+            joined.add(n.t1Alias);
+            joined.add(n.t2Alias);
+        }
+        Assert.assertEquals(16, joined.size());
+    }
+
+    /**
+     * Above the greedy threshold, joins are ordered greedily, smallest
+     * result first, which here joins two pairs of tables and then the
+     * pairs: a bushy plan, that runs and gives the right answer
+     */
+    @Test
+    public void greedyOrderJoinsTest() throws Exception {
+        // b and c share just one value, so joining them first is worst
+        HashMap<Integer, Integer> seven = new HashMap<Integer, Integer>();
+        seven.put(1, 7);
+        ArrayList<ArrayList<Integer>> a = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> b = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> c = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> d = new ArrayList<ArrayList<Integer>>();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        String[] names = { "ga", "gb", "gc", "gd" };
+        HeapFile[] files = {
+                SystemTestUtil.createRandomHeapFile(2, 100, 100, null, a, "c"),
+                SystemTestUtil.createRandomHeapFile(2, 100, 100, seven, b, "c"),
+                SystemTestUtil.createRandomHeapFile(2, 50, 50, seven, c, "c"),
+                SystemTestUtil.createRandomHeapFile(2, 50, 50, null, d, "c") };
+        for (int i = 0; i < names.length; i++) {
+            Database.getCatalog().addTable(files[i], names[i]);
+            stats.put(names[i], new TableStats(files[i].getId(), 103));
+            filterSelectivities.put(names[i], 1.0);
+        }
+        String query = "SELECT * FROM ga, gb, gc, gd WHERE ga.c0 = gb.c0 AND gb.c1 = gc.c1 AND gc.c0 = gd.c0;";
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("ga", "gb", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("gb", "gc", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("gc", "gd", "c0", "c0", Predicate.Op.EQUALS));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+
+        JoinOptimizer j = new JoinOptimizer(lp, nodes);
+        Assert.assertEquals(3, j.orderJoins(stats, filterSelectivities, false).size());
+        Assert.assertEquals(JoinOptimizer.Strategy.EXHAUSTIVE, j.getStrategy());
+
+        JoinOptimizer.setGreedyThreshold(2);
+        j = new JoinOptimizer(lp, nodes);
+        Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(JoinOptimizer.Strategy.GREEDY, j.getStrategy());
+        Assert.assertEquals(3, result.size());
+        // ga-gb and gc-gd (in either order), then the two pairs
+        HashSet<String> pairs = new HashSet<String>();
+        for (int i = 0; i < 2; i++) {
+            String t1 = result.get(i).t1Alias, t2 = result.get(i).t2Alias;
+            pairs.add(t1.compareTo(t2) < 0 ? t1 + t2 : t2 + t1);
+        }
+        Assert.assertTrue(pairs.contains("gagb") && pairs.contains("gcgd"));
+        Assert.assertTrue(result.get(2).t1Alias.equals("gb") || result.get(2).t1Alias.equals("gc"));
+
+        int expected = 0;
+        for (ArrayList<Integer> ta : a)
+            for (ArrayList<Integer> tb : b)
+                for (ArrayList<Integer> tc : c)
+                    for (ArrayList<Integer> td : d)
+                        if (ta.get(0).equals(tb.get(0)) && tb.get(1).equals(tc.get(1))
+                                && tc.get(0).equals(td.get(0)))
+                            expected++;
+        OpIterator plan = new Parser().generateLogicalPlan(tid, query)
+                .physicalPlan(tid, stats, false);
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        Assert.assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
 }
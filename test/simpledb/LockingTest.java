@@ -179,6 +179,20 @@ public class LockingTest extends TestUtil.CreateHeapFile {
                    tid1, p0, Permissions.READ_ONLY, true);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Reading a page a transaction has a write lock on, as a scan of a
+   * table it has just inserted into does, must not give the write lock
+   * up: other transactions could then read its uncommitted changes.
+   */
+  @Test
+  public void readKeepsWriteLock() throws Exception {
+    metaLockTester(tid1, p0, Permissions.READ_WRITE,
+                   tid1, p0, Permissions.READ_ONLY, true);
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+    assertEquals(true, bp.holdsLock(tid1, p0));
+  }
+
   /**
    * Unit test for BufferPool.getPage() and BufferPool.releasePage()
    * assuming locking.
@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogFileTest {
+
+	File f;
+	LogFile log;
+
+	@Before public void createLog() throws Exception {
+		f = File.createTempFile("logtmp", ".log");
+		f.deleteOnExit();
+		log = new LogFile(f);
+	}
+
+	@After public void deleteLog() {
+		f.delete();
+	}
+
+	/**
+	 * Commits that arrive together are made durable by one force, and the
+	 * durable LSN only ever moves forward while they do.
+	 */
+	@Test public void groupCommitTest() throws Exception {
+		final int committers = 8;
+		log.setGroupCommit(1000, committers);
+
+		final TransactionId[] tids = new TransactionId[committers];
+		for (int i = 0; i < committers; i++) {
+			tids[i] = new TransactionId();
+			log.logXactionBegin(tids[i]);
+		}
+
+		final CyclicBarrier start = new CyclicBarrier(committers);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread[] threads = new Thread[committers];
+		for (int i = 0; i < committers; i++) {
+			final TransactionId tid = tids[i];
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						log.logCommit(tid);
+					} catch (Exception e) {
+						e.printStackTrace();
+						failed.set(true);
+					}
+				}
+			};
+		}
+		Thread watcher = new Thread() {
+			public void run() {
+				long last = log.getDurableLsn();
+				while (!done.get()) {
+					long now = log.getDurableLsn();
+					if (now < last)
+						failed.set(true);
+					last = now;
+				}
+			}
+		};
+
+		watcher.start();
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		done.set(true);
+		watcher.join();
+
+		Assert.assertFalse(failed.get());
+		// every commit has returned, so every commit record is durable
+		Assert.assertEquals(log.getCurrentLsn(), log.getDurableLsn());
+		Assert.assertTrue(log.getGroupFlushCount() >= 1);
+		Assert.assertTrue(log.getGroupFlushCount() < committers);
+	}
+
+	/**
+	 * forceUpTo makes the log up to the given record durable, and records
+	 * appended afterwards stay buffered until the next force: a crash loses
+	 * them but nothing before them.
+	 */
+	@Test public void forceUpToTest() throws Exception {
+		TransactionId tid = new TransactionId();
+		PageId pid = new HeapPageId(1, 0);
+		byte[] tuple = new byte[8];
+		log.logXactionBegin(tid);
+		long first = log.logSlotChange(tid, pid, true, 0, tuple);
+		log.logSlotChange(tid, pid, true, 1, tuple);
+		long forced = log.getCurrentLsn();
+		Assert.assertTrue(log.getDurableLsn() <= first);
+
+		log.forceUpTo(first);
+		Assert.assertEquals(forced, log.getDurableLsn());
+
+		long last = log.logSlotChange(tid, pid, true, 2, tuple);
+		Assert.assertEquals(forced, last);
+		// already durable, so this must not write the new record out
+		log.forceUpTo(first);
+		Assert.assertEquals(forced, log.getDurableLsn());
+
+		// crash: reopen the file without the buffered record
+		LogFile reopened = new LogFile(f);
+		reopened.openExisting();
+		Assert.assertEquals(forced, reopened.getCurrentLsn());
+		Assert.assertEquals(forced, reopened.getDurableLsn());
+	}
+
+	/** Make test compatible with older version of ant. */
+	public static junit.framework.Test suite() {
+		return new junit.framework.JUnit4TestAdapter(LogFileTest.class);
+	}
+}
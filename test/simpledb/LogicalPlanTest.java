@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+	ArrayList<ArrayList<Integer>> a;
+	ArrayList<ArrayList<Integer>> b;
+	HashMap<String, TableStats> stats;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		this.a = new ArrayList<ArrayList<Integer>>();
+		this.b = new ArrayList<ArrayList<Integer>>();
+		HeapFile fa = SystemTestUtil.createRandomHeapFile(5, 2000, 100, null, a, "c");
+		HeapFile fb = SystemTestUtil.createRandomHeapFile(5, 2000, 100, null, b, "c");
+		Database.getCatalog().addTable(fa, "pa");
+		Database.getCatalog().addTable(fb, "pb");
+		this.stats = new HashMap<String, TableStats>();
+		this.stats.put("pa", new TableStats(fa.getId(), 1000));
+		this.stats.put("pb", new TableStats(fb.getId(), 1000));
+	}
+
+	@After public void resetParallelism() {
+		LogicalPlan.setParallelism(1);
+	}
+
+	// the join in plan, or null if there isn't one
+	private static OpIterator findJoin(OpIterator plan) {
+		if (plan instanceof Join || plan instanceof HashEquiJoin)
+			return plan;
+		if (!(plan instanceof Operator))
+			return null;
+		for (OpIterator child : ((Operator) plan).getChildren()) {
+			OpIterator j = findJoin(child);
+			if (j != null)
+				return j;
+		}
+		return null;
+	}
+
+	private OpIterator plan(TransactionId tid, String query) throws Exception {
+		return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, this.stats, false);
+	}
+
+	private static int count(OpIterator plan) throws Exception {
+		plan.open();
+		int n = 0;
+		while (plan.hasNext()) {
+			plan.next();
+			n++;
+		}
+		plan.close();
+		return n;
+	}
+
+	/**
+	 * Each scan passes up only the fields that the joins and the select
+	 * list refer to, and the query's result doesn't change.
+	 */
+	@Test public void pruneColumnsTest() throws Exception {
+		int expected = 0;
+		for (ArrayList<Integer> ta : a)
+			for (ArrayList<Integer> tb : b)
+				if (ta.get(0).equals(tb.get(0)) && tb.get(2) > 10)
+					expected++;
+
+		String query = "SELECT pa.c1 FROM pa, pb WHERE pa.c0 = pb.c0 AND pb.c2 > 10;";
+		TransactionId tid = new TransactionId();
+		OpIterator plan = plan(tid, query);
+		// pa.c0 and pa.c1, and pb.c0; pb.c2 is only needed by the filter
+		Assert.assertEquals(3, findJoin(plan).getTupleDesc().numFields());
+		Assert.assertEquals(1, plan.getTupleDesc().numFields());
+		Assert.assertEquals(expected, count(plan));
+
+		LogicalPlan.setParallelism(2);
+		plan = plan(tid, query);
+		Assert.assertEquals(3, findJoin(plan).getTupleDesc().numFields());
+		Assert.assertEquals(expected, count(plan));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Grouping and aggregate fields are kept, and SELECT * keeps every
+	 * field.
+	 */
+	@Test public void keepReferencedColumnsTest() throws Exception {
+		TransactionId tid = new TransactionId();
+		OpIterator plan = plan(tid,
+				"SELECT pb.c3, SUM(pa.c4) FROM pa, pb WHERE pa.c0 = pb.c0 GROUP BY pb.c3;");
+		Assert.assertEquals(4, findJoin(plan).getTupleDesc().numFields());
+
+		plan = plan(tid, "SELECT * FROM pa, pb WHERE pa.c0 = pb.c0 ORDER BY pa.c1;");
+		Assert.assertEquals(10, findJoin(plan).getTupleDesc().numFields());
+		Assert.assertEquals(10, plan.getTupleDesc().numFields());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+}
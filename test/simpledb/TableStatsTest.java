@@ -3,6 +3,7 @@ package simpledb;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.Assert;
@@ -12,6 +13,7 @@ import simpledb.systemtest.SystemTestUtil;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
+	private static final long HOUR = 60 * 60 * 1000;
 	
 	ArrayList<ArrayList<Integer>> tuples;
 	HeapFile f;
@@ -28,6 +30,12 @@ public class TableStatsTest extends SimpleDbTestBase {
 		this.tableId = Database.getCatalog().getTableId(tableName);		
 	}
 	
+	@After public void resetRefresh() {
+		TableStats.setRefreshThreshold(500, 0.1);
+		TableStats.setPersistent(false);
+		TableStats.setSampleSeed(TableStats.DEFAULT_SAMPLE_SEED);
+	}
+
 	private double[] getRandomTableScanCosts(int[] pageNums, int[] ioCosts) throws IOException, DbException, TransactionAbortedException {
 		double[] ret = new double[ioCosts.length];
 		for(int i = 0; i < ioCosts.length; ++i) {
@@ -151,4 +159,487 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * computeStatistics builds statistics for every table in the catalog,
+	 * however many it works on at once.
+	 */
+	@Test public void computeStatisticsTest() throws IOException, DbException, TransactionAbortedException {
+		String[] names = new String[6];
+		for (int i = 0; i < names.length; i++) {
+			HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000 * (i + 1), 32, null, null);
+			names[i] = SystemTestUtil.getUUID();
+			Database.getCatalog().addTable(hf, names[i]);
+		}
+		TableStats.computeStatistics();
+		for (int i = 0; i < names.length; i++) {
+			Assert.assertEquals(1000 * (i + 1), TableStats.getTableStats(names[i]).totalTuples());
+		}
+		Assert.assertEquals(10200, TableStats.getTableStats(this.tableName).totalTuples());
+	}
+
+	/**
+	 * Statistics built from a sample of the pages are close to the exact
+	 * ones, and say how far off they might be.
+	 */
+	@Test public void sampledStatsTest() {
+		TableStats exact = new TableStats(this.tableId, IO_COST);
+		TableStats sampled = new TableStats(this.tableId, IO_COST, 20);
+		Assert.assertFalse(exact.isSampled());
+		Assert.assertEquals(0.0, exact.cardinalityError(), 0.0);
+		Assert.assertTrue(sampled.isSampled());
+		Assert.assertEquals(20, sampled.pagesRead());
+
+		// every page but the last is full, so the scaled count is near exact
+		Assert.assertEquals(10200, sampled.totalTuples(), 200);
+		Assert.assertTrue(sampled.cardinalityError() >= 0);
+
+		Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN };
+		for (Predicate.Op op : ops) {
+			for (int v : new int[] { 3, 16, 28 }) {
+				IntField c = new IntField(v);
+				Assert.assertEquals(exact.estimateSelectivity(1, op, c),
+						sampled.estimateSelectivity(1, op, c), 0.05);
+				Assert.assertTrue(sampled.estimateSelectivityError(1, op, c) < 0.05);
+				Assert.assertEquals(0.0, exact.estimateSelectivityError(1, op, c), 0.0);
+			}
+		}
+
+		// 32 values, each seen many times in the sample
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(32.0, exact.estimateDistinct(i), 0.5);
+			Assert.assertEquals(32.0, sampled.estimateDistinct(i), 0.5);
+		}
+	}
+
+	/**
+	 * Reading every page builds exact histograms of a column with few
+	 * enough distinct values, however many rows there are.  A column with
+	 * more gets its histogram from the reservoir, and says how far off
+	 * that may be.
+	 */
+	@Test public void fullScanHistogramTest() throws Exception {
+		final int rows = 3 * TableStats.RESERVOIR_SIZE;
+		ArrayList<ArrayList<Integer>> values = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < rows; i++) {
+			ArrayList<Integer> row = new ArrayList<Integer>();
+			row.add(i % 1000);
+			row.add(i);
+			values.add(row);
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(values, 2, "c");
+		TableStats stats = new TableStats(hf.getId(), IO_COST);
+		Assert.assertFalse(stats.isSampled());
+		for (int v = 0; v < 1000; v += 37) {
+			IntField c = new IntField(v);
+			Assert.assertEquals(v / 1000.0, stats.estimateSelectivity(0, Predicate.Op.LESS_THAN, c), 1e-9);
+			Assert.assertEquals(0.0, stats.estimateSelectivityError(0, Predicate.Op.LESS_THAN, c), 0.0);
+		}
+		for (int v = 997; v < rows; v += 997) {
+			IntField c = new IntField(v);
+			double error = stats.estimateSelectivityError(1, Predicate.Op.LESS_THAN, c);
+			Assert.assertTrue(error > 0);
+			Assert.assertEquals((double) v / rows, stats.estimateSelectivity(1, Predicate.Op.LESS_THAN, c),
+					4 * error + 0.01);
+		}
+	}
+
+	/**
+	 * A sample is the same every time with the same seed, and another
+	 * seed takes another one.
+	 */
+	@Test public void sampleSeedTest() {
+		TableStats first = new TableStats(this.tableId, IO_COST, 5);
+		TableStats second = new TableStats(this.tableId, IO_COST, 5);
+		TableStats.setSampleSeed(TableStats.DEFAULT_SAMPLE_SEED + 1);
+		TableStats other = new TableStats(this.tableId, IO_COST, 5);
+		boolean differs = false;
+		for (int col = 0; col < 10; col++) {
+			for (int v = 0; v < 32; v++) {
+				IntField c = new IntField(v);
+				double s = first.estimateSelectivity(col, Predicate.Op.LESS_THAN, c);
+				Assert.assertEquals(s, second.estimateSelectivity(col, Predicate.Op.LESS_THAN, c), 0.0);
+				differs |= s != other.estimateSelectivity(col, Predicate.Op.LESS_THAN, c);
+			}
+		}
+		Assert.assertTrue(differs);
+	}
+
+	/**
+	 * With mostly unique values, the distinct count is scaled up from the
+	 * sample rather than capped at what the sample saw.
+	 */
+	@Test public void sampledDistinctTest() throws IOException, DbException, TransactionAbortedException {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992 * 8, 1 << 30, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		int id = Database.getCatalog().getTableId(name);
+
+		Assert.assertEquals(992 * 8, new TableStats(id, IO_COST).estimateDistinct(0), 992 * 8 * 0.05);
+		TableStats sampled = new TableStats(id, IO_COST, 4);
+		Assert.assertTrue(sampled.estimateDistinct(0) > 992 * 5);
+		Assert.assertTrue(sampled.estimateDistinct(0) <= sampled.totalTuples());
+	}
+
+	/**
+	 * Inserting through the buffer pool adds the new values to the
+	 * distinct value sketches of the table's statistics.
+	 */
+	@Test public void distinctAfterInsertTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 2000, 100, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats stats = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, stats);
+		Assert.assertEquals(100, stats.estimateDistinct(0), 5);
+
+		TransactionId tid = new TransactionId();
+		for (int v = 1000; v < 1400; v++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(v));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(500, stats.estimateDistinct(0), 25);
+	}
+
+	/**
+	 * Inserts and deletes through the buffer pool keep the row count and
+	 * histograms of the table's statistics up to date.
+	 */
+	@Test public void incrementalUpdateTest() throws Exception {
+		TableStats.setRefreshThreshold(Integer.MAX_VALUE, 0);
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 2000, 100, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats stats = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, stats);
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 2000; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(1000));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		Assert.assertEquals(2000, stats.totalTuples());
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(4000, stats.totalTuples());
+		Assert.assertEquals(0.5, stats.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1000)), 0.01);
+		Assert.assertEquals(0.5, stats.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(500)), 0.01);
+
+		// delete the original rows below 50, about a quarter of the table
+		tid = new TransactionId();
+		SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+		ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+		scan.open();
+		while (scan.hasNext()) {
+			Tuple t = scan.next();
+			if (((IntField) t.getField(0)).getValue() < 50) {
+				doomed.add(t);
+			}
+		}
+		scan.close();
+		for (Tuple t : doomed) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(4000 - doomed.size(), stats.totalTuples());
+		Assert.assertEquals(2000 + doomed.size(), stats.modifications());
+		Assert.assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50)), 0.02);
+		Assert.assertEquals(2000.0 / (4000 - doomed.size()),
+				stats.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1000)), 0.01);
+		Assert.assertSame(stats, TableStats.getTableStats(name));
+	}
+
+	/**
+	 * Rows inserted and deleted by a transaction that aborts are never
+	 * counted.
+	 */
+	@Test public void abortedChangesTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 2000, 100, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats stats = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, stats);
+		double below50 = stats.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50));
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 1000; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(1000));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+		ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+		scan.open();
+		while (scan.hasNext()) {
+			Tuple t = scan.next();
+			if (((IntField) t.getField(0)).getValue() < 50) {
+				doomed.add(t);
+			}
+		}
+		scan.close();
+		for (Tuple t : doomed) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		Assert.assertEquals(2000, stats.totalTuples());
+		Assert.assertEquals(0, stats.modifications());
+		Assert.assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1000)), 0.0);
+		Assert.assertEquals(below50, stats.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50)), 0.0);
+	}
+
+	/**
+	 * Changing a table whose saved statistics loadStatistics left to be
+	 * read in later doesn't read them in (or compute them) in the middle
+	 * of the change.
+	 */
+	@Test public void pendingStatsNotLoadedByUpdatesTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 2000, 100, null, null);
+		TableStats.sidecar(hf).deleteOnExit();
+		TableStats.sidecar(this.f).deleteOnExit();
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats.loadStatistics();
+
+		// as if starting again, with the saved statistics then lost
+		Database.reset();
+		HeapFile again = new HeapFile(hf.getFile(), hf.getTupleDesc());
+		Database.getCatalog().addTable(again, SystemTestUtil.getUUID());
+		TableStats.loadStatistics();
+		Assert.assertTrue(TableStats.sidecar(again).delete());
+
+		TransactionId tid = new TransactionId();
+		Tuple t = new Tuple(again.getTupleDesc());
+		t.setField(0, new IntField(1));
+		Database.getBufferPool().insertTuple(tid, again.getId(), t);
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertFalse(TableStats.sidecar(again).exists());
+	}
+
+	/**
+	 * Once enough rows have changed, fresh statistics replace the stale
+	 * ones in the registry.
+	 */
+	@Test public void autoRefreshTest() throws Exception {
+		TableStats.setRefreshThreshold(100, 0.5);	// 100 + 1000 changes
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 2000, 100, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats stats = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, stats);
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 1100; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+			if (i == 1098) {
+				Thread.sleep(100);
+				Assert.assertSame(stats, TableStats.getTableStats(name));
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (TableStats.getTableStats(name) == stats && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		TableStats fresh = TableStats.getTableStats(name);
+		Assert.assertNotSame(stats, fresh);
+		Assert.assertEquals(3100, fresh.totalTuples());
+		Assert.assertEquals(0, fresh.modifications());
+	}
+
+	/**
+	 * loadStatistics saves statistics next to each table, reads them back
+	 * while the table is unchanged, and computes them again once it has
+	 * changed.
+	 */
+	@Test public void persistTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, null);
+		TableStats.sidecar(hf).deleteOnExit();
+		TableStats.sidecar(this.f).deleteOnExit();
+		// written long enough ago for its modification time to be trusted
+		Assert.assertTrue(hf.getFile().setLastModified(System.currentTimeMillis() - HOUR));
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats.loadStatistics();
+		Assert.assertTrue(TableStats.sidecar(hf).isFile());
+		TableStats computed = TableStats.getTableStats(name);
+
+		// as if starting again: the same file, under a new name
+		Database.reset();
+		HeapFile again = new HeapFile(hf.getFile(), hf.getTupleDesc());
+		String name2 = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(again, name2);
+		TableStats.loadStatistics();
+		TableStats loaded = TableStats.getTableStats(name2);
+		Assert.assertNotNull(loaded);
+		Assert.assertEquals(computed.totalTuples(), loaded.totalTuples());
+		Assert.assertEquals(computed.estimateScanCost(), loaded.estimateScanCost(), 0.0);
+		for (int col = 0; col < 2; col++) {
+			Assert.assertEquals(computed.estimateDistinct(col), loaded.estimateDistinct(col), 0.0);
+			for (int v = 0; v < 1000; v += 37) {
+				for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN }) {
+					// read back exactly as they were saved
+					Assert.assertEquals(computed.estimateSelectivity(col, op, new IntField(v)),
+							loaded.estimateSelectivity(col, op, new IntField(v)), 0.0);
+				}
+			}
+		}
+
+		// a changed table gets fresh statistics
+		TransactionId tid = new TransactionId();
+		Tuple t = new Tuple(again.getTupleDesc());
+		t.setField(0, new IntField(1));
+		t.setField(1, new IntField(2));
+		Database.getBufferPool().insertTuple(tid, again.getId(), t);
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+		HeapFile changed = new HeapFile(hf.getFile(), hf.getTupleDesc());
+		String name3 = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(changed, name3);
+		TableStats.loadStatistics();
+		Assert.assertEquals(20001, TableStats.getTableStats(name3).totalTuples());
+	}
+
+	/**
+	 * A table rewritten in place, to the same length and within the
+	 * timestamp resolution of the file system, still gets fresh
+	 * statistics.
+	 */
+	@Test public void persistSameTimestampTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, null);
+		TableStats.sidecar(hf).deleteOnExit();
+		TableStats.sidecar(this.f).deleteOnExit();
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats.loadStatistics();
+		Assert.assertTrue(TableStats.sidecar(hf).isFile());
+
+		// as if starting again, after one row on the first page changed
+		// behind the database's back
+		Database.reset();
+		HeapFile changed = new HeapFile(hf.getFile(), hf.getTupleDesc());
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(changed, name);
+		long length = hf.getFile().length();
+		long modified = hf.getFile().lastModified();
+		setFirstValue(changed, 5000);
+		Assert.assertTrue(hf.getFile().setLastModified(modified));
+		Assert.assertEquals(length, hf.getFile().length());
+		Assert.assertEquals(modified, hf.getFile().lastModified());
+
+		TableStats.loadStatistics();
+		Assert.assertTrue(TableStats.getTableStats(name)
+				.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(5000)) > 0);
+	}
+
+	/**
+	 * Saved statistics for a table last written long ago are trusted on
+	 * its length and modification time alone, without reading it.
+	 */
+	@Test public void persistTrustsOldFileTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, null);
+		TableStats.sidecar(hf).deleteOnExit();
+		TableStats.sidecar(this.f).deleteOnExit();
+		long modified = System.currentTimeMillis() - HOUR;
+		Assert.assertTrue(hf.getFile().setLastModified(modified));
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats.loadStatistics();
+
+		// changed behind the database's back, covering its tracks
+		Database.reset();
+		HeapFile changed = new HeapFile(hf.getFile(), hf.getTupleDesc());
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(changed, name);
+		setFirstValue(changed, 5000);
+		Assert.assertTrue(hf.getFile().setLastModified(modified));
+
+		TableStats.loadStatistics();
+		Assert.assertEquals(0.0, TableStats.getTableStats(name)
+				.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(5000)), 0.0);
+	}
+
+	/**
+	 * A table written to after loadStatistics found its saved statistics
+	 * fresh gets new ones when they are first looked up, even if its
+	 * modification time is as it was.
+	 */
+	@Test public void persistWrittenWhilePendingTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, null);
+		TableStats.sidecar(hf).deleteOnExit();
+		TableStats.sidecar(this.f).deleteOnExit();
+		long modified = System.currentTimeMillis() - HOUR;
+		Assert.assertTrue(hf.getFile().setLastModified(modified));
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats.loadStatistics();
+
+		Database.reset();
+		HeapFile again = new HeapFile(hf.getFile(), hf.getTupleDesc());
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(again, name);
+		TableStats.loadStatistics();
+		setFirstValue(again, 5000);
+		Assert.assertTrue(hf.getFile().setLastModified(modified));
+
+		Assert.assertTrue(TableStats.getTableStats(name)
+				.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(5000)) > 0);
+	}
+
+	// rewrite the first row of f's first page with field 0 set to v
+	private static void setFirstValue(HeapFile f, int v) throws Exception {
+		HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), 0));
+		Tuple t = page.iterator().next();
+		page.deleteTuple(t);
+		t.setField(0, new IntField(v));
+		page.insertTuple(t);
+		f.writePage(page);
+	}
+
+	/**
+	 * With the columns declared as a group, predicates on a city and its zip
+	 * code are estimated together instead of as if they were independent.
+	 */
+	@Test public void correlatedColumnsTest() throws Exception {
+		// 100 cities of 200 rows, each with 10 zip codes of its own
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 20000; i++) {
+			ArrayList<Integer> row = new ArrayList<Integer>();
+			row.add(i % 100);
+			row.add((i % 100) * 10 + (i / 100) % 10);
+			rows.add(row);
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(rows, 2, "c");
+		String name = Database.getCatalog().getTableName(hf.getId());
+
+		TableStats independent = new TableStats(hf.getId(), IO_COST);
+		Assert.assertNull(independent.getColumnPairStats(0, 1));
+		TableStats.declareColumnGroup(name, "c0", "c1");
+		TableStats grouped = new TableStats(hf.getId(), IO_COST);
+		Assert.assertNotNull(grouped.getColumnPairStats(0, 1));
+		Assert.assertEquals(1000, grouped.getColumnPairStats(0, 1).estimateDistinct(), 50);
+
+		ArrayList<Predicate> sameCity = new ArrayList<Predicate>();
+		sameCity.add(new Predicate(0, Predicate.Op.EQUALS, new IntField(10)));
+		sameCity.add(new Predicate(1, Predicate.Op.EQUALS, new IntField(105)));
+		Assert.assertEquals(0.00001, independent.estimateSelectivity(sameCity), 0.00001);
+		Assert.assertEquals(0.001, grouped.estimateSelectivity(sameCity), 0.0003);
+
+		ArrayList<Predicate> otherCity = new ArrayList<Predicate>();
+		otherCity.add(new Predicate(0, Predicate.Op.EQUALS, new IntField(10)));
+		otherCity.add(new Predicate(1, Predicate.Op.EQUALS, new IntField(205)));
+		Assert.assertTrue(grouped.estimateSelectivity(otherCity) < 0.0005);
+
+		ArrayList<Predicate> ranges = new ArrayList<Predicate>();
+		ranges.add(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)));
+		ranges.add(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)));
+		Assert.assertEquals(0.01, independent.estimateSelectivity(ranges), 0.003);
+		Assert.assertEquals(0.1, grouped.estimateSelectivity(ranges), 0.02);
+
+		// a predicate on a column outside the group still multiplies in
+		ranges.add(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(3)));
+		Assert.assertEquals(0.099, grouped.estimateSelectivity(ranges), 0.02);
+	}
 }
@@ -0,0 +1,157 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    @After public void resetParallelism() {
+        LogicalPlan.setParallelism(1);
+    }
+
+    // the table split into page ranges, one scan per range
+    OpIterator[] partitions(TransactionId tid, HeapFile table, int parts) {
+        OpIterator[] scans = new OpIterator[parts];
+        int pages = table.numPages();
+        for (int i = 0; i < parts; i++) {
+            scans[i] = new SeqScan(tid, table.getId(), "t", pages * i / parts, pages * (i + 1) / parts);
+        }
+        return scans;
+    }
+
+    int drain(OpIterator it) throws DbException, TransactionAbortedException {
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    /** Gather returns every tuple of its inputs; rewind runs them again,
+        and later rewinds replay the tuples. */
+    @Test public void testGather() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504*10, 1000, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        Gather gather = new Gather(partitions(tid, table, 4));
+        SystemTestUtil.matchTuples(gather, tuples);
+
+        gather.open();
+        gather.next();
+        gather.rewind();
+        assertEquals(tuples.size(), drain(gather));
+        gather.rewind();
+        assertEquals(tuples.size(), drain(gather));
+        gather.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A nested loops join asks its inner exchange to keep its tuples,
+        and replays them for every outer tuple. */
+    @Test public void testRewindSpooled() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504*4, 1000, null, tuples);
+        ArrayList<ArrayList<Integer>> outerTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 20, 1000, null, outerTuples);
+        TransactionId tid = new TransactionId();
+
+        Join join = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, outer.getId(), "o"), new Gather(partitions(tid, table, 2)));
+        join.open();
+        int joined = drain(join);
+        join.close();
+
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            for (ArrayList<Integer> o : outerTuples) {
+                if (o.get(0).equals(t.get(0)))
+                    expected++;
+            }
+        }
+        assertEquals(expected, joined);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Closing a Gather that was not read to the end stops the producers
+        waiting on its full queue. */
+    @Test(timeout = 20000) public void testCloseUnread() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504*20, 1000, null, null);
+        TransactionId tid = new TransactionId();
+
+        Gather gather = new Gather(partitions(tid, table, 2));
+        gather.open();
+        gather.next();
+        // let the producers fill the queue
+        Thread.sleep(100);
+        gather.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A producer that fails wakes the consumer waiting on it, which
+        reports the failure. */
+    @Test(timeout = 20000) public void testProducerFailure() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504*2, 1000, null, null);
+        TransactionId tid = new TransactionId();
+
+        Predicate broken = new Predicate(0, Predicate.Op.EQUALS, null) {
+            private static final long serialVersionUID = 1L;
+            public boolean filter(Tuple t) {
+                throw new IllegalStateException("broken predicate");
+            }
+        };
+        Gather gather = new Gather(new OpIterator[] {
+                new Filter(broken, new SeqScan(tid, table.getId(), "t")) });
+        gather.open();
+        try {
+            drain(gather);
+            fail("expected the producer's failure");
+        } catch (DbException e) {
+            // expected
+        }
+        gather.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** With a degree of parallelism set, physicalPlan scans in parallel
+        and returns the same answer. */
+    @Test public void testParallelPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504*8, 1000, null, tuples, "c");
+        String name = Database.getCatalog().getTableName(table.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < 300)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(0))));
+        }
+
+        LogicalPlan.setParallelism(4);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.LESS_THAN, "300");
+        lp.addProjectField("t.c0", null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Gather);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class HashJoinTest extends SimpleDbTestBase {
+
+    @After public void resetParallelism() {
+        LogicalPlan.setParallelism(1);
+        CostModel.reset();
+    }
+
+    // every pair of rows whose first columns are equal, concatenated
+    ArrayList<ArrayList<Integer>> expectedJoin(ArrayList<ArrayList<Integer>> left,
+            ArrayList<ArrayList<Integer>> right) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> l : left) {
+            for (ArrayList<Integer> r : right) {
+                if (l.get(0).equals(r.get(0))) {
+                    ArrayList<Integer> t = new ArrayList<Integer>(l);
+                    t.addAll(r);
+                    result.add(t);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** The parallel join finds the same pairs as a nested loops join,
+        whichever side is smaller. */
+    @Test public void testJoin() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> big = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> small = new ArrayList<ArrayList<Integer>>();
+        HeapFile bigTable = SystemTestUtil.createRandomHeapFile(2, 20000, 30000, null, big);
+        HeapFile smallTable = SystemTestUtil.createRandomHeapFile(2, 9000, 30000, null, small);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        HashEquiJoin join = new HashEquiJoin(p, new SeqScan(tid, bigTable.getId(), "b"),
+                new SeqScan(tid, smallTable.getId(), "s"), 4);
+        SystemTestUtil.matchTuples(join, expectedJoin(big, small));
+        assertTrue(join.getPartitions() > 1);
+        assertTrue(join.getSkew() < 2.0);
+
+        join = new HashEquiJoin(p, new SeqScan(tid, smallTable.getId(), "s"),
+                new SeqScan(tid, bigTable.getId(), "b"), 3);
+        SystemTestUtil.matchTuples(join, expectedJoin(small, big));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A single join key puts everything in one partition, and the skew
+        metric says so. */
+    @Test public void testSkew() throws IOException, DbException, TransactionAbortedException {
+        HashMap<Integer, Integer> constant = new HashMap<Integer, Integer>();
+        constant.put(0, 7);
+        ArrayList<ArrayList<Integer>> left = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> right = new ArrayList<ArrayList<Integer>>();
+        HeapFile leftTable = SystemTestUtil.createRandomHeapFile(2, 9000, constant, left);
+        HeapFile rightTable = SystemTestUtil.createRandomHeapFile(2, 10, constant, right);
+        TransactionId tid = new TransactionId();
+
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, leftTable.getId(), "l"), new SeqScan(tid, rightTable.getId(), "r"), 2);
+        join.open();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(9000 * 10, count);
+        assertEquals(9010, join.getLargestPartition());
+        assertEquals(join.getPartitions(), join.getSkew(), 1e-9);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Matches are returned as they are found: the first few of a join
+        far too big to hold come back at once, and again after a rewind. */
+    @Test(timeout = 60000) public void testStreaming() throws IOException, DbException, TransactionAbortedException {
+        HashMap<Integer, Integer> constant = new HashMap<Integer, Integer>();
+        constant.put(0, 7);
+        HeapFile leftTable = SystemTestUtil.createRandomHeapFile(2, 20000, constant, null);
+        HeapFile rightTable = SystemTestUtil.createRandomHeapFile(2, 20000, constant, null);
+        TransactionId tid = new TransactionId();
+
+        // 400 million matches
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, leftTable.getId(), "l"), new SeqScan(tid, rightTable.getId(), "r"), 2);
+        join.open();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(join.hasNext());
+                Tuple t = join.next();
+                assertEquals(new IntField(7), t.getField(0));
+                assertEquals(new IntField(7), t.getField(2));
+            }
+            join.rewind();
+        }
+        join.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The join reports the memory its inputs took, counted as the cost
+        model counts it, and whether that was more than the work memory. */
+    @Test public void testWorkMemory() throws IOException, DbException, TransactionAbortedException {
+        HeapFile leftTable = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        HeapFile rightTable = SystemTestUtil.createRandomHeapFile(3, 1000, null, null);
+        TransactionId tid = new TransactionId();
+        long footprint = CostModel.hashJoinBytes(3000, leftTable.getTupleDesc().getSize())
+                + CostModel.hashJoinBytes(1000, rightTable.getTupleDesc().getSize());
+
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, leftTable.getId(), "l"), new SeqScan(tid, rightTable.getId(), "r"), 2);
+        join.open();
+        join.close();
+        assertEquals(footprint, join.getMemoryUsed());
+        CostModel.setWorkMemory(footprint);
+        assertFalse(join.exceededWorkMemory());
+        CostModel.setWorkMemory(footprint - 1);
+        assertTrue(join.exceededWorkMemory());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** With parallelism on, the optimizer plans equi-joins as hash joins. */
+    @Test public void testInstantiate() throws Exception {
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "c");
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "c");
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        OpIterator a = new SeqScan(tid, t1.getId(), "a");
+        OpIterator b = new SeqScan(tid, t2.getId(), "b");
+
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, b) instanceof Join);
+        LogicalPlan.setParallelism(4);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, b) instanceof HashEquiJoin);
+        lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.LESS_THAN);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, b) instanceof Join);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashJoinTest.class);
+    }
+}
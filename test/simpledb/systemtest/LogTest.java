@@ -0,0 +1,395 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class LogTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 512*3, 1000, null, null);
+        hf = Utility.openHeapFile(2, file);
+    }
+
+    @After public void resetPolicy() {
+        BufferPool.setStealNoForce(false);
+    }
+
+    void insertRow(Transaction t, int v) throws DbException,
+            TransactionAbortedException {
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v));
+        value.setField(1, new IntField(v));
+        TupleIterator insertRow = new TupleIterator(Utility.getTupleDesc(2), Arrays.asList(new Tuple[]{value}));
+        Insert insert = new Insert(t.getId(), insertRow, hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+
+    void deleteRows(Transaction t, int v) throws DbException,
+            TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), hf.getId(), "");
+        Filter matching = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(v)), ss);
+        Delete delete = new Delete(t.getId(), matching);
+        delete.open();
+        delete.next();
+        delete.close();
+    }
+
+    boolean findRow(int v) throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan ss = new SeqScan(t.getId(), hf.getId(), "");
+        boolean found = false;
+        ss.open();
+        while (ss.hasNext()) {
+            Tuple tup = ss.next();
+            if (((IntField) tup.getField(0)).getValue() == v)
+                found = true;
+        }
+        ss.close();
+        t.commit();
+        return found;
+    }
+
+    boolean onDisk(int v) {
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext()) {
+                if (((IntField) it.next().getField(0)).getValue() == v)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    Set<Integer> valuesOn(int page) {
+        Set<Integer> values = new HashSet<Integer>();
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), page))).iterator();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(0)).getValue());
+        return values;
+    }
+
+    // forget everything in memory, as if the process had died, and
+    // reopen the table and the log that survived on disk
+    void crash() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+    }
+
+    /** Rollback must undo updates that already reached disk. */
+    @Test public void testRollbackStolenPage()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(t, -1);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertFalse(findRow(-1));
+    }
+
+    /** Recovery keeps committed work and removes uncommitted work. */
+    @Test public void testRecover()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(t1, -1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t2, -2);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(Database.getLogFile().getAnalysisTime() >= 0);
+        assertTrue(findRow(-1));
+        assertFalse(findRow(-2));
+
+        // the undo was logged, so recovering again changes nothing
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(findRow(-1));
+        assertFalse(findRow(-2));
+    }
+
+    /** A checkpoint must not flush the pool; recovery redoes from the
+        dirty page table it recorded. */
+    @Test public void testFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(t1, -1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t2, -2);
+        Database.getLogFile().logCheckpoint();
+        assertFalse(onDisk(-2));
+
+        insertRow(t2, -3);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(onDisk(-3));
+
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(findRow(-1));
+        assertFalse(findRow(-2));
+        assertFalse(findRow(-3));
+    }
+
+    /** Under STEAL/NO-FORCE a transaction can dirty more pages than
+        the pool holds, and recovery installs committed pages that
+        never reached disk. */
+    @Test public void testStealNoForce()
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool.setStealNoForce(true);
+        Database.resetBufferPool(2);
+        int pages = hf.numPages();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 1200; i++)
+            insertRow(t1, -2);
+        assertTrue(hf.numPages() > pages + 1);
+        t1.abort();
+        assertFalse(onDisk(-2));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t2, -1);
+        t2.commit();
+
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(onDisk(-1));
+        assertFalse(onDisk(-2));
+    }
+
+    /** Slot-level records are redone for a committed transaction
+        whose page never reached disk, and undone for a loser whose
+        pages did. */
+    @Test public void testSlotRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool.setStealNoForce(true);
+        // x occurs once in the table, on page 0; y is on page 1 but not 0
+        Set<Integer> first = valuesOn(0);
+        Set<Integer> seen = new HashSet<Integer>();
+        Set<Integer> repeated = new HashSet<Integer>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), i))).iterator();
+            while (it.hasNext()) {
+                int v = ((IntField) it.next().getField(0)).getValue();
+                if (!seen.add(v))
+                    repeated.add(v);
+            }
+        }
+        int x = -1;
+        for (int v : first) {
+            if (!repeated.contains(v)) {
+                x = v;
+                break;
+            }
+        }
+        int y = -1;
+        for (int v : valuesOn(1)) {
+            if (!first.contains(v)) {
+                y = v;
+                break;
+            }
+        }
+        assertTrue(x >= 0 && y >= 0);
+
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        // keep the page writer out until t2's write lock on page 0
+        // keeps it from writing t1's changes
+        synchronized (Database.getBufferPool()) {
+            t1.start();
+            deleteRows(t1, x);
+            insertRow(t1, -1); // into the slot x left on page 0
+            t1.commit();
+
+            t2.start();
+            insertRow(t2, -2);
+        }
+        deleteRows(t2, y);
+        Database.getBufferPool().flushPages(t2.getId());
+        assertTrue(onDisk(-2));
+        assertFalse(onDisk(y));
+        assertTrue(onDisk(x));
+        assertFalse(onDisk(-1));
+
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(findRow(-1));
+        assertFalse(findRow(x));
+        assertFalse(findRow(-2));
+        assertTrue(findRow(y));
+
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(findRow(-1));
+        assertFalse(findRow(x));
+        assertFalse(findRow(-2));
+        assertTrue(findRow(y));
+    }
+
+    // log a full page image of the page holding the newest rows, the
+    // way a page that cannot log slot changes would, and write it out
+    void logFullPage(Transaction t, int v)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapPageId pid = new HeapPageId(hf.getId(), hf.numPages() - 1);
+        HeapPage before = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+        HeapPage after = new HeapPage(pid, before.getPageData());
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v));
+        value.setField(1, new IntField(v));
+        after.insertTuple(value);
+        Database.getLogFile().logWrite(t.getId(), before, after);
+        Database.getLogFile().force();
+        hf.writePage(after);
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    /** A page changed by both slot records and full page UPDATE
+        records is redone and undone in log order. */
+    @Test public void testMixedRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool.setStealNoForce(true);
+
+        Transaction t1 = new Transaction();
+        Transaction pin = new Transaction();
+        // keep the page writer out until the page is write locked
+        synchronized (Database.getBufferPool()) {
+            t1.start();
+            insertRow(t1, -1);
+            logFullPage(t1, -2);
+            insertRow(t1, -3);
+            t1.commit();
+            pin.start();
+            Database.getBufferPool().getPage(pin.getId(),
+                new HeapPageId(hf.getId(), hf.numPages() - 1), Permissions.READ_WRITE);
+        }
+        assertFalse(onDisk(-3));
+
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(onDisk(-1));
+        assertTrue(onDisk(-2));
+        assertTrue(onDisk(-3));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t2, -4);
+        logFullPage(t2, -5);
+        insertRow(t2, -6);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(onDisk(-6));
+
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(findRow(-1));
+        assertTrue(findRow(-2));
+        assertTrue(findRow(-3));
+        assertFalse(findRow(-4));
+        assertFalse(findRow(-5));
+        assertFalse(findRow(-6));
+    }
+
+    /** A crash after a rollback logged its CLRs but before the ABORT
+        must not undo the rolled-back changes a second time: here the
+        slot they freed has since been reused by a committed insert. */
+    @Test public void testCrashAfterClr()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(t1, -1);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().rollback(t1.getId());
+        assertFalse(onDisk(-1));
+        // finish the abort in the buffer pool, but never log it
+        Database.getBufferPool().transactionComplete(t1.getId(), false);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(t2, -2);
+        t2.commit();
+
+        crash();
+        Database.getLogFile().recover();
+        assertFalse(findRow(-1));
+        assertTrue(findRow(-2));
+    }
+
+    /** Under NO-FORCE the COMMIT record is durable before the commit
+        releases its locks, so a transaction waiting for one of them
+        never sees changes that a crash could still take back. */
+    @Test public void testCommitDurableBeforeUnlock()
+            throws Exception {
+        BufferPool.setStealNoForce(true);
+        // a long group commit delay makes an early unlock easy to see
+        Database.getLogFile().setGroupCommit(100, 64);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(t1, -1);
+
+        final AtomicLong durable = new AtomicLong(-1);
+        final TransactionId writer = t1.getId();
+        final PageId pid = new HeapPageId(hf.getId(), hf.numPages() - 1);
+        Thread reader = new Thread() {
+            public void run() {
+                // what a transaction waiting for the lock would see
+                while (Database.getBufferPool().holdsLock(writer, pid))
+                    Thread.yield();
+                durable.set(Database.getLogFile().getDurableLsn());
+            }
+        };
+        reader.start();
+        t1.commit();
+        long end = Database.getLogFile().getCurrentLsn();
+        reader.join();
+        assertTrue(durable.get() >= end);
+    }
+
+    /** BufferPool.transactionComplete(tid) commits, and logs the
+        commit, for callers that never made a Transaction. */
+    @Test public void testBufferPoolCommit()
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool.setStealNoForce(true);
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(-1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+
+        crash();
+        Database.getLogFile().recover();
+        assertTrue(findRow(-1));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogTest.class);
+    }
+}
@@ -0,0 +1,51 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+    ArrayList<ArrayList<Integer>> collect(OpIterator it) throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return result;
+    }
+
+    /** Merged partial aggregates give the same answer as one aggregator
+        over the whole table, for every operator, with and without
+        grouping. */
+    @Test public void testMatchesSerial() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504*12, 100, null, null);
+        TransactionId tid = new TransactionId();
+        int pages = table.numPages();
+
+        Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT };
+        for (Aggregator.Op op : ops) {
+            for (int group : new int[] { Aggregator.NO_GROUPING, 0 }) {
+                OpIterator[] parts = new OpIterator[5];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = new SeqScan(tid, table.getId(), "t", pages * i / parts.length,
+                            pages * (i + 1) / parts.length);
+                }
+                Aggregate parallel = new Aggregate(new Gather(parts), 1, group, op);
+                Aggregate serial = new Aggregate(new SeqScan(tid, table.getId(), "t"), 1, group, op);
+                SystemTestUtil.matchTuples(parallel, collect(serial));
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelScanTest extends SimpleDbTestBase {
+
+    @After public void resetParallelism() {
+        LogicalPlan.setParallelism(1);
+    }
+
+    // a plan for the whole of table, with each field referenced
+    OpIterator plan(TransactionId tid, HeapFile table, String filter) throws ParsingException {
+        String name = Database.getCatalog().getTableName(table.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        if (filter != null)
+            lp.addFilter("t.c1", Predicate.Op.LESS_THAN, filter);
+        lp.addProjectField("t.c2", null);
+        lp.addProjectField("t.c0", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /** Every tuple of the table comes out exactly once, whatever the
+        degree of parallelism, including ranges of unequal size. */
+    @Test public void testScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 372*40, 1000, null, tuples, "c");
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            expected.add(new ArrayList<Integer>(Arrays.asList(t.get(2), t.get(0))));
+        }
+
+        for (int dop : new int[] { 1, 3, 8 }) {
+            LogicalPlan.setParallelism(dop);
+            TransactionId tid = new TransactionId();
+            SystemTestUtil.matchTuples(plan(tid, table, null), expected);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** The filters on a table run in each range; rewinding the plan
+        runs the ranges again. */
+    @Test public void testFilterRewind() throws IOException, DbException, TransactionAbortedException, ParsingException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 10000, 1000, null, tuples, "c");
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < 300)
+                expected++;
+        }
+
+        LogicalPlan.setParallelism(4);
+        TransactionId tid = new TransactionId();
+        OpIterator scan = plan(tid, table, "300");
+        scan.open();
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelScanTest.class);
+    }
+}
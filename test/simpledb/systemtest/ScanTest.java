@@ -104,6 +104,78 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that a cold scan reads pages ahead of itself without
+     * reading any page twice. */
+    @Test public void testReadAhead() throws IOException, DbException, TransactionAbortedException {
+        final int PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(1, 992*PAGES, 1000, null, tuples);
+        BufferPool bp = Database.resetBufferPool(50);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        long[] stats = bp.getReadAheadStats();
+        assertTrue(stats[0] > 0);
+        assertEquals(stats[0], stats[1]);
+    }
+
+    /** Verifies that a scan larger than BufferPool.LARGE_SCAN_FRACTION of
+     * the pool recycles its own frames, leaving the pages of a small,
+     * recently used table in the pool. */
+    @Test public void testLargeScanKeepsHotPages() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> smallTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(1, 992*3, 1000, null, smallTuples);
+        ArrayList<ArrayList<Integer>> largeTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile large = SystemTestUtil.createRandomHeapFile(1, 992*60, 1000, null, largeTuples);
+        BufferPool bp = Database.resetBufferPool(20);
+        assertFalse(bp.isLargeScan(small.numPages()));
+        assertTrue(bp.isLargeScan(large.numPages()));
+
+        SystemTestUtil.matchTuples(small, smallTuples);
+        assertEquals(3, bp.cachedPages(small.getId()));
+
+        SystemTestUtil.matchTuples(large, largeTuples);
+        assertEquals(3, bp.cachedPages(small.getId()));
+        assertTrue(bp.cachedPages(large.getId()) <= 17);
+    }
+
+    /** A scan that starts while another is running joins it part way
+        through the table and wraps around for the rest. */
+    @Test public void testSynchronizedScan() throws IOException, DbException, TransactionAbortedException {
+        final int PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504*PAGES, 1000, null, tuples);
+        Database.resetBufferPool(50);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        SeqScan first = new SeqScan(t1.getId(), table.getId(), "");
+        first.open();
+        for (int i = 0; i < tuples.size() / 2; i++) {
+            first.next();
+        }
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        SeqScan second = new SeqScan(t2.getId(), table.getId(), "");
+        ArrayList<ArrayList<Integer>> copy = new ArrayList<ArrayList<Integer>>(tuples);
+        second.open();
+        ArrayList<Integer> start = SystemTestUtil.tupleToList(second.next());
+        assertFalse(start.equals(tuples.get(0)));
+        assertTrue(copy.remove(start));
+        while (second.hasNext()) {
+            assertTrue(copy.remove(SystemTestUtil.tupleToList(second.next())));
+        }
+        assertTrue(copy.isEmpty());
+        second.close();
+        t2.commit();
+
+        while (first.hasNext()) {
+            first.next();
+        }
+        first.close();
+        t1.commit();
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws TransactionAbortedException
      * @throws DbException
@@ -0,0 +1,141 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Compares selectivity estimates with the true selectivities on skewed
+ * data, for TableStats and for the fixed-width IntHistogram it used to
+ * build, and prints how far off each one is.
+ */
+public class SelectivityEstimationTest extends SimpleDbTestBase {
+
+    static final int ROWS = 50000;
+    static final int VALUES = 5000;
+
+    // rank k is drawn with probability proportional to 1 / (k + 1)^s, and
+    // the ranks are scattered over a wide range of values
+    static int[] zipf(int rows, int values, double s, Random rand) {
+        double[] cdf = new double[values];
+        double total = 0;
+        for (int k = 0; k < values; k++) {
+            total += 1.0 / Math.pow(k + 1, s);
+            cdf[k] = total;
+        }
+        int[] out = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            int k = Arrays.binarySearch(cdf, rand.nextDouble() * total);
+            k = k < 0 ? -k - 1 : k;
+            out[i] = (int) ((k * 7919L) % 1000003);
+        }
+        return out;
+    }
+
+    // the ratio of the larger of estimate and actual to the smaller, with
+    // a floor of one row
+    static double qError(double estimate, double actual) {
+        double e = Math.max(estimate, 1.0 / ROWS);
+        double a = Math.max(actual, 1.0 / ROWS);
+        return Math.max(e / a, a / e);
+    }
+
+    static double actual(int[] sorted, Predicate.Op op, int v) {
+        int lo = lowerBound(sorted, v), hi = lowerBound(sorted, v + 1);
+        double n = sorted.length;
+        switch (op) {
+        case EQUALS:
+            return (hi - lo) / n;
+        case LESS_THAN:
+            return lo / n;
+        default:
+            return (n - hi) / n;
+        }
+    }
+
+    static int lowerBound(int[] sorted, int v) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < v) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    @Test public void skewedData() throws IOException {
+        Random rand = new Random(42);
+        int[] data = zipf(ROWS, VALUES, 1.1, rand);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int v : data) {
+            tuples.add(new ArrayList<Integer>(Arrays.asList(v)));
+        }
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 1);
+        HeapFile table = Utility.openHeapFile(1, temp);
+        TableStats stats = new TableStats(table.getId(), 1000);
+
+        int[] sorted = data.clone();
+        Arrays.sort(sorted);
+        IntHistogram fixed = new IntHistogram(100, sorted[0], sorted[sorted.length - 1]);
+        for (int v : data) {
+            fixed.addValue(v);
+        }
+
+        // the most frequent values, values drawn from the data (so weighted
+        // by frequency), and points spread evenly over the range
+        ArrayList<Integer> probes = new ArrayList<Integer>();
+        for (int k = 0; k < 20; k++) {
+            probes.add((int) ((k * 7919L) % 1000003));
+        }
+        for (int i = 0; i < 40; i++) {
+            probes.add(data[rand.nextInt(ROWS)]);
+        }
+        for (int i = 0; i < 40; i++) {
+            probes.add(sorted[0] + (int) ((long) (sorted[ROWS - 1] - sorted[0]) * i / 40));
+        }
+
+        Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN };
+        System.out.println("selectivity q-error on Zipf data: op, mean and max for TableStats, then IntHistogram");
+        for (Predicate.Op op : ops) {
+            double sumNew = 0, maxNew = 0, sumOld = 0, maxOld = 0;
+            for (int v : probes) {
+                double a = actual(sorted, op, v);
+                double qNew = qError(stats.estimateSelectivity(0, op, new IntField(v)), a);
+                double qOld = qError(fixed.estimateSelectivity(op, v), a);
+                sumNew += qNew;
+                maxNew = Math.max(maxNew, qNew);
+                sumOld += qOld;
+                maxOld = Math.max(maxOld, qOld);
+            }
+            double meanNew = sumNew / probes.size(), meanOld = sumOld / probes.size();
+            System.out.printf("  %-12s %8.2f %10.2f   %8.2f %10.2f%n", op, meanNew, maxNew, meanOld, maxOld);
+
+            // values missing from the data make up most of the error left:
+            // a histogram can't tell them from rare ones
+            assertTrue(meanNew < 3.0);
+            assertTrue(meanNew < meanOld + 0.05);
+        }
+
+        // the most common values are close to exact, within the error of
+        // a sample of the table
+        for (int k = 0; k < 10; k++) {
+            int v = (int) ((k * 7919L) % 1000003);
+            assertEquals(1.0, qError(stats.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(v)),
+                    actual(sorted, Predicate.Op.EQUALS, v)), 0.35);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SelectivityEstimationTest.class);
+    }
+}